@@ -0,0 +1,72 @@
+package br.imd.processors;
+
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Alocação por requisição no caminho de texto de SACAR e DEPOSITAR.
+ *
+ * Rodar com {@code mvn -Pjmh compile exec:exec}; o profiler {@code gc} mostra
+ * os bytes por operação em {@code gc.alloc.rate.norm}. O ledger é o em
+ * memória, sem fsync, num diretório temporário: o que sobra em
+ * {@link #depositarESacar} é o registro no journal do ledger e a espera pela
+ * confirmação dele.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Dbanco.storage=memoria", "-Dbanco.memoria.fsync=false" })
+@State(Scope.Benchmark)
+public class CommandDispatchBenchmark {
+    private static final String DEPOSITAR = "DEPOSITAR-B-1-1-10.50";
+    private static final String SACAR = "SACAR-B-1-1-10.50";
+
+    private BankActionHandler handler;
+
+    @Setup
+    public void preparar() throws Exception {
+        // Antes do primeiro uso do handler, que abre o ledger
+        System.setProperty("banco.memoria.dir", Files.createTempDirectory("ledger-jmh").toString());
+        handler = BankActionHandler.getInstance();
+        executar("CRIAR_BANCO-B");
+        executar("CRIAR_CONTA-B-1-1-100");
+    }
+
+    @Benchmark
+    public void tokenizar(Blackhole bh) {
+        CommandTokenizer comando = CommandTokenizer.daThread();
+        comando.tokenizar(DEPOSITAR);
+        bh.consume(comando.opcode());
+        bh.consume(comando.chaveConta(1));
+        bh.consume(comando.centavos(4));
+    }
+
+    // O saque desfaz o depósito, então o saldo não muda entre as iterações
+    @Benchmark
+    @OperationsPerInvocation(2)
+    public void depositarESacar(Blackhole bh) throws SQLException {
+        bh.consume(executar(DEPOSITAR));
+        bh.consume(executar(SACAR));
+    }
+
+    private String executar(String texto) throws SQLException {
+        CommandTokenizer comando = CommandTokenizer.daThread();
+        comando.tokenizar(texto);
+        return handler.handleAction(comando);
+    }
+}
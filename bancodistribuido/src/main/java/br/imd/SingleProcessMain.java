@@ -0,0 +1,47 @@
+package br.imd;
+
+import java.io.IOException;
+
+import br.imd.gateway.ApiGateway;
+import br.imd.servers.HTTPServer;
+import br.imd.servers.TcpServer;
+import br.imd.servers.UdpServer;
+import br.imd.service.TransferenciaService;
+import br.imd.storage.LedgerStorages;
+
+/**
+ * Sobe a pilha inteira numa JVM: gateway, serviço de transferência e os nós
+ * TCP, UDP e HTTP, todos sobre o mesmo {@link LedgerStorages#getInstance()}.
+ * É assim que o storage {@code memoria}, de processo único, atende todos os
+ * protocolos.
+ *
+ * Uso: {@code SingleProcessMain [portaTcp portaUdp portaHttp]}.
+ */
+public class SingleProcessMain {
+    private static final int PORTA_TCP = 7001;
+    private static final int PORTA_UDP = 7002;
+    private static final int PORTA_HTTP = 7003;
+
+    public static void main(String[] args) throws IOException {
+        int portaTcp = args.length > 0 ? Integer.parseInt(args[0]) : PORTA_TCP;
+        int portaUdp = args.length > 1 ? Integer.parseInt(args[1]) : PORTA_UDP;
+        int portaHttp = args.length > 2 ? Integer.parseInt(args[2]) : PORTA_HTTP;
+
+        // Abre o storage antes de tudo, para falhar na partida
+        LedgerStorages.getInstance();
+        // O gateway primeiro, para receber o primeiro heartbeat de cada um
+        new ApiGateway().start();
+        new TransferenciaService();
+
+        // Os construtores dos nós TCP e UDP ficam no laço de recepção
+        new Thread(() -> {
+            try {
+                new TcpServer(portaTcp);
+            } catch (IOException e) {
+                System.err.println("Erro ao iniciar o servidor TCP: " + e.getMessage());
+            }
+        }, "no-tcp").start();
+        new Thread(() -> new UdpServer(portaUdp), "no-udp").start();
+        new HTTPServer(portaHttp);
+    }
+}
@@ -0,0 +1,113 @@
+package br.imd.balancer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Um servidor para onde o gateway encaminha requisições, com as métricas que
+ * as estratégias de balanceamento usam: requisições em andamento e a latência
+ * média móvel (EWMA). Falhas seguidas abrem o {@link CircuitBreaker} dele.
+ *
+ * Quem encaminha chama {@link #iniciar} e depois exatamente um entre
+ * {@link #concluir}, {@link #falhar} e {@link #abandonar}, com o ticket
+ * devolvido por ele.
+ */
+public final class Backend {
+    private static final double ALFA = 0.2;
+    private static final long PENALIDADE_FALHA_NANOS = TimeUnit.MILLISECONDS
+            .toNanos(Long.getLong("banco.gateway.balanceamento.penalidadeMs", 1000L));
+
+    private final int porta;
+    private volatile String no;
+    private volatile int peso = 1;
+    private final AtomicInteger emAndamento = new AtomicInteger();
+    private final AtomicLong latenciaNanos = new AtomicLong();
+    private final CircuitBreaker circuito = new CircuitBreaker(this);
+
+    Backend(int porta) {
+        this.porta = porta;
+        this.no = "localhost:" + porta;
+    }
+
+    public int getPorta() {
+        return porta;
+    }
+
+    public String getNo() {
+        return no;
+    }
+
+    /** Peso no balanceamento, a capacidade anunciada no heartbeat. */
+    public int getPeso() {
+        return peso;
+    }
+
+    /** @return true se o peso mudou */
+    boolean atualizar(String no, int capacidade) {
+        this.no = no;
+        int novoPeso = Math.max(1, capacidade);
+        if (novoPeso == peso) {
+            return false;
+        }
+        peso = novoPeso;
+        return true;
+    }
+
+    public int getEmAndamento() {
+        return emAndamento.get();
+    }
+
+    /** Latência média móvel em nanossegundos; 0 enquanto não houver amostras. */
+    public long getLatenciaNanos() {
+        return latenciaNanos.get();
+    }
+
+    public boolean isCircuitoAberto() {
+        return circuito.isAberto();
+    }
+
+    boolean permitir(long agora) {
+        return circuito.permitir(agora);
+    }
+
+    /** @return o ticket da requisição, para o resultado */
+    public long iniciar() {
+        emAndamento.incrementAndGet();
+        return circuito.iniciar();
+    }
+
+    public void concluir(long ticket, long latencia) {
+        emAndamento.decrementAndGet();
+        registrarLatencia(latencia);
+        circuito.sucesso(ticket);
+    }
+
+    /** Erro ou timeout: conta como uma amostra lenta para desviar o tráfego. */
+    public void falhar(long ticket, long latencia) {
+        emAndamento.decrementAndGet();
+        registrarLatencia(Math.max(latencia, PENALIDADE_FALHA_NANOS));
+        circuito.falha(ticket, System.nanoTime());
+    }
+
+    /** O cliente desistiu antes da resposta; não há amostra de latência. */
+    public void abandonar(long ticket) {
+        emAndamento.decrementAndGet();
+        circuito.liberar(ticket);
+    }
+
+    private void registrarLatencia(long amostra) {
+        while (true) {
+            long atual = latenciaNanos.get();
+            long nova = atual == 0 ? amostra : atual + (long) ((amostra - atual) * ALFA);
+            if (latenciaNanos.compareAndSet(atual, Math.max(1, nova))) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Backend[" + no + ", porta " + porta + "]";
+    }
+}
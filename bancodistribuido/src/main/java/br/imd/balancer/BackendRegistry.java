@@ -0,0 +1,22 @@
+package br.imd.balancer;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Servidores ativos separados por protocolo. O caminho TCP do gateway só
+ * escolhe entre nós TCP, o UDP entre nós UDP e o HTTP entre nós HTTP.
+ */
+public class BackendRegistry {
+    private final Map<Protocolo, LoadBalancer> balanceadores = new EnumMap<>(Protocolo.class);
+
+    public BackendRegistry() {
+        for (Protocolo protocolo : Protocolo.values()) {
+            balanceadores.put(protocolo, new LoadBalancer(protocolo, BalancingStrategy.daConfiguracao()));
+        }
+    }
+
+    public LoadBalancer balanceador(Protocolo protocolo) {
+        return balanceadores.get(protocolo);
+    }
+}
@@ -0,0 +1,27 @@
+package br.imd.balancer;
+
+/**
+ * Escolhe um servidor do snapshot atual. É chamada a cada requisição, então
+ * não deve alocar nem bloquear.
+ */
+public interface BalancingStrategy {
+
+    /** @param snapshot nunca vazio */
+    Backend escolher(Snapshot snapshot);
+
+    static BalancingStrategy daConfiguracao() {
+        String nome = System.getProperty("banco.gateway.balanceamento", "p2c");
+        switch (nome.toLowerCase()) {
+            case "round-robin":
+                return new RoundRobinStrategy();
+            case "menos-pendentes":
+                return new LeastOutstandingStrategy();
+            case "ponderado":
+                return new WeightedRoundRobinStrategy();
+            case "p2c":
+                return new PowerOfTwoChoicesStrategy();
+            default:
+                throw new IllegalArgumentException("Estratégia de balanceamento desconhecida: " + nome);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package br.imd.balancer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Disjuntor de um servidor. Depois de {@code banco.gateway.circuito.falhas}
+ * falhas seguidas o servidor fica fora da escolha por
+ * {@code banco.gateway.circuito.aberturaMs}; passado esse tempo uma única
+ * requisição de teste é liberada, e o resultado dela fecha ou reabre o
+ * circuito.
+ *
+ * Cada requisição recebe um ticket em {@link #iniciar()}; a de teste é a
+ * primeira a iniciar depois de {@link #permitir} liberar o teste, e só o
+ * ticket dela mexe no circuito aberto. Requisições que já estavam em voo
+ * quando o circuito abriu não dizem nada sobre o servidor agora.
+ */
+final class CircuitBreaker {
+    private static final int FALHAS = Integer.getInteger("banco.gateway.circuito.falhas", 5);
+    private static final long ABERTURA_NANOS = TimeUnit.MILLISECONDS
+            .toNanos(Long.getLong("banco.gateway.circuito.aberturaMs", 2000L));
+
+    private final Backend backend;
+    private final AtomicInteger falhasSeguidas = new AtomicInteger();
+    private final AtomicLong proximoTicket = new AtomicLong();
+    // Teste liberado por permitir; fica marcado até o resultado do teste
+    private final AtomicBoolean testando = new AtomicBoolean();
+    // Ticket da requisição de teste em voo, 0 se nenhuma
+    private final AtomicLong ticketTeste = new AtomicLong();
+    private volatile boolean aberto;
+    private volatile long fechaEm;
+
+    CircuitBreaker(Backend backend) {
+        this.backend = backend;
+    }
+
+    boolean isAberto() {
+        return aberto;
+    }
+
+    /** Se o servidor pode receber uma requisição agora. */
+    boolean permitir(long agora) {
+        if (!aberto) {
+            return true;
+        }
+        return agora - fechaEm >= 0 && testando.compareAndSet(false, true);
+    }
+
+    /** @return o ticket da requisição, para os resultados */
+    long iniciar() {
+        long ticket = proximoTicket.incrementAndGet();
+        if (aberto && testando.get()) {
+            ticketTeste.compareAndSet(0, ticket);
+        }
+        return ticket;
+    }
+
+    void sucesso(long ticket) {
+        if (!aberto) {
+            falhasSeguidas.set(0);
+            return;
+        }
+        if (ticketTeste.compareAndSet(ticket, 0)) {
+            falhasSeguidas.set(0);
+            aberto = false;
+            testando.set(false);
+            System.out.println("Circuito fechado para " + backend + ".");
+        }
+    }
+
+    void falha(long ticket, long agora) {
+        if (aberto) {
+            if (ticketTeste.compareAndSet(ticket, 0)) {
+                // A requisição de teste falhou
+                fechaEm = agora + ABERTURA_NANOS;
+                testando.set(false);
+            }
+            return;
+        }
+        if (falhasSeguidas.incrementAndGet() >= FALHAS) {
+            fechaEm = agora + ABERTURA_NANOS;
+            aberto = true;
+            System.out.println("Circuito aberto para " + backend + " após " + FALHAS + " falhas seguidas.");
+        }
+    }
+
+    /** A requisição terminou sem dizer nada sobre o servidor. */
+    void liberar(long ticket) {
+        if (aberto && ticketTeste.compareAndSet(ticket, 0)) {
+            testando.set(false);
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package br.imd.balancer;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * O servidor com menos requisições em andamento. A varredura começa num ponto
+ * aleatório para os empates não caírem sempre no mesmo.
+ */
+public final class LeastOutstandingStrategy implements BalancingStrategy {
+
+    @Override
+    public Backend escolher(Snapshot snapshot) {
+        int n = snapshot.tamanho();
+        int inicio = ThreadLocalRandom.current().nextInt(n);
+        Backend melhor = snapshot.get(inicio);
+        for (int i = 1; i < n; i++) {
+            Backend b = snapshot.get((inicio + i) % n);
+            if (b.getEmAndamento() < melhor.getEmAndamento()) {
+                melhor = b;
+            }
+        }
+        return melhor;
+    }
+}
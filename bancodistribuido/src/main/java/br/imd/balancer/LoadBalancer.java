@@ -0,0 +1,107 @@
+package br.imd.balancer;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Escolhe o servidor de cada requisição do gateway.
+ *
+ * A lista de servidores é um {@link Snapshot} imutável trocado só quando o
+ * Heartbeat muda o conjunto de ativos (ou a capacidade de um nó), então a
+ * escolha não aloca nem trava.
+ * Um servidor que sai e volta mantém suas métricas.
+ */
+public class LoadBalancer {
+    private final Protocolo protocolo;
+    private final BalancingStrategy estrategia;
+    private final Map<Integer, Backend> conhecidos = new HashMap<>();
+    private final Map<Integer, Backend> ativos = new LinkedHashMap<>();
+    private volatile Snapshot snapshot = Snapshot.VAZIO;
+
+    public LoadBalancer(Protocolo protocolo, BalancingStrategy estrategia) {
+        this.protocolo = protocolo;
+        this.estrategia = estrategia;
+    }
+
+    public Protocolo getProtocolo() {
+        return protocolo;
+    }
+
+    /**
+     * @throws IllegalStateException se não houver servidor ativo com o
+     *                               circuito fechado
+     */
+    public Backend escolher() {
+        Backend escolhido = escolher(null);
+        if (escolhido == null) {
+            throw new IllegalStateException("Nenhum servidor " + protocolo + " disponível.");
+        }
+        return escolhido;
+    }
+
+    /**
+     * Escolhe um servidor diferente de {@code evitar}, para refazer uma
+     * requisição que falhou nele.
+     *
+     * @return null se não houver outro servidor disponível
+     */
+    public Backend escolherOutro(Backend evitar) {
+        return escolher(evitar);
+    }
+
+    private Backend escolher(Backend evitar) {
+        Snapshot atual = snapshot;
+        int n = atual.tamanho();
+        if (n == 0) {
+            return null;
+        }
+        long agora = System.nanoTime();
+        Backend escolhido = estrategia.escolher(atual);
+        if (escolhido != evitar && escolhido.permitir(agora)) {
+            return escolhido;
+        }
+        // Circuito aberto ou servidor a evitar: o primeiro outro que servir
+        int inicio = ThreadLocalRandom.current().nextInt(n);
+        for (int i = 0; i < n; i++) {
+            Backend b = atual.get((inicio + i) % n);
+            if (b != evitar && b != escolhido && b.permitir(agora)) {
+                return b;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Marca o servidor como ativo, atualizando id e capacidade.
+     *
+     * @return true se ele não estava ativo
+     */
+    public synchronized boolean adicionar(int porta, String no, int capacidade) {
+        Backend backend = conhecidos.computeIfAbsent(porta, Backend::new);
+        boolean novo = ativos.put(porta, backend) == null;
+        boolean mudou = backend.atualizar(no, capacidade);
+        if (novo || mudou) {
+            publicar();
+        }
+        return novo;
+    }
+
+    /** @return true se o servidor estava ativo */
+    public synchronized boolean remover(int porta) {
+        if (ativos.remove(porta) == null) {
+            return false;
+        }
+        publicar();
+        return true;
+    }
+
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    private void publicar() {
+        snapshot = new Snapshot(ativos.values().toArray(new Backend[0]));
+    }
+}
@@ -0,0 +1,33 @@
+package br.imd.balancer;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Sorteia dois servidores e fica com o de menor custo, a latência média
+ * (EWMA) vezes as requisições em andamento. Um nó lento ou sobrecarregado
+ * perde tráfego sem que todos corram para o mesmo "melhor" nó.
+ */
+public final class PowerOfTwoChoicesStrategy implements BalancingStrategy {
+
+    @Override
+    public Backend escolher(Snapshot snapshot) {
+        int n = snapshot.tamanho();
+        if (n == 1) {
+            return snapshot.get(0);
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int i = random.nextInt(n);
+        int j = random.nextInt(n - 1);
+        if (j >= i) {
+            j++;
+        }
+        Backend a = snapshot.get(i);
+        Backend b = snapshot.get(j);
+        return custo(a) <= custo(b) ? a : b;
+    }
+
+    private static double custo(Backend b) {
+        // +1 para nós sem amostras ou ociosos ainda serem comparáveis
+        return (b.getLatenciaNanos() + 1.0) * (b.getEmAndamento() + 1) / b.getPeso();
+    }
+}
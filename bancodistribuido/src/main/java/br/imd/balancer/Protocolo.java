@@ -0,0 +1,6 @@
+package br.imd.balancer;
+
+/** Protocolo em que um servidor atende; cada um tem seu próprio balanceador. */
+public enum Protocolo {
+    UDP, TCP, HTTP
+}
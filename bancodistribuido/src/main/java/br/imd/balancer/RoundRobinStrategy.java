@@ -0,0 +1,13 @@
+package br.imd.balancer;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Revezamento simples, sem olhar carga: o comportamento antigo do gateway. */
+public final class RoundRobinStrategy implements BalancingStrategy {
+    private final AtomicInteger proximo = new AtomicInteger();
+
+    @Override
+    public Backend escolher(Snapshot snapshot) {
+        return snapshot.get(Math.floorMod(proximo.getAndIncrement(), snapshot.tamanho()));
+    }
+}
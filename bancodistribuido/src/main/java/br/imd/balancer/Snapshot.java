@@ -0,0 +1,33 @@
+package br.imd.balancer;
+
+/**
+ * Conjunto imutável dos servidores ativos num dado momento. Só é recriado
+ * quando o Heartbeat muda o conjunto.
+ */
+public final class Snapshot {
+    static final Snapshot VAZIO = new Snapshot(new Backend[0]);
+
+    private final Backend[] backends;
+    private final int pesoTotal;
+
+    Snapshot(Backend[] backends) {
+        this.backends = backends;
+        int total = 0;
+        for (Backend b : backends) {
+            total += b.getPeso();
+        }
+        this.pesoTotal = total;
+    }
+
+    public int tamanho() {
+        return backends.length;
+    }
+
+    public Backend get(int i) {
+        return backends[i];
+    }
+
+    public int getPesoTotal() {
+        return pesoTotal;
+    }
+}
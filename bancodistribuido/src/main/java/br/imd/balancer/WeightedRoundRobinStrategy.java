@@ -0,0 +1,21 @@
+package br.imd.balancer;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Revezamento proporcional ao peso (capacidade) de cada servidor. */
+public final class WeightedRoundRobinStrategy implements BalancingStrategy {
+    private final AtomicLong proximo = new AtomicLong();
+
+    @Override
+    public Backend escolher(Snapshot snapshot) {
+        long posicao = Math.floorMod(proximo.getAndIncrement(), (long) snapshot.getPesoTotal());
+        for (int i = 0; i < snapshot.tamanho(); i++) {
+            Backend b = snapshot.get(i);
+            posicao -= b.getPeso();
+            if (posicao < 0) {
+                return b;
+            }
+        }
+        return snapshot.get(snapshot.tamanho() - 1);
+    }
+}
@@ -0,0 +1,154 @@
+package br.imd.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Cache LRU limitado por tamanho e por tempo de vida das entradas.
+ *
+ * As operações são sincronizadas e não fazem I/O, então o lock é mantido só
+ * durante o acesso ao mapa. Entradas expiradas são removidas na leitura.
+ */
+public class ExpiringCache<K, V> {
+    private final String nome;
+    private final int tamanhoMaximo;
+    private final long ttlNanos;
+    private final LinkedHashMap<K, Entrada<V>> entradas;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    // Conta as invalidações; só muda com o lock de entradas
+    private long invalidacoes;
+
+    public ExpiringCache(String nome, int tamanhoMaximo, long ttlMillis) {
+        this.nome = nome;
+        this.tamanhoMaximo = tamanhoMaximo;
+        this.ttlNanos = ttlMillis * 1_000_000L;
+        this.entradas = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Entrada<V>> eldest) {
+                if (size() > ExpiringCache.this.tamanhoMaximo) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public V get(K chave) {
+        synchronized (entradas) {
+            Entrada<V> entrada = entradas.get(chave);
+            if (entrada == null) {
+                misses.incrementAndGet();
+                return null;
+            }
+            if (System.nanoTime() - entrada.criadaEm > ttlNanos) {
+                entradas.remove(chave);
+                evictions.incrementAndGet();
+                misses.incrementAndGet();
+                return null;
+            }
+            hits.incrementAndGet();
+            return entrada.valor;
+        }
+    }
+
+    public void put(K chave, V valor) {
+        if (valor == null || tamanhoMaximo <= 0) {
+            return;
+        }
+        synchronized (entradas) {
+            entradas.put(chave, new Entrada<>(valor, System.nanoTime()));
+        }
+    }
+
+    /**
+     * Marca para {@link #putSeInalterado}: pegue antes de ler a fonte do
+     * valor.
+     */
+    public long versao() {
+        synchronized (entradas) {
+            return invalidacoes;
+        }
+    }
+
+    /**
+     * Como {@link #put}, mas descarta o valor se houve alguma invalidação
+     * desde {@code versao}: a leitura pode ter visto o dado de antes da
+     * escrita que invalidou.
+     */
+    public void putSeInalterado(K chave, V valor, long versao) {
+        if (valor == null || tamanhoMaximo <= 0) {
+            return;
+        }
+        synchronized (entradas) {
+            if (invalidacoes == versao) {
+                entradas.put(chave, new Entrada<>(valor, System.nanoTime()));
+            }
+        }
+    }
+
+    public void invalidate(K chave) {
+        synchronized (entradas) {
+            invalidacoes++;
+            entradas.remove(chave);
+        }
+    }
+
+    public void invalidateIf(Predicate<K> condicao) {
+        synchronized (entradas) {
+            invalidacoes++;
+            Iterator<K> it = entradas.keySet().iterator();
+            while (it.hasNext()) {
+                if (condicao.test(it.next())) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (entradas) {
+            invalidacoes++;
+            entradas.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (entradas) {
+            return entradas.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public String estatisticas() {
+        return String.format("Cache %s: tamanho=%d, hits=%d, misses=%d, evictions=%d",
+                nome, size(), getHits(), getMisses(), getEvictions());
+    }
+
+    private static final class Entrada<V> {
+        private final V valor;
+        private final long criadaEm;
+
+        private Entrada(V valor, long criadaEm) {
+            this.valor = valor;
+            this.criadaEm = criadaEm;
+        }
+    }
+}
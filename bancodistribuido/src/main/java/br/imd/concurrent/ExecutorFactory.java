@@ -0,0 +1,90 @@
+package br.imd.concurrent;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors dos servidores, conforme o modo de threads do processo.
+ *
+ * Com {@code -Dbanco.threads=virtual} (JDK 21+, perfil {@code virtual-threads}
+ * do pom) cada requisição roda numa virtual thread e a concorrência passa a
+ * ser limitada pelo I/O, não pelo tamanho do pool. Sem a propriedade, ou num
+ * JDK sem virtual threads, os pools de plataforma de sempre são usados.
+ *
+ * A API é acessada por reflexão para o projeto continuar compilando com
+ * {@code release 17}.
+ */
+public final class ExecutorFactory {
+    private static final ThreadFactory FABRICA_VIRTUAL = criarFabricaVirtual();
+
+    private ExecutorFactory() {
+    }
+
+    public static boolean isVirtual() {
+        return FABRICA_VIRTUAL != null;
+    }
+
+    /**
+     * Executor para tratar requisições: uma virtual thread por tarefa no modo
+     * virtual, senão um pool fixo de {@code threadsPlataforma} threads.
+     */
+    public static ExecutorService porRequisicao(String nome, int threadsPlataforma) {
+        if (FABRICA_VIRTUAL != null) {
+            return novoPorTarefa(FABRICA_VIRTUAL);
+        }
+        return Executors.newFixedThreadPool(threadsPlataforma, fabricaPlataforma(nome));
+    }
+
+    /**
+     * Mesmo que {@link #porRequisicao(String, int)}, mas no modo de plataforma
+     * usa o executor dado (ex.: um pool com fila limitada).
+     */
+    public static ExecutorService porRequisicao(ExecutorService plataforma) {
+        if (FABRICA_VIRTUAL != null) {
+            plataforma.shutdown();
+            return novoPorTarefa(FABRICA_VIRTUAL);
+        }
+        return plataforma;
+    }
+
+    private static ThreadFactory fabricaPlataforma(String nome) {
+        ThreadFactory padrao = Executors.defaultThreadFactory();
+        AtomicInteger contador = new AtomicInteger();
+        return tarefa -> {
+            Thread t = padrao.newThread(tarefa);
+            t.setName(nome + "-" + contador.getAndIncrement());
+            return t;
+        };
+    }
+
+    private static ExecutorService novoPorTarefa(ThreadFactory fabrica) {
+        try {
+            Method metodo = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) metodo.invoke(null, fabrica);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Executor por tarefa indisponível.", e);
+        }
+    }
+
+    private static ThreadFactory criarFabricaVirtual() {
+        if (!"virtual".equalsIgnoreCase(System.getProperty("banco.threads", "plataforma"))) {
+            return null;
+        }
+        try {
+            // Thread.ofVirtual().name("banco-virtual-", 0).factory()
+            Object construtor = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> tipoBuilder = Class.forName("java.lang.Thread$Builder");
+            construtor = tipoBuilder.getMethod("name", String.class, long.class).invoke(construtor,
+                    "banco-virtual-", 0L);
+            ThreadFactory fabrica = (ThreadFactory) tipoBuilder.getMethod("factory").invoke(construtor);
+            System.out.println("Modo de threads: virtual.");
+            return fabrica;
+        } catch (ReflectiveOperationException e) {
+            System.err.println("Virtual threads exigem JDK 21+; usando threads de plataforma.");
+            return null;
+        }
+    }
+}
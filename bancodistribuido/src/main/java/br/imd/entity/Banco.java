@@ -20,9 +20,11 @@ public class Banco {
 
     @Override
     public String toString() {
-        return String.format(
-                "Nome: %s",
-                getNome());
+        return "Nome: " + getNome();
+    }
+
+    public StringBuilder formatar(StringBuilder sb) {
+        return sb.append("Nome: ").append(getNome());
     }
 
 }
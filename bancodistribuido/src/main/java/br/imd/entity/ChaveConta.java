@@ -0,0 +1,28 @@
+package br.imd.entity;
+
+import java.util.Comparator;
+
+/**
+ * Identifica uma conta pelo banco, agência e número.
+ *
+ * A ordem natural (banco, agência, conta) ordena listagens e cursores. No
+ * MySQL as linhas são travadas na ordem do índice, que segue a collation das
+ * colunas (ver {@code ContaRepository.bloquearContas}).
+ */
+public record ChaveConta(String banco, String agencia, String conta) implements Comparable<ChaveConta> {
+
+    private static final Comparator<ChaveConta> ORDEM = Comparator
+            .comparing(ChaveConta::banco)
+            .thenComparing(ChaveConta::agencia)
+            .thenComparing(ChaveConta::conta);
+
+    public static ChaveConta de(Conta conta) {
+        return new ChaveConta(conta.getBanco() != null ? conta.getBanco().getNome() : null,
+                conta.getAgencia(), conta.getConta());
+    }
+
+    @Override
+    public int compareTo(ChaveConta outra) {
+        return ORDEM.compare(this, outra);
+    }
+}
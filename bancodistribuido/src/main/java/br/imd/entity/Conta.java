@@ -2,17 +2,18 @@ package br.imd.entity;
 
 public class Conta {
     private String conta, agencia;
-    private double saldo;
+    // Em centavos; veja Dinheiro
+    private long saldo;
     private Banco banco;
 
-    public Conta(String conta, String agencia, double saldo, Banco banco) {
+    public Conta(String conta, String agencia, long saldo, Banco banco) {
         this.conta = conta;
         this.agencia = agencia;
         this.saldo = saldo;
         this.banco = banco;
     }
 
-    public Conta(String conta, String agencia, double saldo) {
+    public Conta(String conta, String agencia, long saldo) {
         this.conta = conta;
         this.agencia = agencia;
         this.saldo = saldo;
@@ -28,6 +29,13 @@ public class Conta {
     public Conta() {
     }
 
+    public Conta(Conta outra) {
+        this.conta = outra.conta;
+        this.agencia = outra.agencia;
+        this.saldo = outra.saldo;
+        this.banco = outra.banco;
+    }
+
     public String getConta() {
         return conta;
     }
@@ -36,11 +44,11 @@ public class Conta {
         this.conta = conta;
     }
 
-    public double getSaldo() {
+    public long getSaldo() {
         return saldo;
     }
 
-    public void setSaldo(double saldo) {
+    public void setSaldo(long saldo) {
         this.saldo = saldo;
     }
 
@@ -62,17 +70,19 @@ public class Conta {
 
     @Override
     public String toString() {
-        return String.format(
-                "Conta{" +
-                        "    Banco: %s ," +
-                        "    Agência: %s ," +
-                        "    Conta: %s ," +
-                        "    Saldo: %.2f " +
-                        "}",
-                getBanco(),
-                getAgencia(),
-                getConta(),
-                getSaldo());
+        return formatar(new StringBuilder(96)).toString();
+    }
+
+    /** Escreve o mesmo texto de {@link #toString()} no fim de {@code sb}. */
+    public StringBuilder formatar(StringBuilder sb) {
+        sb.append("Conta{    Banco: ");
+        if (banco != null) {
+            banco.formatar(sb);
+        } else {
+            sb.append("null");
+        }
+        sb.append(" ,    Agência: ").append(agencia).append(" ,    Conta: ").append(conta).append(" ,    Saldo: ");
+        return Dinheiro.formatar(sb, saldo).append(" }");
     }
 
 }
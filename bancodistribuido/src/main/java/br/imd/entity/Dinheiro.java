@@ -0,0 +1,123 @@
+package br.imd.entity;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Valores monetários representados como {@code long} de centavos.
+ *
+ * A conversão para texto e para {@link BigDecimal} só acontece nas bordas
+ * (protocolo e JDBC); contas e comparações usam o {@code long} diretamente.
+ */
+public final class Dinheiro {
+    private static final int ESCALA = 2;
+    // Maior parte inteira que ainda cabe em centavos num long
+    private static final long LIMITE_INTEIRO = (Long.MAX_VALUE - 99) / 100;
+
+    private Dinheiro() {
+    }
+
+    /**
+     * Converte "123", "123.4" ou "123,45" em centavos, sem passar por ponto
+     * flutuante. Mais de duas casas decimais é erro.
+     */
+    public static long parseCentavos(String texto) {
+        if (texto == null) {
+            throw new NumberFormatException("Valor ausente.");
+        }
+        return parseCentavos(texto, 0, texto.length());
+    }
+
+    /** Mesmo que {@link #parseCentavos(String)} sobre {@code texto[inicio, fim)}, sem copiar. */
+    public static long parseCentavos(CharSequence texto, int inicio, int fim) {
+        while (inicio < fim && texto.charAt(inicio) <= ' ') {
+            inicio++;
+        }
+        while (fim > inicio && texto.charAt(fim - 1) <= ' ') {
+            fim--;
+        }
+        if (inicio == fim) {
+            throw new NumberFormatException("Valor ausente.");
+        }
+
+        int i = inicio;
+        boolean negativo = false;
+        char primeiro = texto.charAt(i);
+        if (primeiro == '-' || primeiro == '+') {
+            negativo = primeiro == '-';
+            i++;
+        }
+
+        long inteiro = 0;
+        int digitosInteiros = 0;
+        while (i < fim && digito(texto.charAt(i))) {
+            if (inteiro > LIMITE_INTEIRO) {
+                throw new NumberFormatException("Valor fora do limite: " + texto.subSequence(inicio, fim));
+            }
+            inteiro = inteiro * 10 + (texto.charAt(i) - '0');
+            digitosInteiros++;
+            i++;
+        }
+
+        long fracao = 0;
+        int casas = 0;
+        if (i < fim && (texto.charAt(i) == '.' || texto.charAt(i) == ',')) {
+            i++;
+            while (i < fim && digito(texto.charAt(i))) {
+                if (++casas > ESCALA) {
+                    throw new NumberFormatException(
+                            "Valor com mais de duas casas decimais: " + texto.subSequence(inicio, fim));
+                }
+                fracao = fracao * 10 + (texto.charAt(i) - '0');
+                i++;
+            }
+        }
+        if (i != fim || (digitosInteiros == 0 && casas == 0)) {
+            throw new NumberFormatException("Valor inválido: " + texto.subSequence(inicio, fim));
+        }
+        if (casas == 1) {
+            fracao *= 10;
+        }
+
+        if (inteiro > LIMITE_INTEIRO) {
+            throw new NumberFormatException("Valor fora do limite: " + texto.subSequence(inicio, fim));
+        }
+        long centavos = inteiro * 100 + fracao;
+        return negativo ? -centavos : centavos;
+    }
+
+    /** Formata centavos como "1234.56". */
+    public static String formatar(long centavos) {
+        return formatar(new StringBuilder(24), centavos).toString();
+    }
+
+    /** Escreve centavos como "1234.56" no fim de {@code sb}. */
+    public static StringBuilder formatar(StringBuilder sb, long centavos) {
+        long absoluto = Math.abs(centavos);
+        long fracao = absoluto % 100;
+        if (centavos < 0) {
+            sb.append('-');
+        }
+        sb.append(absoluto / 100).append('.');
+        if (fracao < 10) {
+            sb.append('0');
+        }
+        return sb.append(fracao);
+    }
+
+    public static BigDecimal paraDecimal(long centavos) {
+        return BigDecimal.valueOf(centavos, ESCALA);
+    }
+
+    public static long deDecimal(BigDecimal valor) {
+        if (valor == null) {
+            return 0;
+        }
+        return valor.setScale(ESCALA, RoundingMode.HALF_EVEN).unscaledValue().longValueExact();
+    }
+
+    // Só 0-9: Character.isDigit aceita dígitos de outros alfabetos, que c - '0' não converte
+    private static boolean digito(char c) {
+        return c >= '0' && c <= '9';
+    }
+}
@@ -0,0 +1,53 @@
+package br.imd.entity;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Uma página de contas ordenadas por (banco, agência, conta) e o cursor opaco
+ * para pedir a próxima. O cursor é nulo na última página.
+ */
+public class PaginaContas {
+    private static final char SEPARADOR = '\u0000';
+
+    private final List<Conta> contas;
+    private final String proximoCursor;
+
+    public PaginaContas(List<Conta> contas, String proximoCursor) {
+        this.contas = contas;
+        this.proximoCursor = proximoCursor;
+    }
+
+    public List<Conta> getContas() {
+        return contas;
+    }
+
+    public String getProximoCursor() {
+        return proximoCursor;
+    }
+
+    public boolean temProxima() {
+        return proximoCursor != null;
+    }
+
+    // Base64 sem padding não usa '-', então o cursor passa intacto pelo
+    // protocolo de texto.
+    public static String codificarCursor(ChaveConta chave) {
+        String bruto = chave.banco() + SEPARADOR + chave.agencia() + SEPARADOR + chave.conta();
+        return Base64.getEncoder().withoutPadding().encodeToString(bruto.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static ChaveConta decodificarCursor(String cursor) {
+        try {
+            String bruto = new String(Base64.getDecoder().decode(cursor), StandardCharsets.UTF_8);
+            String[] partes = bruto.split(String.valueOf(SEPARADOR), -1);
+            if (partes.length != 3) {
+                throw new IllegalArgumentException("Cursor inválido.");
+            }
+            return new ChaveConta(partes[0], partes[1], partes[2]);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Cursor inválido.", e);
+        }
+    }
+}
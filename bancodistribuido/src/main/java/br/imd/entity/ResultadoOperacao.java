@@ -0,0 +1,26 @@
+package br.imd.entity;
+
+/**
+ * Resultado de uma movimentação de saldo. O nome é o código usado nas
+ * respostas de lote; a mensagem é a usada nas operações individuais.
+ */
+public enum ResultadoOperacao {
+    OK("OK"),
+    VALOR_INVALIDO("Valor deve ser positivo."),
+    CONTA_ORIGEM_INEXISTENTE("Conta de origem não encontrada no banco informado."),
+    CONTA_DESTINO_INEXISTENTE("Conta de destino não encontrada no banco informado."),
+    SALDO_INSUFICIENTE("Saldo insuficiente na conta."),
+    PARTICAO_INDISPONIVEL("Serviço de transferência da conta de destino indisponível."),
+    TRANSFERENCIA_PENDENTE("Transferência debitada, aguardando a confirmação da partição de destino; "
+            + "se ela não confirmar, o valor volta à conta de origem.");
+
+    private final String mensagem;
+
+    ResultadoOperacao(String mensagem) {
+        this.mensagem = mensagem;
+    }
+
+    public String getMensagem() {
+        return mensagem;
+    }
+}
@@ -0,0 +1,7 @@
+package br.imd.entity;
+
+/**
+ * Uma transferência de {@code valor} centavos entre duas contas.
+ */
+public record Transferencia(ChaveConta origem, ChaveConta destino, long valor) {
+}
@@ -3,15 +3,15 @@ package br.imd.gateway;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.PrintWriter;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.EnumMap;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -20,30 +20,59 @@ import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 
+import br.imd.balancer.BackendRegistry;
+import br.imd.balancer.LoadBalancer;
+import br.imd.balancer.Protocolo;
+import br.imd.processors.HeartbeatMessage;
+import br.imd.processors.PartitionMap;
+
 /**
  * Classe Heartbeat que monitora a saúde dos servidores ativos.
+ *
+ * Cada servidor tem um {@link PhiAccrualDetector}; o verificador roda a cada
+ * {@code banco.heartbeat.verificacaoMs} e tira do balanceador quem passar do
+ * limiar {@code banco.heartbeat.phi} ou ficar sem heartbeat por
+ * {@code banco.heartbeat.timeoutMs}. O balanceador só é tocado quando um nó
+ * entra, sai ou muda de capacidade.
+ *
+ * As instâncias do serviço de transferência mandam o heartbeat por TCP na
+ * porta 4, com a faixa de hash que atendem ({@code porta;no;capacidade;inicio-fim}),
+ * e recebem de volta o {@link PartitionMap} das instâncias vivas. Os nós
+ * pedem o mesmo mapa na mesma porta com {@link PartitionMap#PEDIDO}.
  */
 public class Heartbeat implements Runnable {
-    private static final int SERVER_TIMEOUT = 3000;
+    private static final long SERVER_TIMEOUT_NANOS = TimeUnit.MILLISECONDS
+            .toNanos(Long.getLong("banco.heartbeat.timeoutMs", 3000L));
+    private static final double LIMIAR_PHI = Double.parseDouble(System.getProperty("banco.heartbeat.phi", "8"));
+    private static final long INTERVALO_VERIFICACAO_MS = Long.getLong("banco.heartbeat.verificacaoMs", 100L);
     private final int udpPort = 1;
     private final int tcpPort = 2;
     private final int httpPort = 3;
+    private final int transferenciaPort = PartitionMap.PORTA_HEARTBEAT;
     private DatagramSocket udpSocket;
     private ServerSocket tcpServerSocket;
+    private ServerSocket transferenciaServerSocket;
     private HttpServer httpServer;
-    private final Set<Integer> activeServers;
-    private final Map<Integer, Long> lastResponseTimes;
+    private final BackendRegistry registro;
+    private final Map<Protocolo, Map<Integer, PhiAccrualDetector>> detectores;
+    // Instâncias do serviço de transferência, por host:porta
+    private final Map<String, PhiAccrualDetector> detectoresParticoes = new ConcurrentHashMap<>();
+    private final Map<String, PartitionMap.Particao> particoes = new ConcurrentHashMap<>();
+    private volatile PartitionMap mapa = PartitionMap.ler("");
     private final ScheduledExecutorService scheduler;
 
-    public Heartbeat(Set<Integer> activeServers) {
-        this.activeServers = activeServers;
-        activeServers.clear();
+    public Heartbeat(BackendRegistry registro) {
+        this.registro = registro;
 
-        this.lastResponseTimes = new HashMap<>();
+        this.detectores = new EnumMap<>(Protocolo.class);
+        for (Protocolo protocolo : Protocolo.values()) {
+            detectores.put(protocolo, new ConcurrentHashMap<>());
+        }
         this.scheduler = Executors.newScheduledThreadPool(1);
         try {
             this.udpSocket = new DatagramSocket(udpPort);
             this.tcpServerSocket = new ServerSocket(tcpPort);
+            this.transferenciaServerSocket = new ServerSocket(transferenciaPort);
             new Thread(() -> {
                 try {
                     this.httpServer = HttpServer.create(new InetSocketAddress(httpPort), 0);
@@ -70,7 +99,8 @@ public class Heartbeat implements Runnable {
     public void run() {
         new Thread(this::listenForUDPMessages).start();
         new Thread(this::listenForTCPConnections).start();
-        scheduler.scheduleAtFixedRate(this::checkServers, 0, 3, TimeUnit.SECONDS);
+        new Thread(this::listenForTransferServices).start();
+        scheduler.scheduleAtFixedRate(this::checkServers, 0, INTERVALO_VERIFICACAO_MS, TimeUnit.MILLISECONDS);
     }
 
     private void listenForUDPMessages() {
@@ -80,8 +110,7 @@ public class Heartbeat implements Runnable {
                 DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
                 udpSocket.receive(packet);
                 String message = new String(packet.getData(), 0, packet.getLength()).trim();
-                int serverPort = Integer.parseInt(message);
-                handleServerResponse(serverPort, true);
+                handleServerResponse(Protocolo.UDP, HeartbeatMessage.ler(message));
             } catch (IOException | NumberFormatException e) {
                 System.err.println("Erro ao receber pacote UDP: " + e.getMessage());
             }
@@ -90,23 +119,71 @@ public class Heartbeat implements Runnable {
 
     private void listenForTCPConnections() {
         while (true) {
-            try {
-                Socket clientSocket = tcpServerSocket.accept();
+            try (Socket clientSocket = tcpServerSocket.accept()) {
+                // Os heartbeats TCP são lidos um por vez; uma conexão muda não
+                // pode segurar os dos outros nós além de um intervalo
+                clientSocket.setSoTimeout((int) HeartbeatMessage.INTERVALO_MS);
                 BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
                 String request = in.readLine();
-                int serverPort = Integer.parseInt(request.trim());
-                handleServerResponse(serverPort, true);
-            } catch (IOException e) {
+                handleServerResponse(Protocolo.TCP, HeartbeatMessage.ler(request));
+            } catch (IOException | RuntimeException e) {
                 System.err.println("Erro ao aceitar conexão TCP: " + e.getMessage());
             }
         }
     }
 
+    private void listenForTransferServices() {
+        while (true) {
+            try (Socket clientSocket = transferenciaServerSocket.accept()) {
+                clientSocket.setSoTimeout((int) HeartbeatMessage.INTERVALO_MS * 4);
+                BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+                String request = in.readLine();
+                if (request != null && !PartitionMap.PEDIDO.equals(request.trim())) {
+                    handleTransferService(clientSocket.getInetAddress().getHostAddress(), request.trim());
+                }
+                PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true);
+                out.println(mapa.formatar());
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Erro no heartbeat do serviço de transferência: " + e.getMessage());
+            }
+        }
+    }
+
+    private void handleTransferService(String host, String request) {
+        int separador = request.lastIndexOf(HeartbeatMessage.SEPARADOR);
+        HeartbeatMessage heartbeat = HeartbeatMessage.ler(request.substring(0, separador));
+        int[] faixa = PartitionMap.lerFaixa(request.substring(separador + 1));
+        PartitionMap.Particao particao = new PartitionMap.Particao(faixa[0], faixa[1], host, heartbeat.porta());
+        String chave = host + ":" + heartbeat.porta();
+
+        long agora = System.nanoTime();
+        PhiAccrualDetector detector = detectoresParticoes.get(chave);
+        if (detector == null) {
+            detector = detectoresParticoes.computeIfAbsent(chave,
+                    c -> new PhiAccrualDetector(TimeUnit.MILLISECONDS.toNanos(HeartbeatMessage.INTERVALO_MS), LIMIAR_PHI, agora));
+        } else {
+            detector.registrar(agora);
+        }
+        if (!detector.ativo || !particao.equals(particoes.get(chave))) {
+            synchronized (detector) {
+                detector.ativo = true;
+                detector.no = heartbeat.no();
+                particoes.put(chave, particao);
+                publicarMapa();
+                System.out.printf("Serviço de transferência %s ativo em %s (faixa %d-%d).%n", heartbeat.no(), chave,
+                        faixa[0], faixa[1]);
+            }
+        }
+    }
+
+    private synchronized void publicarMapa() {
+        mapa = PartitionMap.de(particoes.values());
+    }
+
     private void handleHttpRequest(HttpExchange exchange) throws IOException {
         try {
             String requestBody = new String(exchange.getRequestBody().readAllBytes()).trim();
-            int serverPort = Integer.parseInt(requestBody);
-            handleServerResponse(serverPort, true);
+            handleServerResponse(Protocolo.HTTP, HeartbeatMessage.ler(requestBody));
 
             exchange.sendResponseHeaders(200, 0);
         } catch (Exception e) {
@@ -118,22 +195,78 @@ public class Heartbeat implements Runnable {
         }
     }
 
-    private void handleServerResponse(int port, boolean isActive) {
-        long currentTime = System.currentTimeMillis();
-        if (isActive) {
-            lastResponseTimes.put(port, currentTime);
-            activeServers.add(port);
+    private void handleServerResponse(Protocolo protocolo, HeartbeatMessage heartbeat) {
+        long agora = System.nanoTime();
+        PhiAccrualDetector detector = detectores.get(protocolo).get(heartbeat.porta());
+        if (detector == null) {
+            detector = detectores.get(protocolo).computeIfAbsent(heartbeat.porta(),
+                    p -> new PhiAccrualDetector(TimeUnit.MILLISECONDS.toNanos(HeartbeatMessage.INTERVALO_MS), LIMIAR_PHI, agora));
+        } else {
+            detector.registrar(agora);
+        }
+        if (!detector.ativo || detector.capacidade != heartbeat.capacidade() || !heartbeat.no().equals(detector.no)) {
+            ativar(protocolo, detector, heartbeat);
+        }
+    }
+
+    private void ativar(Protocolo protocolo, PhiAccrualDetector detector, HeartbeatMessage heartbeat) {
+        synchronized (detector) {
+            detector.ativo = true;
+            detector.no = heartbeat.no();
+            detector.capacidade = heartbeat.capacidade();
+            if (registro.balanceador(protocolo).adicionar(heartbeat.porta(), heartbeat.no(), heartbeat.capacidade())) {
+                System.out.printf("Servidor %s %s ativo na porta %d (capacidade %d).%n", protocolo, heartbeat.no(),
+                        heartbeat.porta(), heartbeat.capacidade());
+            }
         }
     }
 
     private void checkServers() {
-        long currentTime = System.currentTimeMillis();
-        for (Integer port : new HashSet<>(activeServers)) {
-            if (lastResponseTimes.containsKey(port) &&
-                    (currentTime - lastResponseTimes.get(port) > SERVER_TIMEOUT)) {
-                System.out.printf("Servidor na porta %d não respondeu a tempo.%n", port);
-                activeServers.remove(port);
+        for (Protocolo protocolo : Protocolo.values()) {
+            for (Map.Entry<Integer, PhiAccrualDetector> entrada : detectores.get(protocolo).entrySet()) {
+                PhiAccrualDetector detector = entrada.getValue();
+                if (detector.ativo && suspeito(detector, System.nanoTime())) {
+                    desativar(protocolo, entrada.getKey(), detector);
+                }
+            }
+        }
+        for (Map.Entry<String, PhiAccrualDetector> entrada : detectoresParticoes.entrySet()) {
+            PhiAccrualDetector detector = entrada.getValue();
+            if (detector.ativo && suspeito(detector, System.nanoTime())) {
+                desativarParticao(entrada.getKey(), detector);
+            }
+        }
+    }
+
+    private void desativarParticao(String chave, PhiAccrualDetector detector) {
+        synchronized (detector) {
+            long agora = System.nanoTime();
+            if (!detector.ativo || !suspeito(detector, agora)) {
+                return;
             }
+            detector.ativo = false;
+            particoes.remove(chave);
+            publicarMapa();
+            System.out.printf("Serviço de transferência em %s não respondeu a tempo (%d ms sem heartbeat).%n", chave,
+                    TimeUnit.NANOSECONDS.toMillis(agora - detector.getUltimo()));
         }
     }
+
+    private void desativar(Protocolo protocolo, int port, PhiAccrualDetector detector) {
+        synchronized (detector) {
+            // Um heartbeat pode ter chegado desde a verificação
+            long agora = System.nanoTime();
+            if (!detector.ativo || !suspeito(detector, agora)) {
+                return;
+            }
+            detector.ativo = false;
+            registro.balanceador(protocolo).remover(port);
+            System.out.printf("Servidor %s na porta %d não respondeu a tempo (%d ms sem heartbeat).%n", protocolo,
+                    port, TimeUnit.NANOSECONDS.toMillis(agora - detector.getUltimo()));
+        }
+    }
+
+    private static boolean suspeito(PhiAccrualDetector detector, long agora) {
+        return agora - detector.getUltimo() > SERVER_TIMEOUT_NANOS || detector.phi(agora) > LIMIAR_PHI;
+    }
 }
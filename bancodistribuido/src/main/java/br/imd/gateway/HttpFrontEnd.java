@@ -0,0 +1,189 @@
+package br.imd.gateway;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.OptionalLong;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import br.imd.balancer.Backend;
+import br.imd.balancer.LoadBalancer;
+import br.imd.concurrent.ExecutorFactory;
+
+/**
+ * Entrada HTTP do gateway.
+ *
+ * O handler só dispara a chamada assíncrona ao servidor escolhido e libera a
+ * thread. As chamadas usam um {@link HttpClient} compartilhado, com conexões
+ * HTTP/1.1 persistentes com os servidores. A resposta é repassada ao cliente
+ * em streaming assim que os cabeçalhos chegam.
+ *
+ * O corpo da requisição também vai em streaming, exceto no GET: como só GET é
+ * refeito em outro servidor depois de enviado ({@link RetryPolicy}), o corpo
+ * dele é guardado para poder ser reenviado.
+ */
+public class HttpFrontEnd {
+    private static final long TIMEOUT_CONEXAO_MS = 5000;
+
+    private final int porta;
+    private final LoadBalancer balanceador;
+    private final ExecutorService executor;
+    private final HttpClient cliente;
+
+    /** @param executor threads que atendem os clientes do gateway */
+    public HttpFrontEnd(int porta, LoadBalancer balanceador, ExecutorService executor) {
+        this.porta = porta;
+        this.balanceador = balanceador;
+        this.executor = executor;
+        this.cliente = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofMillis(TIMEOUT_CONEXAO_MS))
+                .executor(ExecutorFactory.porRequisicao("gateway-http-respostas",
+                        Runtime.getRuntime().availableProcessors() * 2))
+                .build();
+    }
+
+    public void start() throws IOException {
+        HttpServer httpServer = HttpServer.create(new InetSocketAddress(porta), 0);
+        httpServer.createContext("/", this::atender);
+        httpServer.setExecutor(executor);
+        httpServer.start();
+        System.out.println("Gateway escutando HTTP na porta " + porta);
+    }
+
+    private void atender(HttpExchange exchange) throws IOException {
+        String metodo = exchange.getRequestMethod();
+        if (!"POST".equals(metodo) && !"GET".equals(metodo) && !"PUT".equals(metodo)) {
+            responder(exchange, 405, "Método HTTP não suportado");
+            return;
+        }
+        Backend servidor;
+        try {
+            servidor = balanceador.escolher();
+        } catch (IllegalStateException e) {
+            responder(exchange, 503, e.getMessage());
+            return;
+        }
+        byte[] corpoGuardado = "GET".equals(metodo) ? exchange.getRequestBody().readAllBytes() : null;
+        new Encaminhamento(exchange, corpoGuardado).enviar(servidor);
+    }
+
+    private static void responder(HttpExchange exchange, int status, String mensagem) {
+        byte[] corpo = mensagem.getBytes();
+        try {
+            exchange.sendResponseHeaders(status, corpo.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(corpo);
+            }
+        } catch (IOException e) {
+            System.err.println("Erro ao responder cliente HTTP: " + e.getMessage());
+            exchange.close();
+        }
+    }
+
+    /** Uma requisição de cliente e suas tentativas. */
+    private final class Encaminhamento {
+        private final HttpExchange exchange;
+        private final byte[] corpoGuardado;
+        private final long prazo;
+        private Backend servidor;
+        private long inicio;
+        private long ticket;
+        private int tentativas = 1;
+
+        Encaminhamento(HttpExchange exchange, byte[] corpoGuardado) {
+            this.exchange = exchange;
+            this.corpoGuardado = corpoGuardado;
+            this.prazo = System.nanoTime() + RetryPolicy.PRAZO_NANOS;
+        }
+
+        void enviar(Backend servidor) {
+            this.servidor = servidor;
+            inicio = System.nanoTime();
+            ticket = servidor.iniciar();
+            HttpRequest request = HttpRequest
+                    .newBuilder(URI.create("http://localhost:" + servidor.getPorta() + exchange.getRequestURI().getRawPath()))
+                    .timeout(Duration.ofNanos(Math.max(prazo - inicio, TimeUnit.MILLISECONDS.toNanos(1))))
+                    .method(exchange.getRequestMethod(), corpo())
+                    .build();
+            cliente.sendAsync(request, HttpResponse.BodyHandlers.ofInputStream()).whenComplete(this::aoResponder);
+        }
+
+        private HttpRequest.BodyPublisher corpo() {
+            if (corpoGuardado != null) {
+                return HttpRequest.BodyPublishers.ofByteArray(corpoGuardado);
+            }
+            HttpRequest.BodyPublisher stream = HttpRequest.BodyPublishers.ofInputStream(exchange::getRequestBody);
+            String tamanho = exchange.getRequestHeaders().getFirst("Content-Length");
+            if (tamanho == null) {
+                return stream;
+            }
+            // Com o tamanho conhecido o servidor recebe Content-Length em vez de chunked
+            return HttpRequest.BodyPublishers.fromPublisher(stream, Long.parseLong(tamanho.trim()));
+        }
+
+        private void aoResponder(HttpResponse<InputStream> resposta, Throwable erro) {
+            if (erro != null) {
+                aposFalha(erro instanceof CompletionException && erro.getCause() != null ? erro.getCause() : erro);
+                return;
+            }
+            int status = resposta.statusCode();
+            try (InputStream corpo = resposta.body()) {
+                OptionalLong tamanho = resposta.headers().firstValueAsLong("Content-Length");
+                // 0 no sendResponseHeaders é chunked; -1 é sem corpo
+                exchange.sendResponseHeaders(status, tamanho.isPresent() ? (tamanho.getAsLong() == 0 ? -1
+                        : tamanho.getAsLong()) : 0);
+                try (OutputStream saida = exchange.getResponseBody()) {
+                    corpo.transferTo(saida);
+                }
+            } catch (IOException e) {
+                // A resposta já começou a ir para o cliente: não dá para refazer
+                servidor.falhar(ticket, System.nanoTime() - inicio);
+                System.err.println("Erro ao repassar resposta do servidor " + servidor.getPorta() + ": "
+                        + e.getMessage());
+                exchange.close();
+                return;
+            }
+            if (status >= 500) {
+                servidor.falhar(ticket, System.nanoTime() - inicio);
+            } else {
+                servidor.concluir(ticket, System.nanoTime() - inicio);
+            }
+            System.out.println("Resposta recebida do servidor: " + status);
+        }
+
+        private void aposFalha(Throwable causa) {
+            long agora = System.nanoTime();
+            servidor.falhar(ticket, agora - inicio);
+            System.out.println("Não foi possível se conectar com o servidor: " + servidor.getPorta() + ". " + causa);
+            boolean enviado = !(causa instanceof ConnectException || causa instanceof HttpConnectTimeoutException);
+            if (RetryPolicy.podeRepetir(tentativas, prazo - agora, corpoGuardado != null, enviado)) {
+                Backend outro = balanceador.escolherOutro(servidor);
+                if (outro != null) {
+                    tentativas++;
+                    enviar(outro);
+                    return;
+                }
+            }
+            if (causa instanceof HttpTimeoutException && enviado) {
+                responder(exchange, 504, "Erro: o servidor " + servidor.getPorta() + " não respondeu a tempo.");
+            } else {
+                responder(exchange, 502, "Erro: falha na comunicação com o servidor " + servidor.getPorta() + ".");
+            }
+        }
+    }
+}
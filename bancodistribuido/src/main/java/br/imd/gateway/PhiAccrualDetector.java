@@ -0,0 +1,90 @@
+package br.imd.gateway;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Detector de falhas phi-accrual de um servidor.
+ *
+ * Guarda os últimos intervalos entre heartbeats e calcula o quanto o atraso
+ * atual é improvável para essa distribuição (phi = -log10 da probabilidade
+ * de o heartbeat ainda chegar). Um nó que manda a cada 250 ms é dado como
+ * morto em poucas centenas de ms; um com rede instável ganha mais folga.
+ * O intervalo de quando o nó já tinha passado do limiar (ficou fora e
+ * voltou) não entra na janela, senão o detector ficaria lento para perceber
+ * a próxima queda.
+ *
+ * Só a thread do listener do protocolo chama {@link #registrar}; o verificador
+ * lê o estado publicado sem travar e sem alocar.
+ */
+final class PhiAccrualDetector {
+    private static final int JANELA = 100;
+    private static final double DESVIO_MINIMO_NANOS = TimeUnit.MILLISECONDS
+            .toNanos(Long.getLong("banco.heartbeat.desvioMinimoMs", 50L));
+
+    private final double limiar;
+    private final long[] intervalos = new long[JANELA];
+    private int quantidade;
+    private int proximo;
+    private double soma;
+    private double somaQuadrados;
+
+    private final AtomicLong ultimo = new AtomicLong();
+    private volatile double media;
+    private volatile double desvio;
+    // Estado no balanceador; só muda com o lock deste objeto
+    volatile boolean ativo;
+    volatile String no;
+    volatile int capacidade;
+
+    /**
+     * @param intervaloEsperado intervalo anunciado, usado até haver amostras
+     * @param limiar phi a partir do qual o nó é dado como morto
+     */
+    PhiAccrualDetector(long intervaloEsperado, double limiar, long agora) {
+        this.limiar = limiar;
+        this.media = intervaloEsperado;
+        this.desvio = intervaloEsperado / 4.0;
+        this.ultimo.set(agora);
+    }
+
+    void registrar(long agora) {
+        boolean suspeito = phi(agora) > limiar;
+        long intervalo = agora - ultimo.getAndSet(agora);
+        if (suspeito) {
+            return;
+        }
+        if (quantidade == JANELA) {
+            long antigo = intervalos[proximo];
+            soma -= antigo;
+            somaQuadrados -= (double) antigo * antigo;
+        } else {
+            quantidade++;
+        }
+        intervalos[proximo] = intervalo;
+        proximo = (proximo + 1) % JANELA;
+        soma += intervalo;
+        somaQuadrados += (double) intervalo * intervalo;
+
+        double m = soma / quantidade;
+        media = m;
+        desvio = Math.sqrt(Math.max(0, somaQuadrados / quantidade - m * m));
+    }
+
+    long getUltimo() {
+        return ultimo.get();
+    }
+
+    double phi(long agora) {
+        double decorrido = agora - ultimo.get();
+        double m = media;
+        double d = Math.max(desvio, DESVIO_MINIMO_NANOS);
+        // Aproximação logística da normal acumulada
+        double y = (decorrido - m) / d;
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        if (decorrido > m) {
+            return -Math.log10(e / (1.0 + e));
+        }
+        return -Math.log10(1.0 - 1.0 / (1.0 + e));
+    }
+}
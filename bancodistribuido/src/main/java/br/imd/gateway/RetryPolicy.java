@@ -0,0 +1,38 @@
+package br.imd.gateway;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Quando o gateway pode refazer uma requisição em outro servidor.
+ *
+ * Comandos de consulta podem ser repetidos após qualquer falha. Os que
+ * alteram saldo ou cadastro só são repetidos se não chegaram a ser enviados
+ * (falha de conexão, circuito aberto), para não aplicar duas vezes. Nada é
+ * repetido depois do prazo total da requisição ({@code banco.gateway.prazoMs})
+ * nem além de {@code banco.gateway.tentativas} tentativas.
+ */
+final class RetryPolicy {
+    static final int MAX_TENTATIVAS = Integer.getInteger("banco.gateway.tentativas", 3);
+    static final long PRAZO_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("banco.gateway.prazoMs", 10000L));
+
+    private static final Set<String> IDEMPOTENTES = Set.of("LISTAR_CONTAS", "LISTAR_CONTAS_PAGINA", "LISTAR_BANCOS");
+
+    private RetryPolicy() {
+    }
+
+    static boolean idempotente(String comando) {
+        int fim = comando.indexOf('-');
+        String acao = (fim < 0 ? comando : comando.substring(0, fim)).trim();
+        return IDEMPOTENTES.contains(acao.toUpperCase());
+    }
+
+    /**
+     * @param tentativas quantas tentativas já foram feitas
+     * @param restante   nanos até o prazo da requisição
+     * @param enviado    se o servidor pode ter recebido o comando
+     */
+    static boolean podeRepetir(int tentativas, long restante, boolean idempotente, boolean enviado) {
+        return tentativas < MAX_TENTATIVAS && restante > 0 && (idempotente || !enviado);
+    }
+}
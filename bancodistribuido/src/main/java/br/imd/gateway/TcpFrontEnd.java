@@ -0,0 +1,831 @@
+package br.imd.gateway;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import br.imd.balancer.Backend;
+import br.imd.balancer.LoadBalancer;
+import br.imd.processors.MuxFraming;
+
+/**
+ * Entrada TCP do gateway sobre NIO.
+ *
+ * Uma thread aceita conexões e as distribui entre os event loops (um por
+ * núcleo por padrão, {@code banco.gateway.tcp.loops}). Cada loop tem seu
+ * {@link Selector} e cuida tanto das conexões dos clientes quanto das
+ * conexões com os servidores para onde os comandos são encaminhados, sem
+ * bloquear. Os comandos são linhas terminadas em '\n'; as respostas voltam
+ * na ordem em que os comandos chegaram.
+ *
+ * Com os servidores, cada loop mantém até
+ * {@code banco.gateway.tcp.conexoesPorServidor} conexões persistentes por
+ * servidor, com vários comandos em voo em cada uma ({@link MuxFraming}).
+ * Servidores que não aceitam o modo multiplexado recebem uma conexão por
+ * comando. Se o servidor falha, o comando é refeito em outro conforme a
+ * {@link RetryPolicy}.
+ *
+ * Por padrão a conexão é fechada depois da primeira resposta, como antes.
+ * Com {@code -Dbanco.gateway.tcp.keepAlive=true} o cliente pode mandar vários
+ * comandos na mesma conexão.
+ */
+public class TcpFrontEnd {
+    private static final boolean KEEP_ALIVE = Boolean.getBoolean("banco.gateway.tcp.keepAlive");
+    private static final int TAMANHO_MAXIMO_LINHA = Integer.getInteger("banco.gateway.tcp.linhaMaxima", 64 * 1024);
+    private static final int TAMANHO_MAXIMO_RESPOSTA = 4 * 1024 * 1024;
+    // Comandos lidos e ainda não encaminhados; acima disso a leitura pausa
+    private static final int MAX_PENDENTES = Integer.getInteger("banco.gateway.tcp.pendentesPorConexao", 64);
+    private static final long TIMEOUT_CONEXAO_MS = 5000;
+    private static final long TIMEOUT_MS = Long.getLong("banco.gateway.tcp.timeoutMs", 10000L);
+    private static final long INTERVALO_VERIFICACAO_MS = 250;
+    private static final boolean MULTIPLEXAR = Boolean.parseBoolean(
+            System.getProperty("banco.gateway.tcp.multiplexar", "true"));
+    private static final int CONEXOES_POR_SERVIDOR = Integer.getInteger("banco.gateway.tcp.conexoesPorServidor", 2);
+    private static final byte[] HELLO = mensagem(MuxFraming.HELLO + "\n");
+
+    private final int porta;
+    private final LoadBalancer balanceador;
+    private final EventLoop[] loops;
+
+    public TcpFrontEnd(int porta, LoadBalancer balanceador) throws IOException {
+        this.porta = porta;
+        this.balanceador = balanceador;
+        int quantidade = Integer.getInteger("banco.gateway.tcp.loops", Runtime.getRuntime().availableProcessors());
+        this.loops = new EventLoop[Math.max(1, quantidade)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop();
+        }
+    }
+
+    public void start() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            new Thread(loops[i], "gateway-tcp-loop-" + i).start();
+        }
+        ServerSocketChannel servidor = ServerSocketChannel.open();
+        servidor.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        servidor.bind(new InetSocketAddress(porta), 1024);
+        new Thread(() -> aceitar(servidor), "gateway-tcp-accept").start();
+        System.out.println("Gateway escutando TCP na porta " + porta + " (" + loops.length + " event loops)");
+    }
+
+    private void aceitar(ServerSocketChannel servidor) {
+        int proximo = 0;
+        while (servidor.isOpen()) {
+            try {
+                SocketChannel canal = servidor.accept();
+                canal.configureBlocking(false);
+                canal.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                EventLoop loop = loops[proximo];
+                proximo = (proximo + 1) % loops.length;
+                loop.executar(() -> loop.registrarCliente(canal));
+            } catch (IOException e) {
+                System.err.println("Erro ao aceitar conexão TCP: " + e.getMessage());
+            }
+        }
+    }
+
+    private static byte[] mensagem(String texto) {
+        return texto.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Um selector e as conexões registradas nele. Tudo aqui roda na thread do
+     * loop; outras threads só entregam tarefas por {@link #executar}.
+     */
+    private final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tarefas = new ConcurrentLinkedQueue<>();
+        // Aguardando resposta; cada um vence no próprio limite
+        private final LinkedHashSet<Encaminhamento> emAndamento = new LinkedHashSet<>();
+        private final Map<Integer, List<ConexaoServidor>> conexoes = new HashMap<>();
+        private final Set<Integer> semMultiplexacao = new HashSet<>();
+        private long proximaVerificacao;
+
+        EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void executar(Runnable tarefa) {
+            tarefas.add(tarefa);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select(INTERVALO_VERIFICACAO_MS);
+                    Runnable tarefa;
+                    while ((tarefa = tarefas.poll()) != null) {
+                        tarefa.run();
+                    }
+                    Iterator<SelectionKey> chaves = selector.selectedKeys().iterator();
+                    while (chaves.hasNext()) {
+                        SelectionKey chave = chaves.next();
+                        chaves.remove();
+                        processar(chave);
+                    }
+                    long agora = System.currentTimeMillis();
+                    if (agora >= proximaVerificacao) {
+                        verificarTimeouts(agora);
+                        proximaVerificacao = agora + INTERVALO_VERIFICACAO_MS;
+                    }
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("Erro no event loop TCP do gateway: " + e.getMessage());
+                }
+            }
+        }
+
+        void registrarCliente(SocketChannel canal) {
+            try {
+                Cliente cliente = new Cliente(this, canal);
+                cliente.chave = canal.register(selector, SelectionKey.OP_READ, cliente);
+            } catch (ClosedChannelException e) {
+                fecharSilenciosamente(canal);
+            }
+        }
+
+        /**
+         * A conexão do pool com menos comandos em voo, abrindo outra enquanto
+         * o limite por servidor não foi atingido.
+         */
+        ConexaoServidor conexaoPara(int porta) {
+            List<ConexaoServidor> doServidor = conexoes.computeIfAbsent(porta, p -> new ArrayList<>());
+            ConexaoServidor melhor = null;
+            for (ConexaoServidor c : doServidor) {
+                if (melhor == null || c.emVoo() < melhor.emVoo()) {
+                    melhor = c;
+                }
+            }
+            if (melhor == null || (melhor.emVoo() > 0 && doServidor.size() < CONEXOES_POR_SERVIDOR)) {
+                melhor = new ConexaoServidor(this, porta);
+                doServidor.add(melhor);
+                melhor.abrir();
+            }
+            return melhor;
+        }
+
+        private void processar(SelectionKey chave) {
+            Object anexo = chave.attachment();
+            try {
+                if (anexo instanceof Cliente cliente) {
+                    if (chave.isValid() && chave.isReadable()) {
+                        cliente.ler();
+                    }
+                    if (chave.isValid() && chave.isWritable()) {
+                        cliente.escrever();
+                    }
+                } else if (anexo instanceof Encaminhamento encaminhamento) {
+                    if (chave.isValid() && chave.isConnectable()) {
+                        encaminhamento.conectar();
+                    }
+                    if (chave.isValid() && chave.isWritable()) {
+                        encaminhamento.escrever();
+                    }
+                    if (chave.isValid() && chave.isReadable()) {
+                        encaminhamento.ler();
+                    }
+                } else if (anexo instanceof ConexaoServidor conexao) {
+                    if (chave.isValid() && chave.isConnectable()) {
+                        conexao.conectar();
+                    }
+                    if (chave.isValid() && chave.isWritable()) {
+                        conexao.escrever();
+                    }
+                    if (chave.isValid() && chave.isReadable()) {
+                        conexao.ler();
+                    }
+                }
+            } catch (IOException e) {
+                if (anexo instanceof Cliente cliente) {
+                    cliente.fechar();
+                } else if (anexo instanceof Encaminhamento encaminhamento) {
+                    encaminhamento.falhar("Erro: falha na comunicação com o servidor " + encaminhamento.portaServidor
+                            + ": " + e.getMessage());
+                } else if (anexo instanceof ConexaoServidor conexao) {
+                    conexao.fechar("Erro: falha na comunicação com o servidor " + conexao.porta + ": "
+                            + e.getMessage());
+                }
+            }
+        }
+
+        private void verificarTimeouts(long agora) {
+            List<ConexaoServidor> semResposta = null;
+            for (List<ConexaoServidor> doServidor : conexoes.values()) {
+                for (ConexaoServidor c : doServidor) {
+                    if (!c.pronta && agora >= c.inicio + TIMEOUT_CONEXAO_MS) {
+                        if (semResposta == null) {
+                            semResposta = new ArrayList<>();
+                        }
+                        semResposta.add(c);
+                    }
+                }
+            }
+            if (semResposta != null) {
+                for (ConexaoServidor c : semResposta) {
+                    c.fechar("Erro: timeout ao se conectar ao servidor " + c.porta + ".");
+                }
+            }
+
+            List<Encaminhamento> vencidos = null;
+            for (Encaminhamento e : emAndamento) {
+                if ((!e.conectado && agora >= e.inicio + TIMEOUT_CONEXAO_MS) || agora >= e.limite) {
+                    if (vencidos == null) {
+                        vencidos = new ArrayList<>();
+                    }
+                    vencidos.add(e);
+                }
+            }
+            if (vencidos == null) {
+                return;
+            }
+            // Falhar um encaminhamento pode refazê-lo ou iniciar o próximo do
+            // mesmo cliente, por isso fora da iteração
+            for (Encaminhamento e : vencidos) {
+                if (!e.conectado) {
+                    e.falhar("Erro: timeout ao se conectar ao servidor " + e.portaServidor + ".");
+                } else {
+                    e.falhar("Erro: o servidor " + e.portaServidor + " não respondeu a tempo.");
+                }
+            }
+        }
+    }
+
+    /** Conexão de um cliente do gateway. */
+    private final class Cliente {
+        private final EventLoop loop;
+        private final SocketChannel canal;
+        private SelectionKey chave;
+        private ByteBuffer entrada = ByteBuffer.allocate(1024);
+        private final ArrayDeque<byte[]> pendentes = new ArrayDeque<>();
+        private final ArrayDeque<ByteBuffer> saida = new ArrayDeque<>();
+        private Encaminhamento atual;
+        private boolean fimEntrada;
+        private boolean encerrar;
+
+        Cliente(EventLoop loop, SocketChannel canal) {
+            this.loop = loop;
+            this.canal = canal;
+        }
+
+        void ler() throws IOException {
+            int lidos = canal.read(entrada);
+            if (lidos < 0) {
+                fimEntrada = true;
+                // Último comando sem '\n' também vale, como no readLine
+                if (entrada.position() > 0) {
+                    byte[] linha = new byte[entrada.position()];
+                    entrada.get(0, linha);
+                    entrada.clear();
+                    pendentes.add(linha);
+                }
+                alterarInteresse(SelectionKey.OP_READ, false);
+            } else {
+                extrairLinhas();
+            }
+            proximaRequisicao();
+            verificarFim();
+        }
+
+        private void extrairLinhas() {
+            int inicio = 0;
+            int fim = entrada.position();
+            for (int i = 0; i < fim; i++) {
+                if (entrada.get(i) == '\n') {
+                    int fimLinha = i > inicio && entrada.get(i - 1) == '\r' ? i - 1 : i;
+                    byte[] linha = new byte[fimLinha - inicio];
+                    entrada.get(inicio, linha);
+                    pendentes.add(linha);
+                    inicio = i + 1;
+                    if (!KEEP_ALIVE) {
+                        // Um comando por conexão: o resto é ignorado
+                        alterarInteresse(SelectionKey.OP_READ, false);
+                        entrada.clear();
+                        return;
+                    }
+                }
+            }
+            entrada.flip().position(inicio);
+            entrada.compact();
+
+            if (!entrada.hasRemaining()) {
+                if (entrada.capacity() >= TAMANHO_MAXIMO_LINHA) {
+                    encerrar = true;
+                    alterarInteresse(SelectionKey.OP_READ, false);
+                    pendentes.clear();
+                    enviar(mensagem("Erro: comando maior que " + TAMANHO_MAXIMO_LINHA + " bytes."));
+                    return;
+                }
+                entrada = aumentar(entrada, Math.min(entrada.capacity() * 2, TAMANHO_MAXIMO_LINHA));
+            }
+            if (pendentes.size() >= MAX_PENDENTES) {
+                alterarInteresse(SelectionKey.OP_READ, false);
+            }
+        }
+
+        private void proximaRequisicao() {
+            if (atual != null || encerrar || pendentes.isEmpty()) {
+                return;
+            }
+            byte[] linha = pendentes.poll();
+            if (KEEP_ALIVE && !fimEntrada && pendentes.size() < MAX_PENDENTES) {
+                alterarInteresse(SelectionKey.OP_READ, true);
+            }
+
+            Backend servidor;
+            try {
+                servidor = balanceador.escolher();
+            } catch (IllegalStateException e) {
+                aoResponder(mensagem("Erro: nenhum servidor disponível."));
+                return;
+            }
+            atual = new Encaminhamento(loop, this, linha, servidor);
+            atual.iniciar();
+        }
+
+        /** Chamado quando o comando atual termina, com a linha a devolver. */
+        void aoResponder(byte[] resposta) {
+            atual = null;
+            if (!canal.isOpen()) {
+                return;
+            }
+            enviar(resposta);
+            if (!KEEP_ALIVE) {
+                encerrar = true;
+            }
+            proximaRequisicao();
+            verificarFim();
+        }
+
+        private void enviar(byte[] linha) {
+            ByteBuffer buffer = ByteBuffer.allocate(linha.length + 1);
+            buffer.put(linha).put((byte) '\n').flip();
+            saida.add(buffer);
+            try {
+                escrever();
+            } catch (IOException e) {
+                fechar();
+            }
+        }
+
+        void escrever() throws IOException {
+            while (!saida.isEmpty()) {
+                ByteBuffer buffer = saida.peek();
+                canal.write(buffer);
+                if (buffer.hasRemaining()) {
+                    alterarInteresse(SelectionKey.OP_WRITE, true);
+                    return;
+                }
+                saida.poll();
+            }
+            alterarInteresse(SelectionKey.OP_WRITE, false);
+            verificarFim();
+        }
+
+        private void verificarFim() {
+            if (canal.isOpen() && saida.isEmpty() && atual == null
+                    && (encerrar || (fimEntrada && pendentes.isEmpty()))) {
+                fechar();
+            }
+        }
+
+        private void alterarInteresse(int operacao, boolean ligar) {
+            if (chave == null || !chave.isValid()) {
+                return;
+            }
+            int atuais = chave.interestOps();
+            int novos = ligar ? atuais | operacao : atuais & ~operacao;
+            if (novos != atuais) {
+                chave.interestOps(novos);
+            }
+        }
+
+        void fechar() {
+            fecharSilenciosamente(canal);
+            if (atual != null) {
+                atual.cancelar();
+                atual = null;
+            }
+        }
+    }
+
+    /**
+     * Um comando em encaminhamento para um servidor, por uma conexão
+     * multiplexada do pool ou, se o servidor não aceita, por uma conexão só
+     * dele.
+     */
+    private final class Encaminhamento {
+        private final EventLoop loop;
+        private final Cliente cliente;
+        private final byte[] linha;
+        private final boolean idempotente;
+        private final long prazoNanos;
+        private Backend servidor;
+        private int portaServidor;
+        private int tentativas = 1;
+        private long inicio;
+        private long inicioNanos;
+        private long ticket;
+        // Fim da tentativa atual: o timeout ou o prazo da requisição
+        private long limite;
+        private boolean conectado;
+        // Se o servidor pode ter recebido o comando nesta tentativa
+        private boolean enviado;
+        private boolean concluido;
+
+        // Modo multiplexado
+        private ConexaoServidor conexao;
+        private long id;
+
+        // Modo uma conexão por comando
+        private SocketChannel canal;
+        private SelectionKey chave;
+        private ByteBuffer requisicao;
+        private ByteBuffer resposta;
+
+        Encaminhamento(EventLoop loop, Cliente cliente, byte[] linha, Backend servidor) {
+            this.loop = loop;
+            this.cliente = cliente;
+            this.servidor = servidor;
+            this.portaServidor = servidor.getPorta();
+            this.linha = linha;
+            this.idempotente = RetryPolicy.idempotente(new String(linha, StandardCharsets.UTF_8));
+            this.prazoNanos = System.nanoTime() + RetryPolicy.PRAZO_NANOS;
+        }
+
+        void iniciar() {
+            inicio = System.currentTimeMillis();
+            inicioNanos = System.nanoTime();
+            limite = inicio + Math.min(TIMEOUT_MS, TimeUnit.NANOSECONDS.toMillis(prazoNanos - inicioNanos));
+            enviado = false;
+            ticket = servidor.iniciar();
+            loop.emAndamento.add(this);
+            if (MULTIPLEXAR && !loop.semMultiplexacao.contains(portaServidor)) {
+                // O timeout de conexão fica a cargo da conexão do pool
+                conectado = true;
+                loop.conexaoPara(portaServidor).enviar(this);
+            } else {
+                iniciarDireto();
+            }
+        }
+
+        void iniciarDireto() {
+            conexao = null;
+            conectado = false;
+            requisicao = ByteBuffer.allocate(linha.length + 1);
+            requisicao.put(linha).put((byte) '\n').flip();
+            resposta = ByteBuffer.allocate(512);
+            try {
+                canal = SocketChannel.open();
+                canal.configureBlocking(false);
+                canal.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                if (canal.connect(new InetSocketAddress("localhost", portaServidor))) {
+                    conectado = true;
+                    chave = canal.register(loop.selector, SelectionKey.OP_WRITE, this);
+                } else {
+                    chave = canal.register(loop.selector, SelectionKey.OP_CONNECT, this);
+                }
+            } catch (IOException e) {
+                falhar("Erro: não foi possível se conectar com o servidor " + portaServidor + ". " + e.getMessage());
+            }
+        }
+
+        void conectar() throws IOException {
+            if (canal.finishConnect()) {
+                conectado = true;
+                chave.interestOps(SelectionKey.OP_WRITE);
+            }
+        }
+
+        void escrever() throws IOException {
+            enviado = true;
+            canal.write(requisicao);
+            if (!requisicao.hasRemaining()) {
+                chave.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        void ler() throws IOException {
+            int antes = resposta.position();
+            int lidos = canal.read(resposta);
+            if (lidos < 0) {
+                // O servidor fecha a conexão depois de responder
+                if (resposta.position() > 0) {
+                    concluir(copiar(resposta, 0, resposta.position()));
+                } else {
+                    falhar("Erro: o servidor " + portaServidor + " fechou a conexão sem responder.");
+                }
+                return;
+            }
+            for (int i = antes; i < resposta.position(); i++) {
+                if (resposta.get(i) == '\n') {
+                    concluir(copiar(resposta, 0, i > 0 && resposta.get(i - 1) == '\r' ? i - 1 : i));
+                    return;
+                }
+            }
+            if (!resposta.hasRemaining()) {
+                if (resposta.capacity() >= TAMANHO_MAXIMO_RESPOSTA) {
+                    falhar("Erro: resposta do servidor muito grande.");
+                    return;
+                }
+                resposta = aumentar(resposta, resposta.capacity() * 2);
+            }
+        }
+
+        void falhar(String motivo) {
+            System.err.println(motivo);
+            aposFalha(mensagem(motivo));
+        }
+
+        /**
+         * Registra a falha no servidor atual e refaz o comando em outro se a
+         * {@link RetryPolicy} permitir; senão devolve {@code resposta}.
+         */
+        void aposFalha(byte[] resposta) {
+            if (concluido) {
+                return;
+            }
+            long agora = System.nanoTime();
+            servidor.falhar(ticket, agora - inicioNanos);
+            desligar();
+            if (RetryPolicy.podeRepetir(tentativas, prazoNanos - agora, idempotente, enviado)) {
+                Backend outro = balanceador.escolherOutro(servidor);
+                if (outro != null) {
+                    tentativas++;
+                    System.err.println("Refazendo o comando no servidor " + outro.getPorta() + " (tentativa "
+                            + tentativas + ").");
+                    servidor = outro;
+                    portaServidor = outro.getPorta();
+                    iniciar();
+                    return;
+                }
+            }
+            concluido = true;
+            cliente.aoResponder(resposta);
+        }
+
+        void concluir(byte[] linhaResposta) {
+            if (concluido) {
+                return;
+            }
+            servidor.concluir(ticket, System.nanoTime() - inicioNanos);
+            concluido = true;
+            desligar();
+            cliente.aoResponder(linhaResposta);
+        }
+
+        /** O cliente foi embora antes da resposta. */
+        void cancelar() {
+            if (!concluido) {
+                servidor.abandonar(ticket);
+                concluido = true;
+                desligar();
+            }
+        }
+
+        /** Solta a conexão da tentativa atual. */
+        private void desligar() {
+            loop.emAndamento.remove(this);
+            if (conexao != null) {
+                conexao.esquecer(this);
+                conexao = null;
+            }
+            if (canal != null) {
+                fecharSilenciosamente(canal);
+                canal = null;
+                chave = null;
+            }
+        }
+    }
+
+    /**
+     * Conexão persistente com um servidor, com vários comandos em voo
+     * identificados pelo id do {@link MuxFraming}.
+     */
+    private final class ConexaoServidor {
+        private final EventLoop loop;
+        private final int porta;
+        private final HashMap<Long, Encaminhamento> emVoo = new HashMap<>();
+        // Comandos que chegaram antes da resposta ao HELLO
+        private final ArrayDeque<Encaminhamento> aguardandoHello = new ArrayDeque<>();
+        private SocketChannel canal;
+        private SelectionKey chave;
+        private ByteBuffer saida = ByteBuffer.allocate(4096);
+        private ByteBuffer entrada = ByteBuffer.allocate(4096);
+        private long inicio;
+        private boolean conectada;
+        private boolean pronta;
+        private boolean fechada;
+        private long proximoId;
+
+        ConexaoServidor(EventLoop loop, int porta) {
+            this.loop = loop;
+            this.porta = porta;
+        }
+
+        int emVoo() {
+            return emVoo.size() + aguardandoHello.size();
+        }
+
+        void abrir() {
+            inicio = System.currentTimeMillis();
+            saida.put(HELLO);
+            try {
+                canal = SocketChannel.open();
+                canal.configureBlocking(false);
+                canal.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                if (canal.connect(new InetSocketAddress("localhost", porta))) {
+                    conectada = true;
+                    chave = canal.register(loop.selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE, this);
+                } else {
+                    chave = canal.register(loop.selector, SelectionKey.OP_CONNECT, this);
+                }
+            } catch (IOException e) {
+                // Sem falhar aqui: quem pediu a conexão ainda vai chamar enviar
+                fechada = true;
+                loop.executar(() -> fechar("Erro: não foi possível se conectar com o servidor " + porta + ". "
+                        + e.getMessage()));
+            }
+        }
+
+        void enviar(Encaminhamento e) {
+            e.conexao = this;
+            if (!pronta) {
+                aguardandoHello.add(e);
+                return;
+            }
+            e.id = ++proximoId;
+            e.enviado = true;
+            emVoo.put(e.id, e);
+            byte[] cabecalho = mensagem(MuxFraming.INICIO + Long.toString(e.id) + MuxFraming.SEPARADOR);
+            int necessario = cabecalho.length + e.linha.length + 1;
+            if (saida.remaining() < necessario) {
+                saida = aumentar(saida, Math.max(saida.capacity() * 2, saida.position() + necessario));
+            }
+            saida.put(cabecalho).put(e.linha).put((byte) '\n');
+            if (conectada) {
+                try {
+                    escrever();
+                } catch (IOException ex) {
+                    fechar("Erro: falha na comunicação com o servidor " + porta + ": " + ex.getMessage());
+                }
+            }
+        }
+
+        void esquecer(Encaminhamento e) {
+            if (emVoo.remove(e.id) == null) {
+                aguardandoHello.remove(e);
+            }
+        }
+
+        void conectar() throws IOException {
+            if (canal.finishConnect()) {
+                conectada = true;
+                chave.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+
+        void escrever() throws IOException {
+            saida.flip();
+            canal.write(saida);
+            boolean restou = saida.hasRemaining();
+            saida.compact();
+            int interesse = SelectionKey.OP_READ | (restou ? SelectionKey.OP_WRITE : 0);
+            if (chave.isValid() && chave.interestOps() != interesse) {
+                chave.interestOps(interesse);
+            }
+        }
+
+        void ler() throws IOException {
+            int lidos = canal.read(entrada);
+            if (lidos < 0) {
+                fechar("Erro: o servidor " + porta + " fechou a conexão.");
+                return;
+            }
+            int inicioLinha = 0;
+            int fim = entrada.position();
+            for (int i = 0; i < fim && !fechada; i++) {
+                if (entrada.get(i) == '\n') {
+                    int fimLinha = i > inicioLinha && entrada.get(i - 1) == '\r' ? i - 1 : i;
+                    processarLinha(inicioLinha, fimLinha);
+                    inicioLinha = i + 1;
+                }
+            }
+            if (fechada) {
+                return;
+            }
+            entrada.flip().position(inicioLinha);
+            entrada.compact();
+            if (!entrada.hasRemaining()) {
+                if (entrada.capacity() >= TAMANHO_MAXIMO_RESPOSTA) {
+                    fechar("Erro: resposta do servidor muito grande.");
+                    return;
+                }
+                entrada = aumentar(entrada, entrada.capacity() * 2);
+            }
+        }
+
+        private void processarLinha(int inicioLinha, int fimLinha) {
+            if (!pronta) {
+                if (MuxFraming.HELLO_OK.equals(new String(copiar(entrada, inicioLinha, fimLinha),
+                        StandardCharsets.UTF_8))) {
+                    pronta = true;
+                    Encaminhamento e;
+                    while ((e = aguardandoHello.poll()) != null) {
+                        enviar(e);
+                    }
+                } else {
+                    // Servidor antigo: uma conexão por comando
+                    loop.semMultiplexacao.add(porta);
+                    System.out.println("Servidor " + porta + " não aceita conexão multiplexada.");
+                    fechar(null);
+                }
+                return;
+            }
+
+            long id = 0;
+            int i = inicioLinha + 1;
+            if (fimLinha <= inicioLinha || entrada.get(inicioLinha) != MuxFraming.INICIO) {
+                return;
+            }
+            for (; i < fimLinha && entrada.get(i) != MuxFraming.SEPARADOR; i++) {
+                id = id * 10 + (entrada.get(i) - '0');
+            }
+            // Sem dono: o comando já expirou
+            Encaminhamento e = emVoo.remove(id);
+            if (e != null) {
+                e.concluir(copiar(entrada, Math.min(i + 1, fimLinha), fimLinha));
+            }
+        }
+
+        /**
+         * Fecha a conexão e encerra os comandos dela. Sem motivo (servidor que
+         * não aceita multiplexação), os comandos são refeitos uma conexão por
+         * comando.
+         */
+        void fechar(String motivo) {
+            fechada = true;
+            List<ConexaoServidor> doServidor = loop.conexoes.get(porta);
+            if (doServidor != null) {
+                doServidor.remove(this);
+            }
+            if (canal != null) {
+                fecharSilenciosamente(canal);
+            }
+
+            List<Encaminhamento> afetados = new ArrayList<>(emVoo.values());
+            afetados.addAll(aguardandoHello);
+            emVoo.clear();
+            aguardandoHello.clear();
+            if (motivo != null && !afetados.isEmpty()) {
+                System.err.println(motivo);
+            }
+            for (Encaminhamento e : afetados) {
+                if (motivo == null) {
+                    e.iniciarDireto();
+                } else {
+                    e.aposFalha(mensagem(motivo));
+                }
+            }
+        }
+    }
+
+    private static ByteBuffer aumentar(ByteBuffer buffer, int capacidade) {
+        ByteBuffer maior = ByteBuffer.allocate(capacidade);
+        buffer.flip();
+        return maior.put(buffer);
+    }
+
+    private static byte[] copiar(ByteBuffer buffer, int inicio, int fim) {
+        byte[] bytes = new byte[fim - inicio];
+        buffer.get(inicio, bytes);
+        return bytes;
+    }
+
+    private static void fecharSilenciosamente(SocketChannel canal) {
+        try {
+            canal.close();
+        } catch (IOException e) {
+            // nada a fazer
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package br.imd.gateway;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import br.imd.balancer.Backend;
+import br.imd.balancer.LoadBalancer;
+import br.imd.processors.MuxFraming;
+
+/**
+ * Entrada UDP do gateway.
+ *
+ * Os comandos são repassados aos servidores por poucos canais UDP fixos
+ * ({@code banco.gateway.udp.canais}), com o cabeçalho {@code @<id>|} de
+ * {@link MuxFraming}. O servidor devolve o mesmo cabeçalho e a resposta é
+ * casada com o cliente pela tabela de pendentes, sem abrir um socket nem
+ * reservar uma porta por requisição.
+ *
+ * Consultas sem resposta em {@code banco.gateway.udp.timeoutMs} são refeitas
+ * em outro servidor conforme a {@link RetryPolicy}; os demais comandos
+ * esperam até o prazo da requisição, já que não dá para saber se foram
+ * aplicados. Sem resposta, o cliente recebe uma mensagem de erro.
+ */
+public class UdpFrontEnd {
+    private static final int TAMANHO_BUFFER = 1024 * 2;
+    // Por tentativa, só para comandos idempotentes
+    private static final long TIMEOUT_NANOS = TimeUnit.MILLISECONDS
+            .toNanos(Long.getLong("banco.gateway.udp.timeoutMs", 3000L));
+    private static final int MAX_PENDENTES = Integer.getInteger("banco.gateway.udp.maxPendentes", 65536);
+    private static final long INTERVALO_VERIFICACAO_MS = 250;
+
+    private final int porta;
+    private final LoadBalancer balanceador;
+    private final DatagramChannel[] canaisServidores;
+    private final Map<Long, Pendente> pendentes = new ConcurrentHashMap<>();
+    private final AtomicLong proximoId = new AtomicLong();
+    private DatagramChannel entrada;
+    private InetAddress enderecoServidores;
+
+    public UdpFrontEnd(int porta, LoadBalancer balanceador) {
+        this.porta = porta;
+        this.balanceador = balanceador;
+        this.canaisServidores = new DatagramChannel[Math.max(1, Integer.getInteger("banco.gateway.udp.canais", 2))];
+    }
+
+    public void start() throws IOException {
+        enderecoServidores = InetAddress.getByName("localhost");
+        entrada = DatagramChannel.open().bind(new InetSocketAddress(porta));
+        for (int i = 0; i < canaisServidores.length; i++) {
+            DatagramChannel canal = DatagramChannel.open().bind(null);
+            canaisServidores[i] = canal;
+            new Thread(() -> receberRespostas(canal), "gateway-udp-respostas-" + i).start();
+        }
+
+        ScheduledExecutorService verificador = Executors.newSingleThreadScheduledExecutor();
+        verificador.scheduleAtFixedRate(this::descartarVencidos, INTERVALO_VERIFICACAO_MS, INTERVALO_VERIFICACAO_MS,
+                TimeUnit.MILLISECONDS);
+
+        new Thread(this::receberComandos, "gateway-udp-entrada").start();
+        System.out.println("Gateway escutando UDP na porta " + porta);
+    }
+
+    private void receberComandos() {
+        ByteBuffer buffer = ByteBuffer.allocate(TAMANHO_BUFFER);
+        while (entrada.isOpen()) {
+            try {
+                buffer.clear();
+                SocketAddress cliente = entrada.receive(buffer);
+                buffer.flip();
+                String request = new String(buffer.array(), 0, buffer.limit()).trim();
+                System.out.println("Recebendo pacote UDP: " + request);
+                encaminhar(request, cliente);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void encaminhar(String request, SocketAddress cliente) throws IOException {
+        if (pendentes.size() >= MAX_PENDENTES) {
+            entrada.send(ByteBuffer.wrap("Gateway sobrecarregado.".getBytes()), cliente);
+            return;
+        }
+        Backend servidor;
+        try {
+            servidor = balanceador.escolher();
+        } catch (IllegalStateException e) {
+            System.err.println("Nenhum servidor disponível para o comando UDP.");
+            responder(cliente, "Erro: nenhum servidor disponível.");
+            return;
+        }
+        enviar(new Pendente(request, cliente), servidor);
+    }
+
+    /**
+     * Uma tentativa. Cada uma tem seu id, então a resposta atrasada de uma
+     * tentativa anterior é descartada.
+     */
+    private void enviar(Pendente pendente, Backend servidor) {
+        long id = proximoId.incrementAndGet();
+        pendente.iniciarTentativa(servidor);
+        pendente.ticket = servidor.iniciar();
+        pendentes.put(id, pendente);
+        DatagramChannel canal = canaisServidores[(int) (id % canaisServidores.length)];
+        byte[] sendData = (MuxFraming.cabecalho(id) + pendente.request).getBytes();
+        try {
+            canal.send(ByteBuffer.wrap(sendData), new InetSocketAddress(enderecoServidores, servidor.getPorta()));
+        } catch (IOException e) {
+            if (pendentes.remove(id, pendente)) {
+                aposFalha(pendente, false, "Erro: falha ao enviar para o servidor " + servidor.getPorta() + ": "
+                        + e.getMessage());
+            }
+        }
+    }
+
+    private void aposFalha(Pendente pendente, boolean enviado, String motivo) {
+        long agora = System.nanoTime();
+        pendente.servidor.falhar(pendente.ticket, agora - pendente.inicio);
+        System.err.println(motivo);
+        if (RetryPolicy.podeRepetir(pendente.tentativas, pendente.prazo - agora, pendente.idempotente, enviado)) {
+            Backend outro = balanceador.escolherOutro(pendente.servidor);
+            if (outro != null) {
+                pendente.tentativas++;
+                System.err.println("Refazendo o comando UDP no servidor " + outro.getPorta() + " (tentativa "
+                        + pendente.tentativas + ").");
+                enviar(pendente, outro);
+                return;
+            }
+        }
+        responder(pendente.cliente, motivo);
+    }
+
+    private void responder(SocketAddress cliente, String mensagem) {
+        try {
+            entrada.send(ByteBuffer.wrap(mensagem.getBytes()), cliente);
+        } catch (IOException e) {
+            System.err.println("Erro ao responder cliente UDP: " + e.getMessage());
+        }
+    }
+
+    private void receberRespostas(DatagramChannel canal) {
+        ByteBuffer buffer = ByteBuffer.allocate(TAMANHO_BUFFER);
+        while (canal.isOpen()) {
+            try {
+                buffer.clear();
+                canal.receive(buffer);
+                buffer.flip();
+                String linha = new String(buffer.array(), 0, buffer.limit());
+                long id = MuxFraming.extrairId(linha);
+                Pendente pendente = id >= 0 ? pendentes.remove(id) : null;
+                if (pendente == null) {
+                    // Atrasada (já descartada) ou de um servidor sem o cabeçalho
+                    System.err.println("Resposta UDP sem requisição pendente descartada.");
+                    continue;
+                }
+                pendente.servidor.concluir(pendente.ticket, System.nanoTime() - pendente.inicio);
+                String response = MuxFraming.extrairConteudo(linha).trim();
+                System.out.println("Resposta recebida do servidor: " + response);
+                entrada.send(ByteBuffer.wrap(response.getBytes()), pendente.cliente);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void descartarVencidos() {
+        long agora = System.nanoTime();
+        Iterator<Map.Entry<Long, Pendente>> it = pendentes.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Pendente> entrada = it.next();
+            Pendente pendente = entrada.getValue();
+            // remove(chave, valor): a resposta pode ter chegado agora
+            if (agora - pendente.limite >= 0 && pendentes.remove(entrada.getKey(), pendente)) {
+                aposFalha(pendente, true,
+                        "Erro: o servidor " + pendente.servidor.getPorta() + " não respondeu a tempo.");
+            }
+        }
+    }
+
+    /**
+     * Uma requisição de cliente. Só quem a tira da tabela de pendentes mexe
+     * nela, então os campos da tentativa não precisam de sincronização.
+     */
+    private static final class Pendente {
+        final String request;
+        final SocketAddress cliente;
+        final boolean idempotente;
+        final long prazo;
+        Backend servidor;
+        long inicio;
+        long ticket;
+        long limite;
+        int tentativas = 1;
+
+        Pendente(String request, SocketAddress cliente) {
+            this.request = request;
+            this.cliente = cliente;
+            this.idempotente = RetryPolicy.idempotente(request);
+            this.prazo = System.nanoTime() + RetryPolicy.PRAZO_NANOS;
+        }
+
+        void iniciarTentativa(Backend servidor) {
+            this.servidor = servidor;
+            this.inicio = System.nanoTime();
+            this.limite = idempotente ? Math.min(prazo, inicio + TIMEOUT_NANOS) : prazo;
+        }
+    }
+}
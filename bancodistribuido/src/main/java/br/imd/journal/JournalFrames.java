@@ -0,0 +1,128 @@
+package br.imd.journal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * Formato dos registros dos journals: [tamanho:int][conteúdo][crc32:int], com
+ * o tamanho contando conteúdo e CRC. Strings são gravadas como
+ * [tamanho:short][UTF-8].
+ */
+public final class JournalFrames {
+    private static final int TAMANHO_MAXIMO = 16 << 20;
+
+    private JournalFrames() {
+    }
+
+    /**
+     * Reserva o cabeçalho de um registro; o conteúdo deve ser escrito em
+     * seguida e fechado com {@link #concluir}.
+     */
+    public static int iniciar(ByteBuffer buffer) {
+        int inicio = buffer.position();
+        buffer.putInt(0);
+        return inicio;
+    }
+
+    public static void concluir(ByteBuffer buffer, int inicio) {
+        int inicioConteudo = inicio + Integer.BYTES;
+        CRC32 crc = new CRC32();
+        ByteBuffer conteudo = buffer.duplicate();
+        conteudo.position(inicioConteudo).limit(buffer.position());
+        crc.update(conteudo);
+        buffer.putInt((int) crc.getValue());
+        buffer.putInt(inicio, buffer.position() - inicioConteudo);
+    }
+
+    public static void putString(ByteBuffer buffer, String valor) {
+        byte[] bytes = valor.getBytes(StandardCharsets.UTF_8);
+        buffer.putShort((short) bytes.length).put(bytes);
+    }
+
+    public static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** Espaço máximo que {@link #putString} pode ocupar. */
+    public static int tamanhoString(String valor) {
+        return Short.BYTES + valor.length() * 3;
+    }
+
+    /**
+     * Lê o canal desde o início entregando o conteúdo de cada registro íntegro
+     * ao leitor. Um final incompleto ou corrompido (escrita interrompida antes
+     * do fsync) é truncado; o canal termina posicionado para novas escritas.
+     */
+    public static void lerTodos(FileChannel canal, LeitorRegistro leitor) throws IOException {
+        long posicaoValida = 0;
+        ByteBuffer cabecalho = ByteBuffer.allocate(Integer.BYTES);
+        canal.position(0);
+
+        while (true) {
+            cabecalho.clear();
+            if (lerCompleto(canal, cabecalho) < Integer.BYTES) {
+                break;
+            }
+            int tamanho = cabecalho.getInt(0);
+            if (tamanho <= Integer.BYTES || tamanho > TAMANHO_MAXIMO) {
+                break;
+            }
+            ByteBuffer corpo = ByteBuffer.allocate(tamanho);
+            if (lerCompleto(canal, corpo) < tamanho) {
+                break;
+            }
+            int tamanhoConteudo = tamanho - Integer.BYTES;
+            CRC32 crc = new CRC32();
+            crc.update(corpo.array(), 0, tamanhoConteudo);
+            if (corpo.getInt(tamanhoConteudo) != (int) crc.getValue()) {
+                break;
+            }
+            corpo.position(0).limit(tamanhoConteudo);
+            leitor.ler(corpo);
+            posicaoValida = canal.position();
+        }
+
+        if (posicaoValida < canal.size()) {
+            System.err.println("Journal: descartando final incompleto a partir do byte " + posicaoValida);
+            canal.truncate(posicaoValida);
+        }
+        canal.position(posicaoValida);
+    }
+
+    private static int lerCompleto(FileChannel canal, ByteBuffer destino) throws IOException {
+        int total = 0;
+        while (destino.hasRemaining()) {
+            int lidos = canal.read(destino);
+            if (lidos < 0) {
+                break;
+            }
+            total += lidos;
+        }
+        return total;
+    }
+
+    /**
+     * Garante {@code necessario} bytes livres, trocando por um buffer maior se
+     * preciso. Devolve o buffer a ser usado dali em diante.
+     */
+    public static ByteBuffer garantirEspaco(ByteBuffer buffer, int necessario) {
+        if (buffer.remaining() >= necessario) {
+            return buffer;
+        }
+        ByteBuffer maior = ByteBuffer.allocateDirect(Math.max(buffer.capacity() * 2,
+                buffer.position() + necessario));
+        buffer.flip();
+        maior.put(buffer);
+        return maior;
+    }
+
+    @FunctionalInterface
+    public interface LeitorRegistro {
+        void ler(ByteBuffer conteudo) throws IOException;
+    }
+}
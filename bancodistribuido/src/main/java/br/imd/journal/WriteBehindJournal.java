@@ -0,0 +1,421 @@
+package br.imd.journal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import br.imd.entity.ChaveConta;
+import br.imd.repository.ContaRepository;
+import br.imd.repository.DataBaseConnection;
+import br.imd.repository.JournalCheckpointRepository;
+
+/**
+ * Journal local de créditos com group commit e aplicação assíncrona no MySQL.
+ *
+ * Um depósito é confirmado assim que o registro está no arquivo e o fsync do
+ * grupo terminou; uma thread separada aplica os registros no banco de dados em
+ * lotes e grava o checkpoint na mesma transação. No restart, tudo que está no
+ * arquivo depois do checkpoint é reaplicado. Um grupo cuja gravação falha é
+ * recusado aos clientes e retirado do arquivo; se nem isso for possível, o
+ * journal para de aceitar créditos.
+ *
+ * Ativado com {@code -Dbanco.journal.enabled=true}. Cada processo precisa de
+ * um {@code banco.journal.id} próprio, obrigatório com o journal ativo; o
+ * arquivo fica travado enquanto o processo o usa.
+ *
+ * Um depósito confirmado para uma conta excluída antes da aplicação não some:
+ * vai para a tabela {@code journal_credito_nao_aplicado}, na mesma transação
+ * do checkpoint, para ser tratado à mão.
+ */
+public class WriteBehindJournal {
+    private static final boolean HABILITADO = Boolean.getBoolean("banco.journal.enabled");
+    private static final String ID = System.getProperty("banco.journal.id");
+    private static final Path DIRETORIO = Paths.get(System.getProperty("banco.journal.dir", "journal"));
+    private static final int MAX_GRUPO_FSYNC = Integer.getInteger("banco.journal.grupoFsync", 1024);
+    private static final int MAX_GRUPO_APLICACAO = Integer.getInteger("banco.journal.grupoAplicacao", 2048);
+    private static final long TAMANHO_MAXIMO_ARQUIVO = Long.getLong("banco.journal.tamanhoMaximo", 64L << 20);
+    private static final long TIMEOUT_CONFIRMACAO_MS = 10000;
+
+    private static volatile WriteBehindJournal instancia;
+
+    private final Path arquivo;
+    private final FileChannel canal;
+    private final ReentrantLock lockArquivo = new ReentrantLock();
+    private final BlockingQueue<Pendente> paraGravar = new LinkedBlockingQueue<>(64 * 1024);
+    private final BlockingQueue<Registro> paraAplicar = new LinkedBlockingQueue<>();
+    private final AtomicLong ultimoGravado = new AtomicLong();
+    private final AtomicLong ultimoAplicado = new AtomicLong();
+    private final AtomicLong creditosNaoAplicados = new AtomicLong();
+    // Lock em vez de monitor: quem espera pode ser uma virtual thread
+    private final ReentrantLock lockAplicacao = new ReentrantLock();
+    private final Condition aplicado = lockAplicacao.newCondition();
+
+    private final ContaRepository contaRepository;
+    private final JournalCheckpointRepository checkpointRepository;
+    private final DataBaseConnection dataBaseConnection;
+
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+    private long proximoSeq;
+    // Grupo com falha que não pôde ser retirado do arquivo: a partir daqui o
+    // journal recusa créditos até o processo reiniciar
+    private volatile IOException falhaGravacao;
+
+    public static boolean isHabilitado() {
+        return HABILITADO;
+    }
+
+    public static WriteBehindJournal getInstance() {
+        WriteBehindJournal j = instancia;
+        if (j == null) {
+            synchronized (WriteBehindJournal.class) {
+                j = instancia;
+                if (j == null) {
+                    if (ID == null || ID.isBlank()) {
+                        // Com um id comum, os nós dividiriam o arquivo e o checkpoint
+                        throw new IllegalStateException(
+                                "banco.journal.id é obrigatório com banco.journal.enabled=true.");
+                    }
+                    try {
+                        j = new WriteBehindJournal(DIRETORIO.resolve("journal-" + ID + ".log"));
+                    } catch (IOException | SQLException e) {
+                        throw new IllegalStateException("Falha ao abrir o journal: " + e.getMessage(), e);
+                    }
+                    j.iniciar();
+                    instancia = j;
+                }
+            }
+        }
+        return j;
+    }
+
+    private WriteBehindJournal(Path arquivo) throws IOException, SQLException {
+        this.arquivo = arquivo;
+        this.contaRepository = new ContaRepository();
+        this.checkpointRepository = new JournalCheckpointRepository();
+        this.dataBaseConnection = new DataBaseConnection();
+
+        Files.createDirectories(arquivo.getParent());
+        this.canal = FileChannel.open(arquivo, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        // O lock dura enquanto o canal estiver aberto, isto é, o processo todo
+        if (canal.tryLock() == null) {
+            canal.close();
+            throw new IOException("O journal " + arquivo.toAbsolutePath() + " já está em uso por outro processo.");
+        }
+
+        long checkpoint = checkpointRepository.lerCheckpoint(ID);
+        ultimoAplicado.set(checkpoint);
+        long ultimoSeq = reproduzir(checkpoint);
+        proximoSeq = Math.max(ultimoSeq, checkpoint) + 1;
+        ultimoGravado.set(proximoSeq - 1);
+    }
+
+    private void iniciar() {
+        Thread escritor = new Thread(this::loopEscrita, "journal-escrita");
+        escritor.setDaemon(true);
+        escritor.start();
+        Thread aplicador = new Thread(this::loopAplicacao, "journal-aplicacao");
+        aplicador.setDaemon(true);
+        aplicador.start();
+    }
+
+    /**
+     * Registra um crédito e só retorna depois que ele está persistido no
+     * arquivo.
+     */
+    public void registrarCredito(ChaveConta chave, long centavos) throws IOException {
+        if (falhaGravacao != null) {
+            throw new IOException("Journal indisponível: falha ao gravar o arquivo.", falhaGravacao);
+        }
+        Pendente pendente = new Pendente(chave, centavos);
+        try {
+            if (!paraGravar.offer(pendente, TIMEOUT_CONFIRMACAO_MS, TimeUnit.MILLISECONDS)) {
+                throw new IOException("Journal sobrecarregado.");
+            }
+            pendente.confirmacao.get(TIMEOUT_CONFIRMACAO_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrompido aguardando o journal.", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Falha ao gravar no journal: " + e.getCause().getMessage(), e.getCause());
+        } catch (TimeoutException e) {
+            throw new IOException("Tempo esgotado aguardando o journal.", e);
+        }
+    }
+
+    public boolean temPendentes() {
+        return ultimoAplicado.get() < ultimoGravado.get();
+    }
+
+    /**
+     * Espera até que tudo o que já foi confirmado esteja aplicado no MySQL.
+     */
+    public boolean aguardarAplicacao(long timeoutMillis) throws InterruptedException {
+        long alvo = ultimoGravado.get();
+        long restante = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        lockAplicacao.lock();
+        try {
+            while (ultimoAplicado.get() < alvo) {
+                if (restante <= 0) {
+                    return false;
+                }
+                restante = aplicado.awaitNanos(restante);
+            }
+        } finally {
+            lockAplicacao.unlock();
+        }
+        return true;
+    }
+
+    public String estatisticas() {
+        return String.format("Journal %s: gravado=%d, aplicado=%d, aguardando fsync=%d, créditos não aplicados=%d",
+                arquivo, ultimoGravado.get(), ultimoAplicado.get(), paraGravar.size(), creditosNaoAplicados.get());
+    }
+
+    // Group commit: tudo o que chegou enquanto o fsync anterior rodava vai no
+    // mesmo write + force.
+    private void loopEscrita() {
+        List<Pendente> grupo = new ArrayList<>(MAX_GRUPO_FSYNC);
+        while (true) {
+            try {
+                grupo.add(paraGravar.take());
+                paraGravar.drainTo(grupo, MAX_GRUPO_FSYNC - 1);
+                gravarGrupo(grupo);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                grupo.clear();
+            }
+        }
+    }
+
+    private void gravarGrupo(List<Pendente> grupo) {
+        lockArquivo.lock();
+        long inicio = -1;
+        try {
+            if (falhaGravacao != null) {
+                throw new IOException("Journal indisponível: falha ao gravar o arquivo.", falhaGravacao);
+            }
+            inicio = canal.position();
+            buffer.clear();
+            long seq = proximoSeq;
+            for (Pendente p : grupo) {
+                codificar(new Registro(seq++, p.chave, p.centavos));
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                canal.write(buffer);
+            }
+            canal.force(false);
+
+            seq = proximoSeq;
+            for (Pendente p : grupo) {
+                paraAplicar.add(new Registro(seq++, p.chave, p.centavos));
+            }
+            proximoSeq = seq;
+            ultimoGravado.set(seq - 1);
+        } catch (IOException e) {
+            System.err.println("Erro ao gravar no journal: " + e.getMessage());
+            if (inicio >= 0) {
+                descartarGrupo(inicio, grupo.size(), e);
+            }
+            for (Pendente p : grupo) {
+                p.confirmacao.completeExceptionally(e);
+            }
+            return;
+        } finally {
+            lockArquivo.unlock();
+        }
+        for (Pendente p : grupo) {
+            p.confirmacao.complete(null);
+        }
+    }
+
+    // Os depósitos do grupo são recusados ao cliente, então os frames que
+    // chegaram ao arquivo não podem ser reproduzidos no restart: o arquivo volta
+    // ao tamanho de antes do grupo e proximoSeq continua o mesmo.
+    private void descartarGrupo(long inicio, int quantidade, IOException causa) {
+        try {
+            canal.truncate(inicio);
+            canal.position(inicio);
+            canal.force(false);
+        } catch (IOException e) {
+            causa.addSuppressed(e);
+            falhaGravacao = causa;
+            System.err.println("Journal: não foi possível descartar o grupo com falha; as sequências " + proximoSeq
+                    + " a " + (proximoSeq + quantidade - 1) + " de " + arquivo
+                    + " precisam ser removidas antes do restart. Novos créditos serão recusados.");
+        }
+    }
+
+    private void loopAplicacao() {
+        List<Registro> grupo = new ArrayList<>(MAX_GRUPO_APLICACAO);
+        while (true) {
+            try {
+                grupo.add(paraAplicar.take());
+                paraAplicar.drainTo(grupo, MAX_GRUPO_APLICACAO - 1);
+                aplicarGrupo(grupo);
+                grupo.clear();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    // Créditos da mesma conta são somados. As linhas são travadas antes, pela
+    // mesma consulta ordenada das transferências, para não formar ciclo de
+    // espera com elas.
+    private void aplicarGrupo(List<Registro> grupo) throws InterruptedException {
+        Map<ChaveConta, Long> creditos = new TreeMap<>();
+        long ultimoSeq = 0;
+        for (Registro r : grupo) {
+            creditos.merge(r.chave, r.centavos, Long::sum);
+            ultimoSeq = Math.max(ultimoSeq, r.seq);
+        }
+
+        while (true) {
+            try (Connection conn = dataBaseConnection.getConnection()) {
+                conn.setAutoCommit(false);
+                try {
+                    contaRepository.bloquearContas(conn, creditos.keySet());
+                    List<ChaveConta> inexistentes = contaRepository.creditarSaldos(conn, creditos);
+                    // Depósitos já confirmados ao cliente: ficam registrados
+                    // com o checkpoint, para não sumirem
+                    for (ChaveConta chave : inexistentes) {
+                        checkpointRepository.registrarCreditoNaoAplicado(conn, ID, ultimoSeq, chave,
+                                creditos.get(chave));
+                    }
+                    checkpointRepository.gravarCheckpoint(conn, ID, ultimoSeq);
+                    conn.commit();
+                    ContaRepository.invalidar(creditos.keySet());
+                    for (ChaveConta chave : inexistentes) {
+                        creditosNaoAplicados.incrementAndGet();
+                        System.err.println("Journal: conta removida antes da aplicação do depósito: " + chave
+                                + "; crédito registrado em journal_credito_nao_aplicado.");
+                    }
+                    break;
+                } catch (SQLException e) {
+                    conn.rollback();
+                    throw e;
+                }
+            } catch (SQLException e) {
+                // Nada é descartado: o grupo é reaplicado até o banco voltar
+                System.err.println("Journal: erro ao aplicar no banco, tentando novamente: " + e.getMessage());
+                Thread.sleep(1000);
+            }
+        }
+
+        ultimoAplicado.set(ultimoSeq);
+        lockAplicacao.lock();
+        try {
+            aplicado.signalAll();
+        } finally {
+            lockAplicacao.unlock();
+        }
+        compactarSeAplicado();
+    }
+
+    // Quando tudo que foi gravado já está no banco, o arquivo pode ser zerado:
+    // as sequências continuam crescendo a partir do checkpoint.
+    private void compactarSeAplicado() {
+        lockArquivo.lock();
+        try {
+            if (ultimoAplicado.get() == ultimoGravado.get() && canal.size() > TAMANHO_MAXIMO_ARQUIVO) {
+                canal.truncate(0);
+                canal.force(true);
+            }
+        } catch (IOException e) {
+            System.err.println("Journal: erro ao compactar arquivo: " + e.getMessage());
+        } finally {
+            lockArquivo.unlock();
+        }
+    }
+
+    /**
+     * Enfileira para aplicação os registros do arquivo posteriores ao
+     * checkpoint e devolve a última sequência encontrada.
+     */
+    private long reproduzir(long checkpoint) throws IOException {
+        long[] ultimoSeq = { 0 };
+        int[] reaplicados = { 0 };
+        JournalFrames.lerTodos(canal, conteudo -> {
+            Registro r = decodificar(conteudo);
+            ultimoSeq[0] = r.seq;
+            if (r.seq > checkpoint) {
+                paraAplicar.add(r);
+                reaplicados[0]++;
+            }
+        });
+        if (reaplicados[0] > 0) {
+            System.out.println("Journal: " + reaplicados[0] + " depósitos serão reaplicados no banco.");
+        }
+        return ultimoSeq[0];
+    }
+
+    // [seq:long][centavos:long][banco][agencia][conta]
+    private void codificar(Registro r) {
+        buffer = JournalFrames.garantirEspaco(buffer, Integer.BYTES * 2 + Long.BYTES * 2
+                + JournalFrames.tamanhoString(r.chave.banco()) + JournalFrames.tamanhoString(r.chave.agencia())
+                + JournalFrames.tamanhoString(r.chave.conta()));
+        int inicio = JournalFrames.iniciar(buffer);
+        buffer.putLong(r.seq);
+        buffer.putLong(r.centavos);
+        JournalFrames.putString(buffer, r.chave.banco());
+        JournalFrames.putString(buffer, r.chave.agencia());
+        JournalFrames.putString(buffer, r.chave.conta());
+        JournalFrames.concluir(buffer, inicio);
+    }
+
+    private static Registro decodificar(ByteBuffer conteudo) {
+        long seq = conteudo.getLong();
+        long centavos = conteudo.getLong();
+        String banco = JournalFrames.getString(conteudo);
+        String agencia = JournalFrames.getString(conteudo);
+        String conta = JournalFrames.getString(conteudo);
+        return new Registro(seq, new ChaveConta(banco, agencia, conta), centavos);
+    }
+
+    private static final class Pendente {
+        private final ChaveConta chave;
+        private final long centavos;
+        private final CompletableFuture<Void> confirmacao = new CompletableFuture<>();
+
+        private Pendente(ChaveConta chave, long centavos) {
+            this.chave = chave;
+            this.centavos = centavos;
+        }
+    }
+
+    private static final class Registro {
+        private final long seq;
+        private final ChaveConta chave;
+        private final long centavos;
+
+        private Registro(long seq, ChaveConta chave, long centavos) {
+            this.seq = seq;
+            this.chave = chave;
+            this.centavos = centavos;
+        }
+    }
+}
@@ -2,62 +2,140 @@ package br.imd.processors;
 
 import java.sql.SQLException;
 import java.util.List;
+import java.util.function.Consumer;
 
 import br.imd.entity.Banco;
+import br.imd.entity.ChaveConta;
 import br.imd.entity.Conta;
+import br.imd.entity.PaginaContas;
 import br.imd.service.BankManager;
 
+/**
+ * Traduz comandos de texto e binários em chamadas ao {@link BankManager}.
+ *
+ * Sem estado por requisição: o único campo é o {@link BankManager}, e os
+ * buffers de resposta são por thread. Por isso uma instância só
+ * ({@link #getInstance()}) é compartilhada por todas as conexões e threads
+ * dos servidores.
+ */
 public class BankActionHandler {
+    private static final int CAPACIDADE_MAXIMA_RESPOSTA = 64 * 1024;
+    // "Próximo: " e " OK" em UTF-8, sem o cursor
+    private static final int RODAPE_CURSOR_BYTES = 13;
+    private static final ThreadLocal<StringBuilder> RESPOSTA = ThreadLocal.withInitial(() -> new StringBuilder(256));
+    private static final BankActionHandler INSTANCIA = new BankActionHandler(BankManager.getInstance());
 
-    private BankManager bankManager;
-
-    public BankActionHandler() {
-        this.bankManager = new BankManager();
-    }
-
-    public String handleAction(String action, String[] parts) throws SQLException {
-
-        switch (action.toUpperCase().trim()) {
-            case "SACAR":
-                return handleSacar(parts);
-            case "CRIAR_CONTA":
-                return handleCriarConta(parts);
-            case "CRIAR_BANCO":
-                return handleCriarBanco(parts);
-            case "DEPOSITAR":
-                return handleDepositar(parts);
-            case "LISTAR_CONTAS":
-                return handleListarContas(parts);
-            case "LISTAR_BANCOS":
-                return handleListarBancos(parts);
-            case "EXCLUIR_CONTA":
-                return handleExcluirConta(parts);
-            case "EXCLUIR_BANCO":
-                return handleExcluirBanco(parts);
+    private final BankManager bankManager;
+
+    public BankActionHandler(BankManager bankManager) {
+        this.bankManager = bankManager;
+    }
+
+    public static BankActionHandler getInstance() {
+        return INSTANCIA;
+    }
+
+    /**
+     * Comando de texto já separado pelo {@link CommandTokenizer}; o campo 0 é
+     * a ação.
+     */
+    public String handleAction(CommandTokenizer comando) throws SQLException {
+        return handleAction(comando, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param limiteBytes tamanho máximo, em UTF-8, de uma página de
+     *        LISTAR_CONTAS_PAGINA; a página para antes e o cursor aponta para
+     *        a última conta que coube (o UDP responde num datagrama só)
+     */
+    public String handleAction(CommandTokenizer comando, int limiteBytes) throws SQLException {
+        Opcode opcode = comando.opcode();
+        if (opcode == null) {
+            return "Ação não reconhecida.";
+        }
+        switch (opcode) {
+            case SACAR:
+                return handleSacar(comando);
+            case CRIAR_CONTA:
+                return handleCriarConta(comando);
+            case CRIAR_BANCO:
+                return handleCriarBanco(comando);
+            case DEPOSITAR:
+                return handleDepositar(comando);
+            case LISTAR_CONTAS:
+                return handleListarContas(comando);
+            case LISTAR_CONTAS_PAGINA:
+                return handleListarContasPagina(comando, limiteBytes);
+            case LISTAR_BANCOS:
+                return handleListarBancos();
+            case EXCLUIR_CONTA:
+                return handleExcluirConta(comando);
+            case EXCLUIR_BANCO:
+                return handleExcluirBanco(comando);
             default:
                 return "Ação não reconhecida.";
         }
     }
 
-    private String handleSacar(String[] parts) throws SQLException {
-        if (parts.length == 5) {
-            String banco = parts[1];
-            String agencia = parts[2];
-            String conta = parts[3];
-            double valor = Double.parseDouble(parts[4]);
+    /**
+     * Comando do {@link BinaryProtocol}: os campos já vêm separados e os
+     * valores em centavos. Transferências não passam por aqui.
+     */
+    public String handle(BinaryProtocol.Comando comando) throws SQLException {
+        return handle(comando, Integer.MAX_VALUE);
+    }
 
-            return bankManager.sacar(banco, agencia, conta, valor);
+    /** @param limiteBytes como em {@link #handleAction(CommandTokenizer, int)} */
+    public String handle(BinaryProtocol.Comando comando, int limiteBytes) throws SQLException {
+        switch (comando.opcode()) {
+            case SACAR:
+                return bankManager.sacar(comando.banco(), comando.agencia(), comando.conta(), comando.valor());
+            case DEPOSITAR:
+                return bankManager.depositar(comando.banco(), comando.agencia(), comando.conta(), comando.valor());
+            case CRIAR_CONTA:
+                return bankManager.criarConta(comando.banco(), comando.agencia(), comando.conta(), comando.valor());
+            case CRIAR_BANCO:
+                if (comando.banco() == null) {
+                    return "Parâmetros inválidos para criação de banco.";
+                }
+                return bankManager.criarBanco(new Banco(comando.banco()));
+            case LISTAR_CONTAS:
+                return formatarContas(comando.banco() != null
+                        ? bankManager.listarContas(comando.banco())
+                        : bankManager.listarContas());
+            case LISTAR_CONTAS_PAGINA:
+                return listarContasPagina(comando.banco(), comando.texto(), comando.tamanho(), limiteBytes);
+            case LISTAR_BANCOS:
+                return handleListarBancos();
+            case EXCLUIR_CONTA:
+                return bankManager.excluirConta(comando.banco(), comando.agencia(), comando.conta());
+            case EXCLUIR_BANCO:
+                if (comando.banco() == null) {
+                    return "Parâmetros inválidos para excluir banco.";
+                }
+                return bankManager.excluirBanco(comando.banco());
+            default:
+                return "Ação não reconhecida.";
+        }
+    }
+
+    private String handleSacar(CommandTokenizer parts) throws SQLException {
+        if (parts.quantidade() == 5) {
+            ChaveConta conta = parts.chaveConta(1);
+            long valor = parts.centavos(4);
+
+            return bankManager.sacar(conta, valor);
         } else {
             return "Parâmetros inválidos para saque.";
         }
     }
 
-    private String handleCriarConta(String[] parts) throws SQLException {
-        if (parts.length == 5) {
-            String banco = parts[1];
-            String agencia = parts[2];
-            String numeroConta = parts[3];
-            double saldoInicial = Double.parseDouble(parts[4]);
+    private String handleCriarConta(CommandTokenizer parts) throws SQLException {
+        if (parts.quantidade() == 5) {
+            String banco = parts.campo(1);
+            String agencia = parts.campo(2);
+            String numeroConta = parts.campo(3);
+            long saldoInicial = parts.centavos(4);
 
             return bankManager.criarConta(banco, agencia, numeroConta, saldoInicial);
         } else {
@@ -65,9 +143,9 @@ public class BankActionHandler {
         }
     }
 
-    private String handleCriarBanco(String[] parts) throws SQLException {
-        if (parts.length == 2) {
-            String bancoNome = parts[1];
+    private String handleCriarBanco(CommandTokenizer parts) throws SQLException {
+        if (parts.quantidade() == 2) {
+            String bancoNome = parts.campo(1);
 
             return bankManager.criarBanco(new Banco(bancoNome));
         } else {
@@ -75,50 +153,121 @@ public class BankActionHandler {
         }
     }
 
-    private String handleDepositar(String[] parts) throws SQLException {
-        if (parts.length == 5) {
-            String banco = parts[1];
-            String agencia = parts[2];
-            String conta = parts[3];
-            double valor = Double.parseDouble(parts[4]);
+    private String handleDepositar(CommandTokenizer parts) throws SQLException {
+        if (parts.quantidade() == 5) {
+            ChaveConta conta = parts.chaveConta(1);
+            long valor = parts.centavos(4);
 
-            return bankManager.depositar(banco, agencia, conta, valor);
+            return bankManager.depositar(conta, valor);
         } else {
             return "Parâmetros inválidos para depósito.";
         }
     }
 
-    private String handleListarContas(String[] parts) throws SQLException {
+    private String handleListarContas(CommandTokenizer parts) throws SQLException {
         List<Conta> contas;
 
-        if (parts.length == 2) {
-            String banco = parts[1];
+        if (parts.quantidade() == 2) {
+            String banco = parts.campo(1);
             contas = bankManager.listarContas(banco);
         } else {
             contas = bankManager.listarContas();
         }
+        return formatarContas(contas);
+    }
 
-        StringBuilder resposta = new StringBuilder("Contas: ");
+    private static String formatarContas(List<Conta> contas) {
+        StringBuilder resposta = resposta().append("Contas: ");
         for (Conta conta : contas) {
-            resposta.append(conta.toString()).append(", ");
+            conta.formatar(resposta).append(", ");
+        }
+        return resposta.append(" OK").toString();
+    }
+
+    // LISTAR_CONTAS_PAGINA-<banco ou *>-<tamanho>[-<cursor>]
+    private String handleListarContasPagina(CommandTokenizer parts, int limiteBytes) throws SQLException {
+        if (parts.quantidade() != 3 && parts.quantidade() != 4) {
+            return "Parâmetros inválidos para listagem paginada.";
+        }
+        String banco = parts.campoIgual(1, "*") ? null : parts.campo(1);
+        String cursor = parts.quantidade() == 4 ? parts.campo(3) : null;
+        int tamanho;
+        try {
+            tamanho = parts.inteiro(2);
+        } catch (NumberFormatException e) {
+            return "Tamanho de página inválido.";
+        }
+        return listarContasPagina(banco, cursor, tamanho, limiteBytes);
+    }
+
+    private String listarContasPagina(String banco, String cursor, int tamanho, int limiteBytes) throws SQLException {
+        PaginaContas pagina;
+        try {
+            pagina = bankManager.listarContasPagina(banco, cursor, tamanho);
+        } catch (IllegalArgumentException e) {
+            return "Erro ao listar contas: " + e.getMessage();
+        }
+
+        StringBuilder resposta = resposta().append("Contas: ");
+        String proximo = pagina.getProximoCursor();
+        int usados = bytesUtf8(resposta, 0, resposta.length());
+        List<Conta> contas = pagina.getContas();
+        for (int i = 0; i < contas.size(); i++) {
+            Conta conta = contas.get(i);
+            int inicio = resposta.length();
+            conta.formatar(resposta).append(", ");
+            int linha = bytesUtf8(resposta, inicio, resposta.length());
+            // Se a página parar aqui, o rodapé leva o cursor desta conta
+            boolean ultima = i == contas.size() - 1;
+            String cursorAqui = ultima ? proximo : PaginaContas.codificarCursor(ChaveConta.de(conta));
+            int rodape = cursorAqui != null ? RODAPE_CURSOR_BYTES + cursorAqui.length() : 2;
+            if (i > 0 && usados + linha + rodape > limiteBytes) {
+                resposta.setLength(inicio);
+                proximo = PaginaContas.codificarCursor(ChaveConta.de(contas.get(i - 1)));
+                break;
+            }
+            usados += linha;
+        }
+        if (proximo != null) {
+            resposta.append("Próximo: ").append(proximo).append(' ');
         }
-        return resposta + " OK";
+        return resposta.append("OK").toString();
     }
 
-    private String handleListarBancos(String[] parts) throws SQLException {
+    private static int bytesUtf8(CharSequence texto, int inicio, int fim) {
+        int bytes = 0;
+        for (int i = inicio; i < fim; i++) {
+            char c = texto.charAt(i);
+            bytes += c < 0x80 ? 1 : c < 0x800 || Character.isSurrogate(c) ? 2 : 3;
+        }
+        return bytes;
+    }
+
+    /**
+     * Versão em stream de LISTAR_CONTAS: cada conta é entregue ao consumidor
+     * assim que lida do banco de dados.
+     */
+    public void handleListarContasStream(String[] parts, Consumer<Conta> consumidor) throws SQLException {
+        String banco = parts != null && parts.length >= 2 && !parts[1].isBlank() && !"*".equals(parts[1])
+                ? parts[1]
+                : null;
+        bankManager.percorrerContas(banco, consumidor);
+    }
+
+    private String handleListarBancos() throws SQLException {
         List<Banco> bancos = bankManager.listarBancos();
-        StringBuilder resposta = new StringBuilder("Bancos: ");
+        StringBuilder resposta = resposta().append("Bancos: ");
         for (Banco banco : bancos) {
             resposta.append(banco.getNome()).append(", ");
         }
-        return resposta + "OK";
+        return resposta.append("OK").toString();
     }
 
-    private String handleExcluirConta(String[] parts) throws SQLException {
-        if (parts.length == 4) {
-            String banco = parts[1];
-            String agencia = parts[2];
-            String conta = parts[3];
+    private String handleExcluirConta(CommandTokenizer parts) throws SQLException {
+        if (parts.quantidade() == 4) {
+            String banco = parts.campo(1);
+            String agencia = parts.campo(2);
+            String conta = parts.campo(3);
 
             return bankManager.excluirConta(banco, agencia, conta);
         } else {
@@ -126,13 +275,25 @@ public class BankActionHandler {
         }
     }
 
-    private String handleExcluirBanco(String[] parts) throws SQLException {
-        if (parts.length == 2) {
-            String bancoNome = parts[1];
+    private String handleExcluirBanco(CommandTokenizer parts) throws SQLException {
+        if (parts.quantidade() == 2) {
+            String bancoNome = parts.campo(1);
 
             return bankManager.excluirBanco(bancoNome);
         } else {
             return "Parâmetros inválidos para excluir banco.";
         }
     }
+
+    // Buffer de resposta da thread, limpo a cada uso; um que cresceu demais
+    // numa listagem grande é trocado para não ficar preso à thread
+    private static StringBuilder resposta() {
+        StringBuilder resposta = RESPOSTA.get();
+        if (resposta.capacity() > CAPACIDADE_MAXIMA_RESPOSTA) {
+            resposta = new StringBuilder(256);
+            RESPOSTA.set(resposta);
+        }
+        resposta.setLength(0);
+        return resposta;
+    }
 }
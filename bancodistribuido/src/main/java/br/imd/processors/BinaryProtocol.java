@@ -0,0 +1,212 @@
+package br.imd.processors;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import br.imd.entity.Dinheiro;
+
+/**
+ * Protocolo binário opcional entre clientes e nós, ao lado dos comandos de
+ * texto separados por '-'.
+ *
+ * É escolhido por conexão: no TCP o cliente abre mandando {@link #MAGICO} e
+ * {@link #VERSAO}, o servidor devolve os dois bytes e a conexão passa a
+ * trocar quadros {@code [int32 tamanho][corpo]}. No UDP cada datagrama que
+ * começa com {@link #MAGICO} e {@link #VERSAO} traz um corpo, e a resposta
+ * volta com o mesmo prefixo. Nenhum comando de texto começa com o byte
+ * {@code 0xB1}, então o servidor distingue os dois pelo primeiro byte.
+ *
+ * Corpo da requisição: o código do {@link Opcode} e os campos na ordem do
+ * comando de texto, com textos em tamanho varint + UTF-8, valores em int64 de
+ * centavos e o tamanho da página em int32. Corpo da resposta: status
+ * ({@link #STATUS_OK} ou {@link #STATUS_ERRO}) e a mensagem em texto varint.
+ */
+public final class BinaryProtocol {
+    public static final byte MAGICO = (byte) 0xB1;
+    public static final byte VERSAO = 1;
+    public static final int TAMANHO_MAXIMO = 64 * 1024;
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_ERRO = 1;
+
+    private BinaryProtocol() {
+    }
+
+    /**
+     * Um comando decodificado. Só os campos do opcode são preenchidos; textos
+     * opcionais vazios viram null.
+     */
+    public record Comando(Opcode opcode, String banco, String agencia, String conta, String bancoDestino,
+            String agenciaDestino, String contaDestino, long valor, int tamanho, String texto) {
+
+        /** Mesmo comando no protocolo de texto, para o serviço de transferência. */
+        public String comoTexto() {
+            switch (opcode) {
+                case TRANSFERIR:
+                    return opcode.name() + '-' + banco + '-' + agencia + '-' + conta + '-' + bancoDestino + '-'
+                            + agenciaDestino + '-' + contaDestino + '-' + Dinheiro.formatar(valor);
+                case TRANSFERIR_LOTE:
+                    return opcode.name() + '-' + texto;
+                default:
+                    throw new IllegalStateException("Sem forma de texto para " + opcode);
+            }
+        }
+    }
+
+    /** @throws IllegalArgumentException se o corpo estiver malformado */
+    public static Comando decodificar(ByteBuffer corpo) {
+        try {
+            Opcode opcode = Opcode.doCodigo(corpo.get());
+            if (opcode == null) {
+                throw new IllegalArgumentException("Opcode desconhecido.");
+            }
+            switch (opcode) {
+                case SACAR:
+                case DEPOSITAR:
+                case CRIAR_CONTA:
+                    return new Comando(opcode, lerTexto(corpo), lerTexto(corpo), lerTexto(corpo), null, null, null,
+                            corpo.getLong(), 0, null);
+                case CRIAR_BANCO:
+                case EXCLUIR_BANCO:
+                case LISTAR_CONTAS:
+                    return new Comando(opcode, lerTextoOpcional(corpo), null, null, null, null, null, 0, 0, null);
+                case EXCLUIR_CONTA:
+                    return new Comando(opcode, lerTexto(corpo), lerTexto(corpo), lerTexto(corpo), null, null, null, 0,
+                            0, null);
+                case LISTAR_CONTAS_PAGINA:
+                    return new Comando(opcode, lerTextoOpcional(corpo), null, null, null, null, null, 0,
+                            corpo.getInt(), lerTextoOpcional(corpo));
+                case LISTAR_BANCOS:
+                    return new Comando(opcode, null, null, null, null, null, null, 0, 0, null);
+                case TRANSFERIR:
+                    return new Comando(opcode, lerTexto(corpo), lerTexto(corpo), lerTexto(corpo), lerTexto(corpo),
+                            lerTexto(corpo), lerTexto(corpo), corpo.getLong(), 0, null);
+                case TRANSFERIR_LOTE:
+                    return new Comando(opcode, null, null, null, null, null, null, 0, 0, lerTexto(corpo));
+                default:
+                    throw new IllegalArgumentException("Opcode desconhecido.");
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Comando binário incompleto.");
+        }
+    }
+
+    public static byte[] codificar(Comando comando) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+        out.write(comando.opcode().getCodigo());
+        switch (comando.opcode()) {
+            case SACAR:
+            case DEPOSITAR:
+            case CRIAR_CONTA:
+                escreverTextos(out, comando.banco(), comando.agencia(), comando.conta());
+                escreverLong(out, comando.valor());
+                break;
+            case CRIAR_BANCO:
+            case EXCLUIR_BANCO:
+            case LISTAR_CONTAS:
+                escreverTextos(out, comando.banco());
+                break;
+            case EXCLUIR_CONTA:
+                escreverTextos(out, comando.banco(), comando.agencia(), comando.conta());
+                break;
+            case LISTAR_CONTAS_PAGINA:
+                escreverTextos(out, comando.banco());
+                escreverInt(out, comando.tamanho());
+                escreverTextos(out, comando.texto());
+                break;
+            case TRANSFERIR:
+                escreverTextos(out, comando.banco(), comando.agencia(), comando.conta(), comando.bancoDestino(),
+                        comando.agenciaDestino(), comando.contaDestino());
+                escreverLong(out, comando.valor());
+                break;
+            case TRANSFERIR_LOTE:
+                escreverTextos(out, comando.texto());
+                break;
+            default:
+                break;
+        }
+        return out.toByteArray();
+    }
+
+    /** Resposta: status pelo mesmo critério do texto (contém "OK") e a mensagem. */
+    public static byte[] codificarResposta(String resposta) {
+        byte[] mensagem = resposta.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(mensagem.length + 6);
+        out.write(resposta.contains("OK") ? STATUS_OK : STATUS_ERRO);
+        escreverVarint(out, mensagem.length);
+        out.write(mensagem, 0, mensagem.length);
+        return out.toByteArray();
+    }
+
+    /** @return a mensagem de uma resposta; o status é o primeiro byte */
+    public static String lerResposta(ByteBuffer corpo) {
+        corpo.get();
+        return lerTexto(corpo);
+    }
+
+    private static String lerTexto(ByteBuffer corpo) {
+        int tamanho = lerVarint(corpo);
+        if (tamanho > corpo.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        String texto;
+        if (corpo.hasArray()) {
+            texto = new String(corpo.array(), corpo.arrayOffset() + corpo.position(), tamanho, StandardCharsets.UTF_8);
+        } else {
+            byte[] bytes = new byte[tamanho];
+            corpo.get(corpo.position(), bytes);
+            texto = new String(bytes, StandardCharsets.UTF_8);
+        }
+        corpo.position(corpo.position() + tamanho);
+        return texto;
+    }
+
+    private static String lerTextoOpcional(ByteBuffer corpo) {
+        String texto = lerTexto(corpo);
+        return texto.isEmpty() ? null : texto;
+    }
+
+    private static int lerVarint(ByteBuffer corpo) {
+        int valor = 0;
+        for (int deslocamento = 0; deslocamento < 32; deslocamento += 7) {
+            byte b = corpo.get();
+            valor |= (b & 0x7F) << deslocamento;
+            if (b >= 0) {
+                if (valor < 0 || valor > TAMANHO_MAXIMO) {
+                    throw new IllegalArgumentException("Tamanho de texto inválido.");
+                }
+                return valor;
+            }
+        }
+        throw new IllegalArgumentException("Varint longo demais.");
+    }
+
+    private static void escreverVarint(ByteArrayOutputStream out, int valor) {
+        while ((valor & ~0x7F) != 0) {
+            out.write((valor & 0x7F) | 0x80);
+            valor >>>= 7;
+        }
+        out.write(valor);
+    }
+
+    private static void escreverTextos(ByteArrayOutputStream out, String... textos) {
+        for (String texto : textos) {
+            byte[] bytes = texto != null ? texto.getBytes(StandardCharsets.UTF_8) : new byte[0];
+            escreverVarint(out, bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+    }
+
+    private static void escreverLong(ByteArrayOutputStream out, long valor) {
+        for (int i = 56; i >= 0; i -= 8) {
+            out.write((int) (valor >>> i));
+        }
+    }
+
+    private static void escreverInt(ByteArrayOutputStream out, int valor) {
+        for (int i = 24; i >= 0; i -= 8) {
+            out.write(valor >>> i);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package br.imd.processors;
+
+import java.util.Arrays;
+
+import br.imd.entity.ChaveConta;
+import br.imd.entity.Dinheiro;
+
+/**
+ * Separa um comando de texto ({@code ACAO-campo-campo-...}) numa passada só,
+ * guardando só as posições dos campos. Nada é copiado até alguém pedir o
+ * texto de um campo; valores em centavos e o {@link Opcode} saem direto dos
+ * caracteres.
+ *
+ * As contas usadas há pouco ficam num cache pequeno da instância
+ * ({@code banco.tokenizer.contasRecentes} posições), então
+ * {@link #chaveConta} devolve a mesma {@link ChaveConta} sem copiar os campos
+ * quando a conta se repete.
+ *
+ * Cada thread reaproveita a sua instância ({@link #daThread()}), então ela só
+ * vale até o próximo {@link #tokenizar} da mesma thread. Com
+ * {@code banco.threads=virtual} cada requisição tem a sua thread e o
+ * reaproveitamento não acontece, mas o comportamento é o mesmo.
+ */
+public final class CommandTokenizer {
+    private static final ThreadLocal<CommandTokenizer> POR_THREAD = ThreadLocal.withInitial(CommandTokenizer::new);
+    private static final int CONTAS_RECENTES = Integer.highestOneBit(
+            Math.max(1, Integer.getInteger("banco.tokenizer.contasRecentes", 64)));
+
+    private CharSequence texto;
+    private int[] inicios = new int[8];
+    private int[] fins = new int[8];
+    private int quantidade;
+    // Mapeamento direto pelo hash dos três campos; uma colisão só troca a entrada
+    private final ChaveConta[] contasRecentes = new ChaveConta[CONTAS_RECENTES];
+
+    public static CommandTokenizer daThread() {
+        return POR_THREAD.get();
+    }
+
+    /**
+     * Mesma separação de {@code texto.split("-")}: campos vazios no fim são
+     * descartados.
+     *
+     * @return false se não sobrar nenhum campo
+     */
+    public boolean tokenizar(CharSequence texto) {
+        this.texto = texto;
+        quantidade = 0;
+        if (texto == null) {
+            return false;
+        }
+        int inicio = 0;
+        int tamanho = texto.length();
+        for (int i = 0; i < tamanho; i++) {
+            if (texto.charAt(i) == '-') {
+                adicionar(inicio, i);
+                inicio = i + 1;
+            }
+        }
+        adicionar(inicio, tamanho);
+        while (quantidade > 0 && inicios[quantidade - 1] == fins[quantidade - 1]) {
+            quantidade--;
+        }
+        return quantidade > 0;
+    }
+
+    private void adicionar(int inicio, int fim) {
+        if (quantidade == inicios.length) {
+            inicios = Arrays.copyOf(inicios, quantidade * 2);
+            fins = Arrays.copyOf(fins, quantidade * 2);
+        }
+        inicios[quantidade] = inicio;
+        fins[quantidade] = fim;
+        quantidade++;
+    }
+
+    public int quantidade() {
+        return quantidade;
+    }
+
+    /** @return o comando do primeiro campo, ou null se não for um comando */
+    public Opcode opcode() {
+        return quantidade > 0 ? Opcode.doNome(texto, inicios[0], fins[0]) : null;
+    }
+
+    public String campo(int indice) {
+        return texto.subSequence(inicios[indice], fins[indice]).toString();
+    }
+
+    public boolean campoIgual(int indice, String valor) {
+        int inicio = inicios[indice];
+        int tamanho = fins[indice] - inicio;
+        if (tamanho != valor.length()) {
+            return false;
+        }
+        for (int i = 0; i < tamanho; i++) {
+            if (texto.charAt(inicio + i) != valor.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Conta formada pelos campos {@code indice} (banco), {@code indice + 1}
+     * (agência) e {@code indice + 2} (número). Só copia os campos se a conta
+     * não estiver entre as recentes.
+     */
+    public ChaveConta chaveConta(int indice) {
+        int h = hash(indice);
+        h = 31 * h + hash(indice + 1);
+        h = 31 * h + hash(indice + 2);
+        int posicao = (h ^ (h >>> 16)) & (contasRecentes.length - 1);
+        ChaveConta recente = contasRecentes[posicao];
+        if (recente != null && campoIgual(indice, recente.banco()) && campoIgual(indice + 1, recente.agencia())
+                && campoIgual(indice + 2, recente.conta())) {
+            return recente;
+        }
+        ChaveConta chave = new ChaveConta(campo(indice), campo(indice + 1), campo(indice + 2));
+        contasRecentes[posicao] = chave;
+        return chave;
+    }
+
+    private int hash(int indice) {
+        int h = 0;
+        for (int i = inicios[indice]; i < fins[indice]; i++) {
+            h = 31 * h + texto.charAt(i);
+        }
+        return h;
+    }
+
+    /** @throws NumberFormatException como {@link Dinheiro#parseCentavos(String)} */
+    public long centavos(int indice) {
+        return Dinheiro.parseCentavos(texto, inicios[indice], fins[indice]);
+    }
+
+    /** @throws NumberFormatException se o campo não for um inteiro */
+    public int inteiro(int indice) {
+        int inicio = inicios[indice];
+        int fim = fins[indice];
+        while (inicio < fim && texto.charAt(inicio) <= ' ') {
+            inicio++;
+        }
+        while (fim > inicio && texto.charAt(fim - 1) <= ' ') {
+            fim--;
+        }
+        return Integer.parseInt(texto, inicio, fim, 10);
+    }
+}
@@ -0,0 +1,37 @@
+package br.imd.processors;
+
+/**
+ * Conteúdo do heartbeat que os servidores mandam ao gateway:
+ * {@code porta;no;capacidade}. Só a porta é obrigatória, então servidores
+ * antigos que mandam apenas a porta continuam sendo aceitos.
+ *
+ * O protocolo do servidor é dado pela porta do Heartbeat onde a mensagem
+ * chega (UDP 1, TCP 2, HTTP 3).
+ */
+public record HeartbeatMessage(int porta, String no, int capacidade) {
+    public static final char SEPARADOR = ';';
+    /** Intervalo entre heartbeats; o gateway usa o mesmo valor como estimativa inicial. */
+    public static final long INTERVALO_MS = Long.getLong("banco.heartbeat.intervaloMs", 250L);
+
+    /**
+     * Mensagem deste processo. O id vem de {@code banco.no.id} e a capacidade
+     * (peso no balanceamento) de {@code banco.no.capacidade}.
+     */
+    public static HeartbeatMessage doNo(int porta) {
+        String no = System.getProperty("banco.no.id", "localhost:" + porta);
+        return new HeartbeatMessage(porta, no, Integer.getInteger("banco.no.capacidade", 1));
+    }
+
+    public String formatar() {
+        return Integer.toString(porta) + SEPARADOR + no + SEPARADOR + capacidade;
+    }
+
+    /** @throws NumberFormatException se a porta ou a capacidade forem inválidas */
+    public static HeartbeatMessage ler(String texto) {
+        String[] partes = texto.trim().split(String.valueOf(SEPARADOR), -1);
+        int porta = Integer.parseInt(partes[0].trim());
+        String no = partes.length > 1 && !partes[1].isBlank() ? partes[1].trim() : "localhost:" + porta;
+        int capacidade = partes.length > 2 ? Integer.parseInt(partes[2].trim()) : 1;
+        return new HeartbeatMessage(porta, no, Math.max(1, capacidade));
+    }
+}
@@ -0,0 +1,63 @@
+package br.imd.processors;
+
+/**
+ * Enquadramento multiplexado entre o gateway e o TcpServer, e entre os nós e o
+ * TransferenciaService.
+ *
+ * O gateway abre a conexão mandando {@link #HELLO}; se o servidor responde
+ * {@link #HELLO_OK}, a conexão fica aberta e cada linha passa a ser
+ * {@code @<id>|<comando>}, com a resposta {@code @<id>|<resposta>} podendo
+ * chegar fora de ordem. Um servidor que não entende o HELLO responde outra
+ * coisa e fecha, e o gateway volta a uma conexão por comando.
+ *
+ * No UDP não há HELLO: o gateway manda {@code @<id>|<comando>} em cada
+ * datagrama e o servidor responde com o mesmo cabeçalho.
+ */
+public final class MuxFraming {
+    public static final String HELLO = "MUX/1";
+    public static final String HELLO_OK = "MUX/1 OK";
+    public static final char INICIO = '@';
+    public static final char SEPARADOR = '|';
+
+    private MuxFraming() {
+    }
+
+    /**
+     * Enquadra uma requisição. Ela não é reescrita: quem tem quebras de linha
+     * com significado (como os itens de TRANSFERIR_LOTE) converte antes.
+     *
+     * @throws IllegalArgumentException se o comando tiver quebra de linha
+     */
+    public static String enquadrar(long id, String comando) {
+        if (comando.indexOf('\n') >= 0 || comando.indexOf('\r') >= 0) {
+            throw new IllegalArgumentException("Comando com quebra de linha.");
+        }
+        return cabecalho(id) + comando;
+    }
+
+    /** Enquadra uma resposta; as respostas viajam numa linha só. */
+    public static String enquadrarResposta(long id, String resposta) {
+        return cabecalho(id) + resposta.replace('\n', ' ').replace('\r', ' ');
+    }
+
+    public static String cabecalho(long id) {
+        return INICIO + Long.toString(id) + SEPARADOR;
+    }
+
+    /** @return o id da linha, ou -1 se ela não estiver enquadrada */
+    public static long extrairId(String linha) {
+        int separador = linha.indexOf(SEPARADOR);
+        if (linha.isEmpty() || linha.charAt(0) != INICIO || separador < 2) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(linha, 1, separador, 10);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public static String extrairConteudo(String linha) {
+        return linha.substring(linha.indexOf(SEPARADOR) + 1);
+    }
+}
@@ -0,0 +1,81 @@
+package br.imd.processors;
+
+/**
+ * Comandos do banco. O nome é o usado no protocolo de texto e o código é o
+ * primeiro byte do corpo no {@link BinaryProtocol}.
+ */
+public enum Opcode {
+    SACAR(1),
+    DEPOSITAR(2),
+    CRIAR_CONTA(3),
+    CRIAR_BANCO(4),
+    LISTAR_CONTAS(5),
+    LISTAR_CONTAS_PAGINA(6),
+    LISTAR_BANCOS(7),
+    EXCLUIR_CONTA(8),
+    EXCLUIR_BANCO(9),
+    TRANSFERIR(10),
+    TRANSFERIR_LOTE(11);
+
+    private static final Opcode[] POR_CODIGO = new Opcode[16];
+    // values() devolve uma cópia a cada chamada
+    private static final Opcode[] TODOS = values();
+
+    static {
+        for (Opcode opcode : TODOS) {
+            POR_CODIGO[opcode.codigo] = opcode;
+        }
+    }
+
+    private final byte codigo;
+
+    Opcode(int codigo) {
+        this.codigo = (byte) codigo;
+    }
+
+    public byte getCodigo() {
+        return codigo;
+    }
+
+    /** Transferências são repassadas ao serviço de transferência. */
+    public boolean isTransferencia() {
+        return this == TRANSFERIR || this == TRANSFERIR_LOTE;
+    }
+
+    /** @return o comando do código, ou null se não existir */
+    public static Opcode doCodigo(int codigo) {
+        return codigo >= 0 && codigo < POR_CODIGO.length ? POR_CODIGO[codigo] : null;
+    }
+
+    /**
+     * Nome do protocolo de texto em {@code texto[inicio, fim)}, sem diferenciar
+     * maiúsculas e ignorando espaços nas pontas.
+     *
+     * @return o comando, ou null se o nome não existir
+     */
+    public static Opcode doNome(CharSequence texto, int inicio, int fim) {
+        while (inicio < fim && texto.charAt(inicio) <= ' ') {
+            inicio++;
+        }
+        while (fim > inicio && texto.charAt(fim - 1) <= ' ') {
+            fim--;
+        }
+        int tamanho = fim - inicio;
+        for (Opcode opcode : TODOS) {
+            String nome = opcode.name();
+            if (nome.length() == tamanho && mesmoNome(nome, texto, inicio)) {
+                return opcode;
+            }
+        }
+        return null;
+    }
+
+    private static boolean mesmoNome(String nome, CharSequence texto, int inicio) {
+        for (int i = 0; i < nome.length(); i++) {
+            if (Character.toUpperCase(texto.charAt(inicio + i)) != nome.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
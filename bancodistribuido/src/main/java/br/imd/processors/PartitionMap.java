@@ -0,0 +1,120 @@
+package br.imd.processors;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Partições do serviço de transferência: cada instância responde por uma
+ * faixa {@code [inicio, fim)} do hash de (banco, agência, conta), num espaço
+ * de {@link #ESPACO} posições.
+ *
+ * As instâncias anunciam a faixa no heartbeat ao gateway, que devolve o mapa
+ * atual no formato {@code inicio-fim@host:porta,...}. Um mapa vazio quer dizer
+ * uma instância só, no endereço configurado.
+ */
+public final class PartitionMap {
+    public static final int ESPACO = 1 << 16;
+    /** Porta TCP do Heartbeat do gateway para as instâncias e para o mapa. */
+    public static final int PORTA_HEARTBEAT = 4;
+    public static final String PEDIDO = "PARTICOES";
+    private static final PartitionMap VAZIO = new PartitionMap(new Particao[0]);
+
+    private static volatile PartitionMap atual = VAZIO;
+
+    // Ordenadas pelo início da faixa
+    private final Particao[] particoes;
+
+    public record Particao(int inicio, int fim, String host, int porta) {
+        public boolean contem(int hash) {
+            return hash >= inicio && hash < fim;
+        }
+
+        public String formatar() {
+            return inicio + "-" + fim + "@" + host + ":" + porta;
+        }
+    }
+
+    private PartitionMap(Particao[] particoes) {
+        this.particoes = particoes;
+    }
+
+    public static PartitionMap de(Collection<Particao> particoes) {
+        Particao[] ordenadas = particoes.toArray(new Particao[0]);
+        Arrays.sort(ordenadas, Comparator.comparingInt(Particao::inicio));
+        return new PartitionMap(ordenadas);
+    }
+
+    /** Mapa mais recente recebido do gateway neste processo. */
+    public static PartitionMap atual() {
+        return atual;
+    }
+
+    public static void publicar(PartitionMap mapa) {
+        atual = mapa;
+    }
+
+    public static int hash(String banco, String agencia, String conta) {
+        // String.hashCode é o mesmo em qualquer JVM; a mistura espalha as
+        // contas de números sequenciais pelas faixas
+        int h = (banco + '-' + agencia + '-' + conta).hashCode();
+        h ^= h >>> 16;
+        h *= 0x45d9f3b;
+        h ^= h >>> 16;
+        return h & (ESPACO - 1);
+    }
+
+    /** @return a instância dona do hash, ou null se nenhuma faixa o cobre */
+    public Particao dono(int hash) {
+        for (Particao particao : particoes) {
+            if (particao.contem(hash)) {
+                return particao;
+            }
+        }
+        return null;
+    }
+
+    public boolean isVazio() {
+        return particoes.length == 0;
+    }
+
+    public String formatar() {
+        StringBuilder texto = new StringBuilder();
+        for (Particao particao : particoes) {
+            if (texto.length() > 0) {
+                texto.append(',');
+            }
+            texto.append(particao.formatar());
+        }
+        return texto.toString();
+    }
+
+    /** @throws NumberFormatException se alguma faixa ou porta for inválida */
+    public static PartitionMap ler(String texto) {
+        if (texto == null || texto.isBlank()) {
+            return VAZIO;
+        }
+        List<Particao> particoes = new ArrayList<>();
+        for (String item : texto.trim().split(",")) {
+            int arroba = item.indexOf('@');
+            int doisPontos = item.lastIndexOf(':');
+            int[] faixa = lerFaixa(item.substring(0, arroba));
+            particoes.add(new Particao(faixa[0], faixa[1], item.substring(arroba + 1, doisPontos),
+                    Integer.parseInt(item.substring(doisPontos + 1))));
+        }
+        return de(particoes);
+    }
+
+    /** Lê {@code inicio-fim}, limitado a {@code [0, ESPACO]}. */
+    public static int[] lerFaixa(String texto) {
+        String[] limites = texto.trim().split("-");
+        int inicio = Integer.parseInt(limites[0].trim());
+        int fim = Integer.parseInt(limites[1].trim());
+        if (inicio < 0 || fim > ESPACO || inicio >= fim) {
+            throw new NumberFormatException("Faixa de partição inválida: " + texto);
+        }
+        return new int[] { inicio, fim };
+    }
+}
@@ -7,9 +7,17 @@ import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
 
+import br.imd.cache.ExpiringCache;
 import br.imd.entity.Banco;
 
 public class BancoRepository {
+    // Cache deste processo: escritas feitas por outros nós (ou pelo serviço de
+    // transferência) só aparecem depois do TTL. Serve a consultas; decisões de
+    // escrita usam existeBanco, que vai sempre ao banco de dados.
+    private static final ExpiringCache<String, Banco> bancoCache = new ExpiringCache<>("banco",
+            Integer.getInteger("banco.cache.banco.max", 1000),
+            Long.getLong("banco.cache.banco.ttlMs", 60000L));
+
     private DataBaseConnection databaseConnection;
 
     public BancoRepository() {
@@ -23,13 +31,20 @@ public class BancoRepository {
                 PreparedStatement pstmt = conn.prepareStatement(sql)) {
             pstmt.setString(1, banco.getNome());
             pstmt.executeUpdate();
+            bancoCache.invalidate(banco.getNome());
         } catch (SQLException e) {
             e.getMessage();
         }
     }
 
     public Banco buscarBanco(String nome) {
+        Banco cacheado = bancoCache.get(nome);
+        if (cacheado != null) {
+            return new Banco(cacheado.getNome());
+        }
+
         String sql = "SELECT * FROM banco WHERE nome = ?";
+        long versao = bancoCache.versao();
         Banco banco = null;
         try (Connection conn = databaseConnection.getConnection();
                 PreparedStatement pstmt = conn.prepareStatement(sql)) {
@@ -37,6 +52,7 @@ public class BancoRepository {
             ResultSet rs = pstmt.executeQuery();
             if (rs.next()) {
                 banco = new Banco(rs.getString("nome"));
+                bancoCache.putSeInalterado(nome, new Banco(banco.getNome()), versao);
             }
         } catch (SQLException e) {
             e.getMessage();
@@ -44,6 +60,18 @@ public class BancoRepository {
         return banco;
     }
 
+    public boolean existeBanco(String nome) throws SQLException {
+        String sql = "SELECT 1 FROM banco WHERE nome = ?";
+
+        try (Connection conn = databaseConnection.getConnection();
+                PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setString(1, nome);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+
     public List<Banco> listarBancos() {
         String sql = "SELECT * FROM banco";
         List<Banco> bancos = new ArrayList<>();
@@ -72,6 +100,9 @@ public class BancoRepository {
             pstmt.executeUpdate();
         } catch (SQLException e) {
             e.getMessage();
+        } finally {
+            bancoCache.invalidate(nome);
+            ContaRepository.invalidarContasDoBanco(nome);
         }
     }
 
@@ -92,4 +123,8 @@ public class BancoRepository {
 
         return bancos;
     }
+
+    public static String estatisticasCache() {
+        return bancoCache.estatisticas();
+    }
 }
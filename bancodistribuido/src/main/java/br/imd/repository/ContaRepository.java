@@ -1,21 +1,48 @@
 package br.imd.repository;
 
+import java.math.BigDecimal;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
 
+import br.imd.cache.ExpiringCache;
+import br.imd.entity.Banco;
+import br.imd.entity.ChaveConta;
 import br.imd.entity.Conta;
+import br.imd.entity.Dinheiro;
+import br.imd.entity.PaginaContas;
 
 public class ContaRepository {
+    // Somente leituras sem lock passam pelo cache; buscarContaEBloquear e
+    // existeConta sempre vão ao banco de dados. O cache é deste processo e não
+    // vê escritas de outros nós (transferências, exclusões) antes do TTL, então
+    // não serve para decidir escritas.
+    //
+    // Os métodos de escrita não invalidam: a transação do chamador ainda está
+    // aberta e uma leitura concorrente guardaria a linha antiga. Quem confirma
+    // (o storage, o journal) chama invalidar depois do commit.
+    private static final ExpiringCache<ChaveConta, Conta> contaCache = new ExpiringCache<>("conta",
+            Integer.getInteger("banco.cache.conta.max", 10000),
+            Long.getLong("banco.cache.conta.ttlMs", 5000L));
+
+    // O banco vem no próprio join; LEFT JOIN mantém contas cujo banco não existe
+    // mais, com banco nulo, como antes.
+    private static final String SELECT_CONTAS_COM_BANCO = "SELECT c.banco, c.agencia, c.conta, c.saldo, "
+            + "b.nome AS banco_nome FROM conta c LEFT JOIN banco b ON b.nome = c.banco";
+
+    private static final int STREAM_FETCH_SIZE = Integer.getInteger("banco.db.stream.fetchSize", 500);
+
     private DataBaseConnection dataBaseConnection;
-    private BancoRepository bancoRepository;
 
     public ContaRepository() {
         this.dataBaseConnection = new DataBaseConnection();
-        this.bancoRepository = new BancoRepository();
     }
 
     public void criarConta(Connection conn, Conta conta) throws SQLException {
@@ -31,7 +58,7 @@ public class ContaRepository {
             pstmt.setString(1, conta.getBanco().getNome());
             pstmt.setString(2, conta.getAgencia());
             pstmt.setString(3, conta.getConta());
-            pstmt.setDouble(4, conta.getSaldo());
+            pstmt.setBigDecimal(4, Dinheiro.paraDecimal(conta.getSaldo()));
             pstmt.executeUpdate();
         } catch (SQLException e) {
             e.printStackTrace();
@@ -47,7 +74,14 @@ public class ContaRepository {
     }
 
     public Conta buscarConta(Connection conn, String banco, String agencia, String conta) throws SQLException {
+        ChaveConta chave = new ChaveConta(banco, agencia, conta);
+        Conta cacheada = contaCache.get(chave);
+        if (cacheada != null) {
+            return new Conta(cacheada);
+        }
+
         String sql = "SELECT * FROM conta WHERE banco = ? AND agencia = ? AND conta = ?";
+        long versao = contaCache.versao();
         Conta contaResult = null;
         boolean closeConnection = false;
 
@@ -62,7 +96,9 @@ public class ContaRepository {
             ResultSet rs = pstmt.executeQuery();
 
             if (rs.next()) {
-                contaResult = new Conta(rs.getString("agencia"), rs.getString("conta"), rs.getDouble("saldo"));
+                contaResult = new Conta(rs.getString("conta"), rs.getString("agencia"),
+                        Dinheiro.deDecimal(rs.getBigDecimal("saldo")));
+                contaCache.putSeInalterado(chave, new Conta(contaResult), versao);
             }
         } catch (SQLException e) {
             e.printStackTrace();
@@ -79,21 +115,14 @@ public class ContaRepository {
     }
 
     public List<Conta> listarContas() throws SQLException {
-        String sql = "SELECT * FROM conta";
+        String sql = SELECT_CONTAS_COM_BANCO;
         List<Conta> contas = new ArrayList<>();
 
         try (Connection conn = dataBaseConnection.getConnection();
                 PreparedStatement pstmt = conn.prepareStatement(sql);
                 ResultSet rs = pstmt.executeQuery()) {
 
-            while (rs.next()) {
-                Conta conta = new Conta(
-                        rs.getString("agencia"),
-                        rs.getString("conta"),
-                        rs.getDouble("saldo"),
-                        bancoRepository.buscarBanco(rs.getString("banco")));
-                contas.add(conta);
-            }
+            mapearContas(rs, contas);
         } catch (SQLException e) {
             e.printStackTrace();
             throw e;
@@ -108,7 +137,7 @@ public class ContaRepository {
         try (
                 PreparedStatement pstmt = conn.prepareStatement(sql)) {
 
-            pstmt.setDouble(1, conta.getSaldo());
+            pstmt.setBigDecimal(1, Dinheiro.paraDecimal(conta.getSaldo()));
             pstmt.setString(2, conta.getBanco().getNome());
             pstmt.setString(3, conta.getAgencia());
             pstmt.setString(4, conta.getConta());
@@ -125,6 +154,80 @@ public class ContaRepository {
         }
     }
 
+    /**
+     * Debita {@code valor} em um único UPDATE condicional. Retorna false se a
+     * conta não existe ou não tem saldo suficiente; use {@link #existeConta}
+     * para diferenciar os dois casos.
+     */
+    public boolean debitarSaldo(Connection conn, String banco, String agencia, String conta, long valor)
+            throws SQLException {
+        String sql = "UPDATE conta SET saldo = saldo - ? WHERE banco = ? AND agencia = ? AND conta = ? AND saldo >= ?";
+
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            BigDecimal decimal = Dinheiro.paraDecimal(valor);
+            pstmt.setBigDecimal(1, decimal);
+            pstmt.setString(2, banco);
+            pstmt.setString(3, agencia);
+            pstmt.setString(4, conta);
+            pstmt.setBigDecimal(5, decimal);
+            return pstmt.executeUpdate() == 1;
+        }
+    }
+
+    public boolean creditarSaldo(Connection conn, String banco, String agencia, String conta, long valor)
+            throws SQLException {
+        String sql = "UPDATE conta SET saldo = saldo + ? WHERE banco = ? AND agencia = ? AND conta = ?";
+
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setBigDecimal(1, Dinheiro.paraDecimal(valor));
+            pstmt.setString(2, banco);
+            pstmt.setString(3, agencia);
+            pstmt.setString(4, conta);
+            return pstmt.executeUpdate() == 1;
+        }
+    }
+
+    /**
+     * Soma os créditos agregados por conta com um único batch. Devolve as
+     * chaves que não existiam (nenhuma linha alterada).
+     */
+    public List<ChaveConta> creditarSaldos(Connection conn, Map<ChaveConta, Long> creditos) throws SQLException {
+        String sql = "UPDATE conta SET saldo = saldo + ? WHERE banco = ? AND agencia = ? AND conta = ?";
+        List<ChaveConta> inexistentes = new ArrayList<>();
+
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            for (Map.Entry<ChaveConta, Long> entrada : creditos.entrySet()) {
+                ChaveConta chave = entrada.getKey();
+                pstmt.setBigDecimal(1, Dinheiro.paraDecimal(entrada.getValue()));
+                pstmt.setString(2, chave.banco());
+                pstmt.setString(3, chave.agencia());
+                pstmt.setString(4, chave.conta());
+                pstmt.addBatch();
+            }
+            int[] alteradas = pstmt.executeBatch();
+            int i = 0;
+            for (ChaveConta chave : creditos.keySet()) {
+                if (alteradas[i++] == 0) {
+                    inexistentes.add(chave);
+                }
+            }
+        }
+        return inexistentes;
+    }
+
+    public boolean existeConta(Connection conn, String banco, String agencia, String conta) throws SQLException {
+        String sql = "SELECT 1 FROM conta WHERE banco = ? AND agencia = ? AND conta = ?";
+
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setString(1, banco);
+            pstmt.setString(2, agencia);
+            pstmt.setString(3, conta);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+
     public void excluirConta(Connection conn, String banco, String agencia, String conta) throws SQLException {
         String sql = "DELETE FROM conta WHERE banco=? AND agencia = ? AND  conta = ? ";
         boolean closeConnection = false;
@@ -135,8 +238,9 @@ public class ContaRepository {
         }
 
         try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, agencia);
-            pstmt.setString(2, conta);
+            pstmt.setString(1, banco);
+            pstmt.setString(2, agencia);
+            pstmt.setString(3, conta);
             pstmt.executeUpdate();
         } catch (SQLException e) {
             e.printStackTrace();
@@ -166,7 +270,7 @@ public class ContaRepository {
                     Conta contaObj = new Conta();
                     contaObj.setAgencia(rs.getString("agencia"));
                     contaObj.setConta(rs.getString("conta"));
-                    contaObj.setSaldo(rs.getDouble("saldo"));
+                    contaObj.setSaldo(Dinheiro.deDecimal(rs.getBigDecimal("saldo")));
                     return contaObj;
                 } else {
                     return null;
@@ -175,8 +279,125 @@ public class ContaRepository {
         }
     }
 
+    /**
+     * Contas travadas por {@link #buscarSaldosEBloquear}. Cada chave pedida
+     * aponta para a chave da linha como está no banco de dados; chaves que a
+     * collation considera iguais (maiúsculas, acentos) apontam para a mesma
+     * linha e dividem o mesmo saldo.
+     */
+    public record ContasBloqueadas(Map<ChaveConta, ChaveConta> linhas, Map<ChaveConta, Long> saldos) {
+        /** @return a chave da linha, ou null se a conta não existe */
+        public ChaveConta linha(ChaveConta pedida) {
+            return linhas.get(pedida);
+        }
+    }
+
+    /**
+     * Trava as contas informadas com um único SELECT ... FOR UPDATE. A
+     * consulta percorre o índice em ordem (banco, agência, conta) segundo a
+     * collation das colunas, que pode diferir de {@link ChaveConta#compareTo};
+     * toda transação que altera mais de uma conta trava por aqui, então todas
+     * seguem a mesma ordem e não formam ciclo de espera.
+     *
+     * @return as chaves das linhas travadas, na ordem em que foram travadas
+     */
+    public List<ChaveConta> bloquearContas(Connection conn, Collection<ChaveConta> chaves) throws SQLException {
+        List<ChaveConta> travadas = new ArrayList<>(chaves.size());
+        if (chaves.isEmpty()) {
+            return travadas;
+        }
+        StringBuilder sql = new StringBuilder(
+                "SELECT banco, agencia, conta FROM conta WHERE (banco, agencia, conta) IN (");
+        for (int i = 0; i < chaves.size(); i++) {
+            sql.append(i == 0 ? "(?, ?, ?)" : ", (?, ?, ?)");
+        }
+        sql.append(") ORDER BY banco, agencia, conta FOR UPDATE");
+        try (PreparedStatement pstmt = conn.prepareStatement(sql.toString())) {
+            preencherChaves(pstmt, 1, chaves);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    travadas.add(new ChaveConta(rs.getString("banco"), rs.getString("agencia"),
+                            rs.getString("conta")));
+                }
+            }
+        }
+        return travadas;
+    }
+
+    /**
+     * Trava as contas com {@link #bloquearContas} e devolve o saldo de cada
+     * uma que existe.
+     *
+     * As linhas voltam com o texto gravado no banco, que pela collation pode
+     * diferir do pedido; uma segunda consulta, com as linhas já travadas, liga
+     * cada chave pedida à sua linha com a mesma comparação {@code coluna = ?}
+     * de um TRANSFERIR simples.
+     */
+    public ContasBloqueadas buscarSaldosEBloquear(Connection conn, Collection<ChaveConta> chaves)
+            throws SQLException {
+        Map<ChaveConta, ChaveConta> linhas = new HashMap<>(chaves.size() * 2);
+        Map<ChaveConta, Long> saldos = new HashMap<>(chaves.size() * 2);
+        if (chaves.isEmpty()) {
+            return new ContasBloqueadas(linhas, saldos);
+        }
+
+        bloquearContas(conn, chaves);
+
+        List<ChaveConta> pedidas = new ArrayList<>(chaves);
+        StringBuilder porChave = new StringBuilder();
+        for (int i = 0; i < pedidas.size(); i++) {
+            if (i > 0) {
+                porChave.append(" UNION ALL ");
+            }
+            porChave.append("SELECT ").append(i)
+                    .append(" AS pedido, banco, agencia, conta, saldo FROM conta WHERE banco = ? AND agencia = ? AND conta = ?");
+        }
+        try (PreparedStatement pstmt = conn.prepareStatement(porChave.toString())) {
+            preencherChaves(pstmt, 1, pedidas);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    ChaveConta linha = new ChaveConta(rs.getString("banco"), rs.getString("agencia"),
+                            rs.getString("conta"));
+                    linhas.put(pedidas.get(rs.getInt("pedido")), linha);
+                    saldos.put(linha, Dinheiro.deDecimal(rs.getBigDecimal("saldo")));
+                }
+            }
+        }
+        return new ContasBloqueadas(linhas, saldos);
+    }
+
+    private static void preencherChaves(PreparedStatement pstmt, int inicio, Collection<ChaveConta> chaves)
+            throws SQLException {
+        int i = inicio;
+        for (ChaveConta chave : chaves) {
+            pstmt.setString(i++, chave.banco());
+            pstmt.setString(i++, chave.agencia());
+            pstmt.setString(i++, chave.conta());
+        }
+    }
+
+    /**
+     * Grava os novos saldos com um único batch JDBC. As chaves devem estar
+     * travadas na transação de {@code conn}.
+     */
+    public void atualizarSaldos(Connection conn, Map<ChaveConta, Long> saldos) throws SQLException {
+        String sql = "UPDATE conta SET saldo = ? WHERE banco = ? AND agencia = ? AND conta = ?";
+
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            for (Map.Entry<ChaveConta, Long> entrada : saldos.entrySet()) {
+                ChaveConta chave = entrada.getKey();
+                pstmt.setBigDecimal(1, Dinheiro.paraDecimal(entrada.getValue()));
+                pstmt.setString(2, chave.banco());
+                pstmt.setString(3, chave.agencia());
+                pstmt.setString(4, chave.conta());
+                pstmt.addBatch();
+            }
+            pstmt.executeBatch();
+        }
+    }
+
     public List<Conta> listarContasPorBanco(Connection conn, String bancoNome) throws SQLException {
-        String sql = "SELECT * FROM conta WHERE banco = ?";
+        String sql = SELECT_CONTAS_COM_BANCO + " WHERE c.banco = ?";
         List<Conta> contas = new ArrayList<>();
         boolean closeConnection = false;
 
@@ -187,12 +408,8 @@ public class ContaRepository {
 
         try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
             pstmt.setString(1, bancoNome);
-            ResultSet rs = pstmt.executeQuery();
-
-            while (rs.next()) {
-                Conta conta = new Conta(rs.getString("agencia"), rs.getString("conta"), rs.getDouble("saldo"),
-                        bancoRepository.buscarBanco(rs.getString("banco")));
-                contas.add(conta);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                mapearContas(rs, contas);
             }
         } catch (SQLException e) {
             e.getMessage();
@@ -210,4 +427,112 @@ public class ContaRepository {
         return contas;
     }
 
+    /**
+     * Busca até {@code tamanho} contas depois de {@code apos} na ordem
+     * (banco, agência, conta). {@code bancoNome} nulo lista todos os bancos e
+     * {@code apos} nulo começa do início.
+     */
+    public PaginaContas listarContasPagina(String bancoNome, ChaveConta apos, int tamanho) throws SQLException {
+        StringBuilder sql = new StringBuilder(SELECT_CONTAS_COM_BANCO).append(" WHERE 1 = 1");
+        if (bancoNome != null) {
+            sql.append(" AND c.banco = ?");
+        }
+        if (apos != null) {
+            sql.append(" AND (c.banco, c.agencia, c.conta) > (?, ?, ?)");
+        }
+        sql.append(" ORDER BY c.banco, c.agencia, c.conta LIMIT ?");
+
+        List<Conta> contas = new ArrayList<>(tamanho);
+        String proximoCursor = null;
+        try (Connection conn = dataBaseConnection.getConnection();
+                PreparedStatement pstmt = conn.prepareStatement(sql.toString())) {
+            int i = 1;
+            if (bancoNome != null) {
+                pstmt.setString(i++, bancoNome);
+            }
+            if (apos != null) {
+                pstmt.setString(i++, apos.banco());
+                pstmt.setString(i++, apos.agencia());
+                pstmt.setString(i++, apos.conta());
+            }
+            // Uma linha a mais só para saber se existe próxima página
+            pstmt.setInt(i, tamanho + 1);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                Map<String, Banco> bancos = new HashMap<>();
+                ChaveConta ultima = null;
+                while (rs.next()) {
+                    if (contas.size() == tamanho) {
+                        proximoCursor = PaginaContas.codificarCursor(ultima);
+                        break;
+                    }
+                    contas.add(mapearConta(rs, bancos));
+                    ultima = new ChaveConta(rs.getString("banco"), rs.getString("agencia"), rs.getString("conta"));
+                }
+            }
+        } catch (SQLException e) {
+            throw new SQLException("Erro ao listar contas: " + e.getMessage(), e);
+        }
+        return new PaginaContas(contas, proximoCursor);
+    }
+
+    /**
+     * Entrega as contas ao consumidor conforme saem do {@link ResultSet}, sem
+     * montar a lista. O fetch size faz o driver trazer as linhas em blocos
+     * (requer useCursorFetch, ligado no pool).
+     */
+    public void percorrerContas(String bancoNome, Consumer<Conta> consumidor) throws SQLException {
+        String sql = SELECT_CONTAS_COM_BANCO + (bancoNome != null ? " WHERE c.banco = ?" : "")
+                + " ORDER BY c.banco, c.agencia, c.conta";
+
+        try (Connection conn = dataBaseConnection.getConnection();
+                PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setFetchSize(STREAM_FETCH_SIZE);
+            if (bancoNome != null) {
+                pstmt.setString(1, bancoNome);
+            }
+            try (ResultSet rs = pstmt.executeQuery()) {
+                Map<String, Banco> bancos = new HashMap<>();
+                while (rs.next()) {
+                    consumidor.accept(mapearConta(rs, bancos));
+                }
+            }
+        }
+    }
+
+    /**
+     * Converte as linhas de {@link #SELECT_CONTAS_COM_BANCO}, criando um único
+     * {@link Banco} por nome para toda a consulta.
+     */
+    private void mapearContas(ResultSet rs, List<Conta> contas) throws SQLException {
+        Map<String, Banco> bancos = new HashMap<>();
+        while (rs.next()) {
+            contas.add(mapearConta(rs, bancos));
+        }
+    }
+
+    private Conta mapearConta(ResultSet rs, Map<String, Banco> bancos) throws SQLException {
+        String nomeBanco = rs.getString("banco_nome");
+        Banco banco = nomeBanco == null ? null : bancos.computeIfAbsent(nomeBanco, Banco::new);
+        return new Conta(rs.getString("conta"), rs.getString("agencia"),
+                Dinheiro.deDecimal(rs.getBigDecimal("saldo")), banco);
+    }
+
+    /** Tira as contas do cache; chame depois do commit que as alterou. */
+    public static void invalidar(ChaveConta chave) {
+        contaCache.invalidate(chave);
+    }
+
+    public static void invalidar(Collection<ChaveConta> chaves) {
+        for (ChaveConta chave : chaves) {
+            contaCache.invalidate(chave);
+        }
+    }
+
+    static void invalidarContasDoBanco(String banco) {
+        contaCache.invalidateIf(chave -> banco.equals(chave.banco()));
+    }
+
+    public static String estatisticasCache() {
+        return contaCache.estatisticas();
+    }
 }
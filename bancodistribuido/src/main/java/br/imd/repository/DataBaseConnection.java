@@ -1,29 +1,99 @@
 package br.imd.repository;
 
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.SQLException;
 
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+
+/**
+ * Acesso ao pool de conexões compartilhado pelo processo.
+ *
+ * Todas as instâncias usam o mesmo {@link HikariDataSource}, criado na primeira
+ * chamada. As configurações podem ser sobrescritas por propriedades de sistema
+ * (ex.: {@code -Dbanco.db.pool.max=30}).
+ */
 public class DataBaseConnection {
-    private final String url = "jdbc:mysql://localhost:3306/banco?allowPublicKeyRetrieval=true&useSSL=false";
-    private final String user = "root";
-    private final String password = "Clara.951";
-
-    public Connection getConnection() {
-        Connection connection = null;
-        try {
-            Class.forName("com.mysql.cj.jdbc.Driver");
-
-            connection = DriverManager.getConnection(url, user, password);
-            if (connection == null) {
-                System.out.println("Deu nullo");
+    private static final String URL = "jdbc:mysql://localhost:3306/banco?allowPublicKeyRetrieval=true&useSSL=false";
+    private static final String USER = "root";
+    private static final String PASSWORD = "Clara.951";
+
+    private static volatile HikariDataSource dataSource;
+
+    public Connection getConnection() throws SQLException {
+        return getDataSource().getConnection();
+    }
+
+    public static HikariDataSource getDataSource() {
+        HikariDataSource ds = dataSource;
+        if (ds == null) {
+            synchronized (DataBaseConnection.class) {
+                ds = dataSource;
+                if (ds == null) {
+                    ds = new HikariDataSource(criarConfiguracao());
+                    dataSource = ds;
+                    Runtime.getRuntime().addShutdownHook(new Thread(DataBaseConnection::fecharPool));
+                }
             }
-        } catch (ClassNotFoundException e) {
-            System.out.println("Driver JDBC não encontrado: " + e.getMessage());
-            e.printStackTrace();
-        } catch (SQLException e) {
-            System.out.println("Erro ao conectar ao banco de dados: " + e.getMessage());
         }
-        return connection;
+        return ds;
+    }
+
+    private static HikariConfig criarConfiguracao() {
+        HikariConfig config = new HikariConfig();
+        config.setPoolName("banco-pool");
+        config.setDriverClassName("com.mysql.cj.jdbc.Driver");
+        config.setJdbcUrl(System.getProperty("banco.db.url", URL));
+        config.setUsername(System.getProperty("banco.db.user", USER));
+        config.setPassword(System.getProperty("banco.db.password", PASSWORD));
+
+        config.setMaximumPoolSize(Integer.getInteger("banco.db.pool.max", 20));
+        config.setMinimumIdle(Integer.getInteger("banco.db.pool.minIdle", 5));
+        config.setConnectionTimeout(Long.getLong("banco.db.pool.connectionTimeoutMs", 5000L));
+        config.setIdleTimeout(Long.getLong("banco.db.pool.idleTimeoutMs", 600000L));
+        config.setMaxLifetime(Long.getLong("banco.db.pool.maxLifetimeMs", 1800000L));
+        config.setLeakDetectionThreshold(Long.getLong("banco.db.pool.leakDetectionMs", 10000L));
+        config.setRegisterMbeans(true);
+
+        // Cache de prepared statements no driver: as consultas são sempre as mesmas
+        config.addDataSourceProperty("cachePrepStmts", "true");
+        config.addDataSourceProperty("prepStmtCacheSize",
+                System.getProperty("banco.db.stmtCache.size", "250"));
+        config.addDataSourceProperty("prepStmtCacheSqlLimit",
+                System.getProperty("banco.db.stmtCache.sqlLimit", "2048"));
+        config.addDataSourceProperty("useServerPrepStmts", "true");
+        config.addDataSourceProperty("useLocalSessionState", "true");
+        config.addDataSourceProperty("cacheServerConfiguration", "true");
+        config.addDataSourceProperty("elideSetAutoCommits", "true");
+        config.addDataSourceProperty("rewriteBatchedStatements", "true");
+        // Só tem efeito em statements com fetch size > 0 (listagem em stream)
+        config.addDataSourceProperty("useCursorFetch", "true");
+        return config;
+    }
+
+    /**
+     * Resumo do estado atual do pool (conexões ativas, ociosas e threads
+     * aguardando).
+     */
+    public static String estatisticasPool() {
+        HikariDataSource ds = dataSource;
+        if (ds == null) {
+            return "Pool não inicializado.";
+        }
+        HikariPoolMXBean pool = ds.getHikariPoolMXBean();
+        return String.format("Pool %s: ativas=%d, ociosas=%d, total=%d, aguardando=%d",
+                ds.getPoolName(),
+                pool.getActiveConnections(),
+                pool.getIdleConnections(),
+                pool.getTotalConnections(),
+                pool.getThreadsAwaitingConnection());
+    }
+
+    public static void fecharPool() {
+        HikariDataSource ds = dataSource;
+        if (ds != null && !ds.isClosed()) {
+            ds.close();
+        }
     }
 }
@@ -0,0 +1,136 @@
+package br.imd.repository;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import br.imd.entity.ChaveConta;
+import br.imd.entity.Transferencia;
+
+/**
+ * Registros das transferências em duas fases. {@code transacao_2pc} guarda,
+ * do lado do coordenador, as transações com a origem debitada e ainda não
+ * encerradas; {@code credito_2pc_confirmado} guarda, do lado do participante,
+ * os créditos já aplicados. Os dois são gravados na transação que altera o
+ * saldo.
+ */
+public class DuasFasesRepository {
+    // CREATE TABLE faz commit implícito no MySQL: roda uma vez, fora das
+    // transações de saldo
+    private static volatile boolean tabelasCriadas;
+
+    private DataBaseConnection dataBaseConnection;
+
+    public DuasFasesRepository() {
+        this.dataBaseConnection = new DataBaseConnection();
+    }
+
+    public void criarTabelas() throws SQLException {
+        if (tabelasCriadas) {
+            return;
+        }
+        try (Connection conn = dataBaseConnection.getConnection();
+                Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("CREATE TABLE IF NOT EXISTS transacao_2pc ("
+                    + "id VARCHAR(64) PRIMARY KEY, banco_origem VARCHAR(255) NOT NULL, "
+                    + "agencia_origem VARCHAR(255) NOT NULL, conta_origem VARCHAR(255) NOT NULL, "
+                    + "banco_destino VARCHAR(255) NOT NULL, agencia_destino VARCHAR(255) NOT NULL, "
+                    + "conta_destino VARCHAR(255) NOT NULL, centavos BIGINT NOT NULL, "
+                    + "iniciada_em TIMESTAMP DEFAULT CURRENT_TIMESTAMP)");
+            stmt.executeUpdate("CREATE TABLE IF NOT EXISTS credito_2pc_confirmado ("
+                    + "id VARCHAR(64) PRIMARY KEY, confirmado_em TIMESTAMP DEFAULT CURRENT_TIMESTAMP)");
+        }
+        tabelasCriadas = true;
+    }
+
+    public void registrarTransacao(Connection conn, String id, Transferencia t) throws SQLException {
+        String sql = "INSERT INTO transacao_2pc (id, banco_origem, agencia_origem, conta_origem, "
+                + "banco_destino, agencia_destino, conta_destino, centavos) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setString(1, id);
+            pstmt.setString(2, t.origem().banco());
+            pstmt.setString(3, t.origem().agencia());
+            pstmt.setString(4, t.origem().conta());
+            pstmt.setString(5, t.destino().banco());
+            pstmt.setString(6, t.destino().agencia());
+            pstmt.setString(7, t.destino().conta());
+            pstmt.setLong(8, t.valor());
+            pstmt.executeUpdate();
+        }
+    }
+
+    /** Trava e devolve a transação pendente, ou null se ela já foi encerrada. */
+    public Transferencia buscarTransacaoEBloquear(Connection conn, String id) throws SQLException {
+        String sql = "SELECT * FROM transacao_2pc WHERE id = ? FOR UPDATE";
+
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setString(1, id);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next() ? lerTransacao(rs) : null;
+            }
+        }
+    }
+
+    public void removerTransacao(Connection conn, String id) throws SQLException {
+        try (PreparedStatement pstmt = conn.prepareStatement("DELETE FROM transacao_2pc WHERE id = ?")) {
+            pstmt.setString(1, id);
+            pstmt.executeUpdate();
+        }
+    }
+
+    public Map<String, Transferencia> listarTransacoes() throws SQLException {
+        Map<String, Transferencia> transacoes = new LinkedHashMap<>();
+
+        try (Connection conn = dataBaseConnection.getConnection();
+                PreparedStatement pstmt = conn.prepareStatement("SELECT * FROM transacao_2pc ORDER BY iniciada_em");
+                ResultSet rs = pstmt.executeQuery()) {
+            while (rs.next()) {
+                transacoes.put(rs.getString("id"), lerTransacao(rs));
+            }
+        }
+        return transacoes;
+    }
+
+    /** @return false se a confirmação já existia */
+    public boolean registrarConfirmacao(Connection conn, String id) throws SQLException {
+        try (PreparedStatement pstmt = conn.prepareStatement(
+                "INSERT IGNORE INTO credito_2pc_confirmado (id) VALUES (?)")) {
+            pstmt.setString(1, id);
+            return pstmt.executeUpdate() == 1;
+        }
+    }
+
+    public boolean existeConfirmacao(String id) throws SQLException {
+        try (Connection conn = dataBaseConnection.getConnection();
+                PreparedStatement pstmt = conn.prepareStatement(
+                        "SELECT 1 FROM credito_2pc_confirmado WHERE id = ?")) {
+            pstmt.setString(1, id);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+
+    public void removerConfirmacao(String id) throws SQLException {
+        try (Connection conn = dataBaseConnection.getConnection();
+                PreparedStatement pstmt = conn.prepareStatement(
+                        "DELETE FROM credito_2pc_confirmado WHERE id = ?")) {
+            pstmt.setString(1, id);
+            pstmt.executeUpdate();
+        }
+    }
+
+    private static Transferencia lerTransacao(ResultSet rs) throws SQLException {
+        return new Transferencia(
+                new ChaveConta(rs.getString("banco_origem"), rs.getString("agencia_origem"),
+                        rs.getString("conta_origem")),
+                new ChaveConta(rs.getString("banco_destino"), rs.getString("agencia_destino"),
+                        rs.getString("conta_destino")),
+                rs.getLong("centavos"));
+    }
+}
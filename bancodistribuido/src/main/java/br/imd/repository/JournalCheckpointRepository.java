@@ -0,0 +1,77 @@
+package br.imd.repository;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import br.imd.entity.ChaveConta;
+
+/**
+ * Guarda, por journal, a última sequência já aplicada no MySQL. É gravada na
+ * mesma transação dos saldos, então a reaplicação após um restart nunca
+ * duplica um depósito.
+ */
+public class JournalCheckpointRepository {
+    private DataBaseConnection dataBaseConnection;
+
+    public JournalCheckpointRepository() {
+        this.dataBaseConnection = new DataBaseConnection();
+    }
+
+    public long lerCheckpoint(String journalId) throws SQLException {
+        try (Connection conn = dataBaseConnection.getConnection()) {
+            try (Statement stmt = conn.createStatement()) {
+                stmt.executeUpdate("CREATE TABLE IF NOT EXISTS journal_checkpoint ("
+                        + "id VARCHAR(64) PRIMARY KEY, seq BIGINT NOT NULL)");
+                stmt.executeUpdate("CREATE TABLE IF NOT EXISTS journal_credito_nao_aplicado ("
+                        + "journal_id VARCHAR(64) NOT NULL, seq BIGINT NOT NULL, banco VARCHAR(255) NOT NULL, "
+                        + "agencia VARCHAR(255) NOT NULL, conta VARCHAR(255) NOT NULL, centavos BIGINT NOT NULL, "
+                        + "registrado_em TIMESTAMP DEFAULT CURRENT_TIMESTAMP)");
+            }
+            try (PreparedStatement pstmt = conn.prepareStatement(
+                    "INSERT IGNORE INTO journal_checkpoint (id, seq) VALUES (?, 0)")) {
+                pstmt.setString(1, journalId);
+                pstmt.executeUpdate();
+            }
+            try (PreparedStatement pstmt = conn.prepareStatement(
+                    "SELECT seq FROM journal_checkpoint WHERE id = ?")) {
+                pstmt.setString(1, journalId);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    return rs.next() ? rs.getLong("seq") : 0;
+                }
+            }
+        }
+    }
+
+    public void gravarCheckpoint(Connection conn, String journalId, long seq) throws SQLException {
+        String sql = "UPDATE journal_checkpoint SET seq = ? WHERE id = ?";
+
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setLong(1, seq);
+            pstmt.setString(2, journalId);
+            pstmt.executeUpdate();
+        }
+    }
+
+    /**
+     * Guarda um crédito confirmado pelo journal cuja conta não existia mais na
+     * aplicação; {@code seq} é o último registro do grupo aplicado.
+     */
+    public void registrarCreditoNaoAplicado(Connection conn, String journalId, long seq, ChaveConta chave,
+            long centavos) throws SQLException {
+        String sql = "INSERT INTO journal_credito_nao_aplicado (journal_id, seq, banco, agencia, conta, centavos) "
+                + "VALUES (?, ?, ?, ?, ?, ?)";
+
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setString(1, journalId);
+            pstmt.setLong(2, seq);
+            pstmt.setString(3, chave.banco());
+            pstmt.setString(4, chave.agencia());
+            pstmt.setString(5, chave.conta());
+            pstmt.setLong(6, centavos);
+            pstmt.executeUpdate();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package br.imd.servers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+import br.imd.processors.CommandTokenizer;
+import br.imd.processors.Opcode;
+
+/**
+ * Ordem dos comandos de uma conexão multiplexada.
+ *
+ * Comandos da mesma conta (a de origem e a de destino, numa transferência)
+ * rodam na ordem de chegada; contas diferentes seguem em paralelo. Comandos
+ * sem uma conta só (bancos, listagens, lotes e os inválidos) são barreiras:
+ * esperam tudo o que chegou antes, e o que chega depois espera por eles.
+ *
+ * {@link #enfileirar} é chamado só pela thread que lê a conexão.
+ */
+final class CommandSequencer {
+    private static final CompletableFuture<Void> CONCLUIDO = CompletableFuture.completedFuture(null);
+
+    private final Executor executor;
+    // Último comando de cada conta ainda em andamento
+    private final Map<String, CompletableFuture<?>> ultimos = new ConcurrentHashMap<>();
+    private CompletableFuture<?> barreira = CONCLUIDO;
+
+    CommandSequencer(Executor executor) {
+        this.executor = executor;
+    }
+
+    CompletableFuture<String> enfileirar(String comando, Supplier<CompletableFuture<String>> tarefa) {
+        String[] chaves = chaves(comando);
+        CompletableFuture<?> anterior;
+        if (chaves == null) {
+            List<CompletableFuture<?>> pendentes = new ArrayList<>(ultimos.values());
+            pendentes.add(barreira);
+            anterior = CompletableFuture.allOf(pendentes.toArray(CompletableFuture<?>[]::new));
+        } else if (chaves.length == 1) {
+            anterior = ultimos.getOrDefault(chaves[0], barreira);
+        } else {
+            anterior = CompletableFuture.allOf(ultimos.getOrDefault(chaves[0], barreira),
+                    ultimos.getOrDefault(chaves[1], barreira));
+        }
+
+        // O resultado do anterior não importa, só que ele terminou
+        CompletableFuture<String> resultado = anterior.handle((r, e) -> null)
+                .thenComposeAsync(v -> tarefa.get(), executor);
+        if (chaves == null) {
+            barreira = resultado;
+            ultimos.clear();
+        } else {
+            for (String chave : chaves) {
+                ultimos.put(chave, resultado);
+            }
+            resultado.whenComplete((r, e) -> {
+                for (String chave : chaves) {
+                    ultimos.remove(chave, resultado);
+                }
+            });
+        }
+        return resultado;
+    }
+
+    /** @return as contas do comando, ou null se ele for uma barreira */
+    private static String[] chaves(String comando) {
+        CommandTokenizer campos = CommandTokenizer.daThread();
+        if (!campos.tokenizar(comando)) {
+            return null;
+        }
+        Opcode opcode = campos.opcode();
+        if (opcode == null) {
+            return null;
+        }
+        switch (opcode) {
+            case SACAR:
+            case DEPOSITAR:
+            case CRIAR_CONTA:
+            case EXCLUIR_CONTA:
+                return campos.quantidade() >= 4 ? new String[] { conta(campos, 1) } : null;
+            case TRANSFERIR:
+                return campos.quantidade() >= 7 ? new String[] { conta(campos, 1), conta(campos, 4) } : null;
+            default:
+                return null;
+        }
+    }
+
+    private static String conta(CommandTokenizer campos, int inicio) {
+        return campos.campo(inicio) + '-' + campos.campo(inicio + 1) + '-' + campos.campo(inicio + 2);
+    }
+}
@@ -1,10 +1,15 @@
 package br.imd.servers;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.net.HttpURLConnection;
 import java.net.InetSocketAddress;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.sql.SQLException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -15,8 +20,12 @@ import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 
+import br.imd.concurrent.ExecutorFactory;
 import br.imd.processors.BankActionHandler;
+import br.imd.processors.CommandTokenizer;
+import br.imd.processors.HeartbeatMessage;
 import br.imd.processors.MessageProcessor;
+import br.imd.service.TransferenciaClient;
 
 public class HTTPServer {
     private int port;
@@ -26,14 +35,15 @@ public class HTTPServer {
     public HTTPServer(int port) throws IOException {
         this.port = port;
         this.server = HttpServer.create(new InetSocketAddress(port), 0);
-        ExecutorService executorService = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() * 2);
+        ExecutorService executorService = ExecutorFactory.porRequisicao("http",
+                Runtime.getRuntime().availableProcessors() * 2);
         server.createContext("/", new BankHandler());
         server.setExecutor(executorService);
         server.start();
         System.out.println("Servidor HTTP iniciado na porta " + port);
 
         heartbeatExecutor = Executors.newScheduledThreadPool(1);
-        heartbeatExecutor.scheduleAtFixedRate(this::sendHeartbeat, 0, 3, TimeUnit.SECONDS);
+        heartbeatExecutor.scheduleAtFixedRate(this::sendHeartbeat, 0, HeartbeatMessage.INTERVALO_MS, TimeUnit.MILLISECONDS);
     }
 
     public static void main(String[] args) throws IOException {
@@ -48,7 +58,7 @@ public class HTTPServer {
             connection.setDoOutput(true);
             connection.setRequestProperty("Content-Type", "text/plain");
 
-            String heartbeatMessage = String.valueOf(port);
+            String heartbeatMessage = HeartbeatMessage.doNo(port).formatar();
 
             try (OutputStream os = connection.getOutputStream()) {
                 os.write(heartbeatMessage.getBytes());
@@ -67,7 +77,7 @@ public class HTTPServer {
         private BankActionHandler bankActionHandler;
 
         public BankHandler() {
-            this.bankActionHandler = new BankActionHandler();
+            this.bankActionHandler = BankActionHandler.getInstance();
             this.messageProcessor = new MessageProcessor();
         }
 
@@ -109,9 +119,14 @@ public class HTTPServer {
                             case "/transferir":
                                 action = "TRANSFERIR";
                                 requestBody = "TRANSFERIR-" + requestBody;
-                                // Aguardar resposta da transferência
-                                responseMessage = sendHttpTransferRequest(requestBody);
-                                break;
+                                // A resposta sai quando o serviço de transferência responder
+                                encaminharTransferencia(exchange, requestBody, true);
+                                return;
+                            case "/transferirLote":
+                                action = "TRANSFERIR_LOTE";
+                                requestBody = "TRANSFERIR_LOTE-" + requestBody;
+                                encaminharTransferencia(exchange, requestBody, false);
+                                return;
                             default:
                                 responseMessage = "Ação não reconhecida para PUT.";
                         }
@@ -123,6 +138,13 @@ public class HTTPServer {
                                 action = "LISTAR_CONTAS";
                                 requestBody = "LISTAR_CONTAS-" + requestBody;
                                 break;
+                            case "/listarContasPagina":
+                                action = "LISTAR_CONTAS_PAGINA";
+                                requestBody = "LISTAR_CONTAS_PAGINA-" + requestBody;
+                                break;
+                            case "/listarContasStream":
+                                streamContas(exchange, requestBody);
+                                return;
                             case "/listarBancos":
                                 action = "LISTAR_BANCOS";
                                 requestBody = "LISTAR_BANCOS-" + requestBody;
@@ -153,8 +175,9 @@ public class HTTPServer {
                 }
 
                 if (!action.isEmpty() && responseMessage.isEmpty()) {
-                    String[] parts = messageProcessor.processMessage(requestBody);
-                    responseMessage = bankActionHandler.handleAction(action, parts);
+                    CommandTokenizer comando = CommandTokenizer.daThread();
+                    comando.tokenizar(requestBody);
+                    responseMessage = bankActionHandler.handleAction(comando);
                 }
 
                 if (responseMessage.contains("OK")) {
@@ -188,32 +211,45 @@ public class HTTPServer {
             }
         }
 
-        private String sendHttpTransferRequest(String requestBody) {
-            String responseMessage = "";
-            try {
-                URL url = new URL("http://localhost:4001/transferir"); // Substitua pela URL correta
-                HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-                connection.setRequestMethod("POST");
-                connection.setDoOutput(true);
-                connection.setRequestProperty("Content-Type", "text/plain");
-
-                try (OutputStream os = connection.getOutputStream()) {
-                    os.write(requestBody.getBytes());
-                    os.flush();
+        // Resposta chunked: uma conta por linha, escrita conforme sai do ResultSet
+        private void streamContas(HttpExchange exchange, String requestBody) throws IOException {
+            String[] parts = messageProcessor.processMessage("LISTAR_CONTAS-" + requestBody.trim());
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(200, 0);
+            try (Writer writer = new BufferedWriter(
+                    new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8))) {
+                try {
+                    bankActionHandler.handleListarContasStream(parts, conta -> {
+                        try {
+                            writer.write(conta.toString());
+                            writer.write('\n');
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+                    writer.write("OK\n");
+                } catch (UncheckedIOException e) {
+                    System.out.println("Cliente encerrou a listagem: " + e.getCause().getMessage());
+                } catch (SQLException | IllegalArgumentException e) {
+                    // O status 200 já foi enviado; o erro vai no corpo
+                    writer.write("Erro ao listar contas: " + e.getMessage() + "\n");
                 }
+            }
+        }
 
-                int responseCode = connection.getResponseCode();
-                if (responseCode == HttpURLConnection.HTTP_OK) {
-                    // Lê a resposta do servidor de transferência
-                    responseMessage = new String(connection.getInputStream().readAllBytes());
-                    responseMessage = "Transferência realizada com sucesso: " + responseMessage;
-                } else {
-                    responseMessage = "Erro ao redirecionar transferência: " + responseCode;
+        private void encaminharTransferencia(HttpExchange exchange, String requestBody, boolean detalhar) {
+            TransferenciaClient.getInstance().enviar(requestBody).thenAccept(resposta -> {
+                String responseMessage = detalhar && !resposta.startsWith("Erro")
+                        ? "Transferência realizada com sucesso: " + resposta
+                        : resposta;
+                byte[] corpo = responseMessage.getBytes();
+                try (OutputStream os = exchange.getResponseBody()) {
+                    exchange.sendResponseHeaders(responseMessage.contains("OK") ? 200 : 400, corpo.length);
+                    os.write(corpo);
+                } catch (IOException e) {
+                    System.err.println("Erro ao responder transferência: " + e.getMessage());
                 }
-            } catch (IOException e) {
-                responseMessage = "Erro ao enviar requisição de transferência: " + e.getMessage();
-            }
-            return responseMessage;
+            });
         }
     }
 }
@@ -1,29 +1,47 @@
 package br.imd.servers;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
+import br.imd.concurrent.ExecutorFactory;
 import br.imd.processors.BankActionHandler;
-import br.imd.processors.MessageProcessor;
+import br.imd.processors.BinaryProtocol;
+import br.imd.processors.CommandTokenizer;
+import br.imd.processors.HeartbeatMessage;
+import br.imd.processors.MuxFraming;
+import br.imd.processors.Opcode;
+import br.imd.service.TransferenciaClient;
 
 public class TcpServer {
     private int port;
 
     public TcpServer(int port) throws IOException {
         this.port = port;
+        // Abre o storage antes de aceitar conexões, para falhar na partida
+        BankActionHandler.getInstance();
         ServerSocket serverSocket = new ServerSocket(port);
 
-        ExecutorService executorService = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() * 60);
+        ExecutorService executorService = ExecutorFactory.porRequisicao("tcp",
+                Runtime.getRuntime().availableProcessors() * 60);
         service(serverSocket, executorService);
     }
 
@@ -31,13 +49,13 @@ public class TcpServer {
         System.out.println("Conexão iniciada");
 
         ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
-        scheduler.scheduleAtFixedRate(this::sendTcpPort, 0, 3, TimeUnit.SECONDS);
+        scheduler.scheduleAtFixedRate(this::sendTcpPort, 0, HeartbeatMessage.INTERVALO_MS, TimeUnit.MILLISECONDS);
 
         while (true) {
             Socket socket = null;
             try {
                 socket = serverSocket.accept();
-                executorService.execute(new Handler(socket));
+                executorService.execute(new Handler(socket, executorService));
             } catch (Exception e) {
                 e.printStackTrace();
             }
@@ -46,7 +64,7 @@ public class TcpServer {
 
     private void sendTcpPort() {
         try (Socket socket = new Socket("localhost", 2)) {
-            String message = Integer.toString(port);
+            String message = HeartbeatMessage.doNo(port).formatar();
             PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
             out.println(message);
         } catch (IOException e) {
@@ -59,99 +77,197 @@ public class TcpServer {
     }
 }
 
+/**
+ * Atende uma conexão. Se a primeira linha for o {@link MuxFraming#HELLO} do
+ * gateway, a conexão fica aberta e os comandos enquadrados são processados em
+ * paralelo no pool do servidor; se o primeiro byte for o
+ * {@link BinaryProtocol#MAGICO}, a conexão segue no protocolo binário; senão é
+ * um comando de texto só, como antes.
+ */
 class Handler implements Runnable {
+    private static final int MAX_EM_VOO = Integer.getInteger("banco.tcp.mux.maxEmVoo", 256);
+
     private Socket socket;
+    private ExecutorService executorService;
     private BankActionHandler actionHandler;
-    private MessageProcessor messageProcessor;
 
-    public Handler(Socket socket) {
+    public Handler(Socket socket, ExecutorService executorService) {
         this.socket = socket;
-        this.actionHandler = new BankActionHandler();
-        this.messageProcessor = new MessageProcessor();
-    }
-
-    private BufferedReader getReader(Socket socket) throws IOException {
-        InputStream in = socket.getInputStream();
-        return new BufferedReader(new InputStreamReader(in));
+        this.executorService = executorService;
+        this.actionHandler = BankActionHandler.getInstance();
     }
 
     public void run() {
-        BufferedReader br = null;
-        PrintWriter out = null;
-        String responseMessage = "";
-
         try {
-            br = getReader(socket);
+            BufferedInputStream in = new BufferedInputStream(socket.getInputStream());
+            // Texto ou binário, decidido pelo primeiro byte da conexão
+            in.mark(1);
+            if (in.read() == (BinaryProtocol.MAGICO & 0xFF)) {
+                atenderBinario(new DataInputStream(in));
+                return;
+            }
+            in.reset();
+            BufferedReader br = new BufferedReader(new InputStreamReader(in));
             String recv = br.readLine();
 
+            if (MuxFraming.HELLO.equals(recv)) {
+                atenderMultiplexado(br);
+                return;
+            }
             if (recv == null) {
-                responseMessage = "Conexão fechada pelo cliente.";
+                return;
             }
 
-            System.out.println("Mensagem recebida: (" + recv + ")");
-            String[] parts = messageProcessor.processMessage(recv);
-            if (parts.length == 0) {
-                responseMessage = "Comando inválido.";
-            }
+            String responseMessage = processar(recv).join();
+            System.out.println("mensagem enviada:" + responseMessage);
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            out.println(responseMessage);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            fechar();
+        }
+    }
 
-            // Verifica se o comando é uma transferência
-            if (parts[0].equalsIgnoreCase("TRANSFERIR")) {
-                // Envia para a porta 4
-                System.out.println("Enviando para transferir");
-                try (Socket transferSocket = new Socket("localhost", 4001)) {
-                    PrintWriter transferOut = new PrintWriter(transferSocket.getOutputStream(), true);
-                    transferOut.println(recv);
-
-                    // Recebe a resposta da porta 4
-                    BufferedReader transferIn = new BufferedReader(
-                            new InputStreamReader(transferSocket.getInputStream()));
-                    responseMessage = transferIn.readLine();
-                } catch (IOException e) {
-                    responseMessage = "Erro ao redirecionar para a porta 4: " + e.getMessage();
-                }
-            } else {
-                // Caso não seja uma transferência, processa normalmente
-                if (responseMessage.equals("")) {
-                    responseMessage = actionHandler.handleAction(parts[0], parts);
+    private void atenderMultiplexado(BufferedReader br) throws IOException {
+        OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+        ReentrantLock lockEscrita = new ReentrantLock();
+        Semaphore emVoo = new Semaphore(MAX_EM_VOO);
+        CommandSequencer sequencer = new CommandSequencer(executorService);
+        escrever(out, lockEscrita, MuxFraming.HELLO_OK);
+
+        try {
+            String linha;
+            while ((linha = br.readLine()) != null) {
+                long id = MuxFraming.extrairId(linha);
+                if (id < 0) {
+                    System.err.println("Linha sem id na conexão multiplexada: " + linha);
+                    continue;
                 }
+                String comando = MuxFraming.extrairConteudo(linha);
+                // Com MAX_EM_VOO comandos em andamento a leitura para, e o
+                // gateway sente pela própria conexão TCP
+                emVoo.acquireUninterruptibly();
+                // Comandos da mesma conta seguem a ordem em que chegaram
+                sequencer.enfileirar(comando, () -> processar(comando)).thenAccept(resposta -> {
+                    try {
+                        escrever(out, lockEscrita, MuxFraming.enquadrarResposta(id, resposta));
+                    } catch (IOException e) {
+                        System.err.println("Erro ao responder na conexão multiplexada: " + e.getMessage());
+                        fechar();
+                    } finally {
+                        emVoo.release();
+                    }
+                });
             }
+        } finally {
+            // Espera as respostas pendentes antes de fechar
+            emVoo.acquireUninterruptibly(MAX_EM_VOO);
+        }
+    }
 
-            System.out.println("mensagem enviada:" + responseMessage);
-            out = new PrintWriter(socket.getOutputStream(), true);
-            out.println(responseMessage);
+    /**
+     * Conexão no {@link BinaryProtocol}: quadros atendidos em ordem, cada
+     * resposta no quadro seguinte da saída.
+     */
+    private void atenderBinario(DataInputStream in) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        int versao = in.read();
+        out.writeByte(BinaryProtocol.MAGICO);
+        out.writeByte(versao == BinaryProtocol.VERSAO ? BinaryProtocol.VERSAO : 0);
+        out.flush();
+        if (versao != BinaryProtocol.VERSAO) {
+            return;
+        }
 
-        } catch (IOException e) {
-            e.printStackTrace();
-            responseMessage = "Erro de I/O: " + e.getMessage();
-            if (out != null) {
-                out.println(responseMessage);
+        byte[] quadro = new byte[1024];
+        while (true) {
+            int tamanho;
+            try {
+                tamanho = in.readInt();
+            } catch (EOFException e) {
+                return;
+            }
+            if (tamanho < 1 || tamanho > BinaryProtocol.TAMANHO_MAXIMO) {
+                System.err.println("Quadro binário com tamanho inválido: " + tamanho);
+                return;
+            }
+            if (tamanho > quadro.length) {
+                quadro = new byte[tamanho];
+            }
+            in.readFully(quadro, 0, tamanho);
+            byte[] resposta = BinaryProtocol.codificarResposta(processar(ByteBuffer.wrap(quadro, 0, tamanho)).join());
+            out.writeInt(resposta.length);
+            out.write(resposta);
+            // Sem mais quadros já recebidos, a resposta sai agora
+            if (in.available() == 0) {
+                out.flush();
             }
+        }
+    }
+
+    private CompletableFuture<String> processar(ByteBuffer corpo) {
+        try {
+            BinaryProtocol.Comando comando = BinaryProtocol.decodificar(corpo);
+            if (comando.opcode().isTransferencia()) {
+                return TransferenciaClient.getInstance().enviar(comando.comoTexto());
+            }
+            return CompletableFuture.completedFuture(actionHandler.handle(comando));
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.completedFuture("Comando binário inválido: " + e.getMessage());
         } catch (SQLException e) {
             e.printStackTrace();
-            responseMessage = "Erro de SQL: " + e.getMessage();
-            if (out != null) {
-                out.println(responseMessage);
+            return CompletableFuture.completedFuture("Erro de SQL: " + e.getMessage());
+        }
+    }
+
+    private static void escrever(OutputStream out, ReentrantLock lock, String linha) throws IOException {
+        byte[] bytes = (linha + "\n").getBytes();
+        lock.lock();
+        try {
+            out.write(bytes);
+            out.flush();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Transferências seguem pelo canal do {@link TransferenciaClient} e
+     * completam quando o serviço responde; o resto é resolvido na hora.
+     */
+    private CompletableFuture<String> processar(String recv) {
+        try {
+            System.out.println("Mensagem recebida: (" + recv + ")");
+            CommandTokenizer comando = CommandTokenizer.daThread();
+            if (!comando.tokenizar(recv)) {
+                return CompletableFuture.completedFuture("Comando inválido.");
+            }
+
+            // Verifica se o comando é uma transferência
+            Opcode opcode = comando.opcode();
+            if (opcode != null && opcode.isTransferencia()) {
+                System.out.println("Enviando para transferir");
+                return TransferenciaClient.getInstance().enviar(recv);
             }
+            // Caso não seja uma transferência, processa normalmente
+            return CompletableFuture.completedFuture(actionHandler.handleAction(comando));
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return CompletableFuture.completedFuture("Erro de SQL: " + e.getMessage());
         } catch (Exception e) {
             e.printStackTrace();
-            responseMessage = "Erro inesperado: " + e.getMessage();
-            if (out != null) {
-                out.println(responseMessage);
-            }
-        } finally {
-            try {
-                if (br != null) {
-                    br.close();
-                }
-                if (out != null) {
-                    out.close();
-                }
-                if (socket != null && !socket.isClosed()) {
-                    socket.close();
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
+            return CompletableFuture.completedFuture("Erro inesperado: " + e.getMessage());
+        }
+    }
+
+    private void fechar() {
+        try {
+            if (!socket.isClosed()) {
+                socket.close();
             }
+        } catch (IOException e) {
+            e.printStackTrace();
         }
     }
 }
@@ -1,96 +1,241 @@
 package br.imd.servers;
 
+import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
+import br.imd.concurrent.ExecutorFactory;
 import br.imd.processors.BankActionHandler;
-import br.imd.processors.MessageProcessor;
-
+import br.imd.processors.BinaryProtocol;
+import br.imd.processors.CommandTokenizer;
+import br.imd.processors.HeartbeatMessage;
+import br.imd.processors.MuxFraming;
+import br.imd.processors.Opcode;
+import br.imd.service.TransferenciaClient;
+
+/**
+ * Nó UDP. Threads de recepção só leem os datagramas e os repassam ao pool de
+ * trabalho (ou a virtual threads), que processa e responde pelo mesmo canal.
+ *
+ * Com {@code banco.udp.receptores} maior que 1 cada receptor abre seu próprio
+ * canal na porta com {@code SO_REUSEPORT}, e o kernel distribui os clientes
+ * entre eles. Onde a opção não existe os receptores dividem um canal só.
+ *
+ * Datagramas que começam com {@link BinaryProtocol#MAGICO} seguem o protocolo
+ * binário; os demais são comandos de texto.
+ */
 public class UdpServer {
-    private MessageProcessor messageProcessor;
+    private static final int TAMANHO_BUFFER = 1024 * 2;
+    // Páginas de listagem cabem num datagrama, com folga para o cabeçalho
+    // @<id>| ou o enquadramento binário
+    private static final int LIMITE_RESPOSTA = TAMANHO_BUFFER - 64;
+    private static final int RECEPTORES = Integer.getInteger("banco.udp.receptores", 1);
+    private static final int WORKERS = Integer.getInteger("banco.udp.workers",
+            Runtime.getRuntime().availableProcessors() * 8);
+    private static final int FILA = Integer.getInteger("banco.udp.fila", 1024);
+
     private BankActionHandler actionHandler;
-    private ScheduledExecutorService heartbeatExecutor;
     private int serverPort;
+    private ExecutorService executor;
+    // Buffers de recepção devolvidos pelos workers depois da resposta
+    private final BlockingQueue<ByteBuffer> buffersLivres = new ArrayBlockingQueue<>(FILA + RECEPTORES);
 
     public UdpServer(int port) {
-        this.messageProcessor = new MessageProcessor();
-        this.actionHandler = new BankActionHandler();
+        this.actionHandler = BankActionHandler.getInstance();
         this.serverPort = port;
+        this.executor = ExecutorFactory.porRequisicao(new ThreadPoolExecutor(WORKERS, WORKERS, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(FILA), new ThreadPoolExecutor.AbortPolicy()));
 
         ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
-        scheduler.scheduleAtFixedRate(this::sendHeartbeat, 0, 3, TimeUnit.SECONDS);
+        scheduler.scheduleAtFixedRate(this::sendHeartbeat, 0, HeartbeatMessage.INTERVALO_MS, TimeUnit.MILLISECONDS);
 
         startUdpServer();
     }
 
     private void startUdpServer() {
-        try (DatagramSocket socket = new DatagramSocket(serverPort)) {
-            System.out.println("Servidor UDP escutando na porta " + serverPort);
-
-            while (true) {
-                byte[] receiveData = new byte[1024*2];
-                DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
-                socket.receive(receivePacket);
-                String message = new String(receivePacket.getData(), 0, receivePacket.getLength());
-                System.out.println("Mensagem recebida: " + message);
-
-                String[] parts = messageProcessor.processMessage(message);
-                String responseMessage;
-
-                if (parts != null && parts.length > 0) {
-                    String action = parts[0];
-
-                    // Verifica se é uma transferência
-                    if (action.equalsIgnoreCase("TRANSFERIR")) {
-                        System.out.println("Redirecionando comando TRANSFERIR para a porta 4 (UDP)");
-                        try (DatagramSocket transferSocket = new DatagramSocket()) {
-                            InetAddress address = InetAddress.getByName("localhost");
-                            byte[] transferData = message.getBytes();
-
-                            // Cria um pacote UDP e envia para a porta 4
-                            DatagramPacket transferPacket = new DatagramPacket(transferData, transferData.length, address, 4001);
-                            transferSocket.send(transferPacket);
-
-                            // Espera pela resposta do servidor da porta 4
-                            byte[] transferResponseData = new byte[1024];
-                            DatagramPacket transferResponsePacket = new DatagramPacket(transferResponseData, transferResponseData.length);
-                            transferSocket.receive(transferResponsePacket);
-                            responseMessage = new String(transferResponsePacket.getData(), 0, transferResponsePacket.getLength());
-                        } catch (Exception e) {
-                            responseMessage = "Erro ao redirecionar transferência para a porta 4: " + e.getMessage();
-                        }
-                    } else {
-                        // Caso não seja transferência, processa normalmente
-                        responseMessage = actionHandler.handleAction(action, parts);
-                    }
-                } else {
-                    responseMessage = "Mensagem malformada.";
+        List<DatagramChannel> canais = new ArrayList<>();
+        try {
+            boolean reusePort = RECEPTORES > 1 && suportaReusePort();
+            canais.add(abrirCanal(reusePort));
+            for (int i = 1; i < RECEPTORES; i++) {
+                canais.add(reusePort ? abrirCanal(true) : canais.get(0));
+            }
+            System.out.println("Servidor UDP escutando na porta " + serverPort + " (" + RECEPTORES + " receptor(es)"
+                    + (reusePort ? ", SO_REUSEPORT" : "") + ")");
+
+            for (int i = 1; i < RECEPTORES; i++) {
+                DatagramChannel canal = canais.get(i);
+                Thread receptor = new Thread(() -> receber(canal), "udp-receptor-" + i);
+                receptor.start();
+            }
+            receber(canais.get(0));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static boolean suportaReusePort() throws IOException {
+        try (DatagramChannel canal = DatagramChannel.open()) {
+            return canal.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        }
+    }
+
+    private DatagramChannel abrirCanal(boolean reusePort) throws IOException {
+        DatagramChannel canal = DatagramChannel.open();
+        if (reusePort) {
+            canal.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        canal.bind(new InetSocketAddress(serverPort));
+        return canal;
+    }
+
+    private void receber(DatagramChannel canal) {
+        while (canal.isOpen()) {
+            ByteBuffer buffer = obterBuffer();
+            try {
+                SocketAddress cliente = canal.receive(buffer);
+                buffer.flip();
+                try {
+                    executor.execute(() -> processarPacote(canal, buffer, cliente));
+                } catch (RejectedExecutionException e) {
+                    // Fila cheia: responde na hora em vez de deixar o cliente esperar o timeout
+                    devolverBuffer(buffer);
+                    canal.send(ByteBuffer.wrap("Servidor sobrecarregado.".getBytes()), cliente);
                 }
+            } catch (IOException e) {
+                devolverBuffer(buffer);
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private ByteBuffer obterBuffer() {
+        ByteBuffer buffer = buffersLivres.poll();
+        return buffer != null ? buffer : ByteBuffer.allocate(TAMANHO_BUFFER);
+    }
+
+    private void devolverBuffer(ByteBuffer buffer) {
+        buffer.clear();
+        buffersLivres.offer(buffer);
+    }
 
-                // Envia a resposta de volta para o cliente original
-                byte[] sendData = responseMessage.getBytes();
-                InetAddress clientAddress = receivePacket.getAddress();
-                int clientPort = receivePacket.getPort();
-                DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, clientAddress, clientPort);
-                socket.send(sendPacket);
-                System.out.println("Resposta enviada: " + responseMessage);
+    private void processarPacote(DatagramChannel canal, ByteBuffer buffer, SocketAddress cliente) {
+        if (buffer.remaining() >= 2 && buffer.get(buffer.position()) == BinaryProtocol.MAGICO) {
+            processarBinario(canal, buffer, cliente);
+            return;
+        }
+        try {
+            String message = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            devolverBuffer(buffer);
+            // Requisições do gateway vêm com o cabeçalho @<id>|, devolvido na resposta
+            long id = MuxFraming.extrairId(message);
+            if (id >= 0) {
+                message = MuxFraming.extrairConteudo(message);
+            }
+            System.out.println("Mensagem recebida: " + message);
+
+            CommandTokenizer comando = CommandTokenizer.daThread();
+            String responseMessage;
+
+            if (comando.tokenizar(message)) {
+                Opcode opcode = comando.opcode();
+
+                // Verifica se é uma transferência
+                if (opcode != null && opcode.isTransferencia()) {
+                    System.out.println("Redirecionando comando TRANSFERIR para o serviço de transferência");
+                    // A resposta sai quando o serviço responder, sem prender o worker
+                    TransferenciaClient.getInstance().enviar(message)
+                            .thenAccept(resposta -> responder(canal, cliente, id, resposta));
+                    return;
+                }
+                // Caso não seja transferência, processa normalmente
+                responseMessage = actionHandler.handleAction(comando, LIMITE_RESPOSTA);
+            } else {
+                responseMessage = "Mensagem malformada.";
             }
+
+            responder(canal, cliente, id, responseMessage);
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    /** Datagrama do {@link BinaryProtocol}, decodificado direto do buffer de recepção. */
+    private void processarBinario(DatagramChannel canal, ByteBuffer buffer, SocketAddress cliente) {
+        BinaryProtocol.Comando comando;
+        try {
+            buffer.get();
+            if (buffer.get() != BinaryProtocol.VERSAO) {
+                responderBinario(canal, cliente, "Versão do protocolo binário não suportada.");
+                return;
+            }
+            comando = BinaryProtocol.decodificar(buffer);
+        } catch (IllegalArgumentException e) {
+            responderBinario(canal, cliente, "Comando binário inválido: " + e.getMessage());
+            return;
+        } finally {
+            devolverBuffer(buffer);
+        }
+
+        if (comando.opcode().isTransferencia()) {
+            TransferenciaClient.getInstance().enviar(comando.comoTexto())
+                    .thenAccept(resposta -> responderBinario(canal, cliente, resposta));
+            return;
+        }
+        String resposta;
+        try {
+            resposta = actionHandler.handle(comando, LIMITE_RESPOSTA);
+        } catch (Exception e) {
+            e.printStackTrace();
+            resposta = "Erro inesperado: " + e.getMessage();
+        }
+        responderBinario(canal, cliente, resposta);
+    }
+
+    private static void responderBinario(DatagramChannel canal, SocketAddress cliente, String resposta) {
+        byte[] corpo = BinaryProtocol.codificarResposta(resposta);
+        ByteBuffer saida = ByteBuffer.allocate(corpo.length + 2);
+        saida.put(BinaryProtocol.MAGICO).put(BinaryProtocol.VERSAO).put(corpo).flip();
+        try {
+            canal.send(saida, cliente);
+        } catch (IOException e) {
+            System.err.println("Erro ao responder cliente UDP: " + e.getMessage());
+        }
+    }
+
+    // Envia a resposta de volta para o cliente original
+    private static void responder(DatagramChannel canal, SocketAddress cliente, long id, String responseMessage) {
+        String resposta = id >= 0 ? MuxFraming.cabecalho(id) + responseMessage : responseMessage;
+        try {
+            canal.send(ByteBuffer.wrap(resposta.getBytes()), cliente);
+            System.out.println("Resposta enviada: " + responseMessage);
+        } catch (IOException e) {
+            System.err.println("Erro ao responder cliente UDP: " + e.getMessage());
+        }
+    }
 
     private void sendHeartbeat() {
-        String heartbeatMessage = Integer.toString(serverPort);
+        String heartbeatMessage = HeartbeatMessage.doNo(serverPort).formatar();
         try (DatagramSocket socket = new DatagramSocket()) {
             InetAddress address = InetAddress.getByName("localhost");
-            DatagramPacket sendPacket = new DatagramPacket(heartbeatMessage.getBytes(), heartbeatMessage.length(),
-                    address, 1);
+            byte[] dados = heartbeatMessage.getBytes();
+            DatagramPacket sendPacket = new DatagramPacket(dados, dados.length, address, 1);
             socket.send(sendPacket);
         } catch (Exception e) {
             System.out.println("Falha ao enviar heartbeat: " + e.getMessage());
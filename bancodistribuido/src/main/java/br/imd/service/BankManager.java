@@ -1,38 +1,71 @@
 package br.imd.service;
 
-import java.sql.Connection;
+import java.io.IOException;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Consumer;
 
 import br.imd.entity.Banco;
+import br.imd.entity.ChaveConta;
 import br.imd.entity.Conta;
-import br.imd.repository.DataBaseConnection;
-
+import br.imd.entity.PaginaContas;
+import br.imd.journal.WriteBehindJournal;
+import br.imd.storage.LedgerStorages;
+
+/**
+ * Operações do banco usadas pelos servidores.
+ *
+ * Sem estado próprio além dos serviços, que só guardam o
+ * {@link br.imd.storage.LedgerStorage} compartilhado; a concorrência entre
+ * requisições é resolvida no storage. Uma instância atende todas as threads
+ * do processo ({@link #getInstance()}).
+ */
 public class BankManager {
-    private ContaService contaService;
-    private BancoService bancoService;
-    private DataBaseConnection dataBaseConnection;
+    private static final long ESPERA_JOURNAL_MS = 2000;
+    private static final BankManager INSTANCIA = new BankManager();
+
+    private final ContaService contaService;
+    private final BancoService bancoService;
 
     public BankManager() {
-        this.contaService = new ContaService();
-        this.bancoService = new BancoService();
-        this.dataBaseConnection = new DataBaseConnection();
+        this(new ContaService(), new BancoService());
+    }
+
+    public BankManager(ContaService contaService, BancoService bancoService) {
+        this.contaService = contaService;
+        this.bancoService = bancoService;
+    }
+
+    public static BankManager getInstance() {
+        return INSTANCIA;
     }
 
-    public String sacar(String bancoNome, String agencia, String contaNum, double valor) {
-        try (Connection conn = dataBaseConnection.getConnection()) {
-            Conta conta = bancoService.prepararParaSaque(bancoNome, conn, agencia, contaNum, valor);
-            if (conta != null) {
-                conta.setSaldo(conta.getSaldo() - valor);
+    // O journal de depósitos aplica direto no MySQL; com o ledger em memória
+    // ele não é usado, que o próprio ledger já tem journal.
+    private static boolean journalAtivo() {
+        return WriteBehindJournal.isHabilitado() && !LedgerStorages.isMemoria();
+    }
 
-                System.out.println("novo saldo: " + conta.getSaldo());
-                contaService.atualizarSaldo(conn, conta);
-                conn.close();
-                return "Saque realizado com sucesso! OK";
+    public String sacar(String bancoNome, String agencia, String contaNum, long valor) {
+        return sacar(new ChaveConta(bancoNome, agencia, contaNum), valor);
+    }
 
+    public String sacar(ChaveConta chave, long valor) {
+        try {
+            bancoService.verificarBanco(chave.banco());
+            try {
+                contaService.sacar(chave, valor);
+            } catch (SaldoInsuficienteException e) {
+                // Depósitos já confirmados pelo journal podem ainda não estar no
+                // banco de dados; espera a aplicação e tenta uma vez mais.
+                if (!journalAtivo() || !WriteBehindJournal.getInstance().temPendentes()
+                        || !WriteBehindJournal.getInstance().aguardarAplicacao(ESPERA_JOURNAL_MS)) {
+                    throw e;
+                }
+                contaService.sacar(chave, valor);
             }
-            return "Conta não encontrada para saque.";
+            return "Saque realizado com sucesso! OK";
         } catch (SQLException e) {
             return "Erro no saque: " + e.getMessage();
         } catch (Exception e) {
@@ -41,15 +74,18 @@ public class BankManager {
 
     }
 
-    public String depositar(String bancoNome, String agencia, String contaNum, double valor) {
-        try (Connection conn = dataBaseConnection.getConnection()) {
-            Conta conta = bancoService.prepararParaDeposito(bancoNome, conn, agencia, contaNum);
-            if (conta != null) {
-                conta.setSaldo(conta.getSaldo() + valor);
-                contaService.atualizarSaldo(conn, conta);
-                return "Depósito realizado com sucesso! OK";
-            }
-            return "Conta não encontrada para depósito.";
+    public String depositar(String bancoNome, String agencia, String contaNum, long valor) {
+        return depositar(new ChaveConta(bancoNome, agencia, contaNum), valor);
+    }
+
+    public String depositar(ChaveConta chave, long valor) {
+        if (journalAtivo()) {
+            return depositarViaJournal(chave, valor);
+        }
+        try {
+            bancoService.verificarBanco(chave.banco());
+            contaService.depositar(chave, valor);
+            return "Depósito realizado com sucesso! OK";
         } catch (SQLException e) {
             return "Erro no depósito: " + e.getMessage();
         } catch (Exception e) {
@@ -57,6 +93,24 @@ public class BankManager {
         }
     }
 
+    // Confirma o depósito após o fsync do journal; o MySQL é atualizado em
+    // segundo plano.
+    private String depositarViaJournal(ChaveConta chave, long valor) {
+        try {
+            bancoService.verificarBanco(chave.banco());
+            contaService.validarValor(valor);
+            if (!contaService.existeConta(chave)) {
+                return "Erro inesperado no depósito: Conta de destino não encontrada no banco informado.";
+            }
+            WriteBehindJournal.getInstance().registrarCredito(chave, valor);
+            return "Depósito realizado com sucesso! OK";
+        } catch (SQLException | IOException e) {
+            return "Erro no depósito: " + e.getMessage();
+        } catch (Exception e) {
+            return "Erro inesperado no depósito: " + e.getMessage();
+        }
+    }
+
     public String criarBanco(Banco banco) {
         try {
             bancoService.criarBanco(banco);
@@ -69,28 +123,14 @@ public class BankManager {
     }
 
     public String criarConta(String bancoNome, Conta conta) {
-        try (Connection conn = dataBaseConnection.getConnection()) {
-            Banco banco = bancoService.buscarBanco(bancoNome);
-            if (banco != null) {
-                contaService.criarConta(conn, conta);
-                return "Conta criada com sucesso! OK";
-            }
-            return "Banco não encontrado para criação da conta.";
-        } catch (SQLException e) {
-            return "Erro ao criar conta: " + e.getMessage();
-        } catch (Exception e) {
-            return "Erro inesperado ao criar conta: " + e.getMessage();
-        }
+        return criarConta(bancoNome, conta.getAgencia(), conta.getConta(), conta.getSaldo());
     }
 
-    public String criarConta(String bancoNome, String agencia, String contaNum, double saldo) {
-        try (Connection conn = dataBaseConnection.getConnection()) {
-            Banco banco = bancoService.buscarBanco(bancoNome);
-            if (banco != null) {
-                contaService.criarConta(conn, new Conta(contaNum, agencia, saldo, banco));
-                return "Conta criada com sucesso! OK";
-            }
-            return "Banco não encontrado para criação da conta.";
+    public String criarConta(String bancoNome, String agencia, String contaNum, long saldo) {
+        try {
+            bancoService.verificarBanco(bancoNome);
+            contaService.criarConta(bancoNome, agencia, contaNum, saldo);
+            return "Conta criada com sucesso! OK";
         } catch (SQLException e) {
             return "Erro ao criar conta: " + e.getMessage();
         } catch (Exception e) {
@@ -99,7 +139,7 @@ public class BankManager {
     }
 
     public String excluirBanco(String bancoNome) {
-        try (Connection conn = dataBaseConnection.getConnection()) {
+        try {
             bancoService.excluirBanco(bancoNome);
             return "Banco excluído com sucesso! OK";
         } catch (SQLException e) {
@@ -110,8 +150,13 @@ public class BankManager {
     }
 
     public String excluirConta(String bancoNome, String agencia, String contaNum) {
-        try (Connection conn = dataBaseConnection.getConnection()) {
-            contaService.excluirConta(conn, bancoNome, agencia, contaNum);
+        try {
+            // Depósitos já confirmados pelo journal entram antes da exclusão
+            if (journalAtivo() && WriteBehindJournal.getInstance().temPendentes()
+                    && !WriteBehindJournal.getInstance().aguardarAplicacao(ESPERA_JOURNAL_MS)) {
+                return "Erro ao excluir conta: depósitos ainda não aplicados; tente novamente.";
+            }
+            contaService.excluirConta(bancoNome, agencia, contaNum);
             return "Conta excluída com sucesso! OK";
         } catch (SQLException e) {
             return "Erro ao excluir conta: " + e.getMessage();
@@ -121,8 +166,8 @@ public class BankManager {
     }
 
     public List<Banco> listarBancos() {
-        try (Connection conn = dataBaseConnection.getConnection()) {
-            return bancoService.listarBancos(conn);
+        try {
+            return bancoService.listarBancos();
         } catch (SQLException e) {
             throw new RuntimeException("Erro ao listar bancos: " + e.getMessage());
         } catch (Exception e) {
@@ -143,8 +188,8 @@ public class BankManager {
     }
 
     public List<Conta> listarContas(String banco) {
-        try (Connection conn = dataBaseConnection.getConnection()) {
-            return contaService.listarContasPorBanco(conn, banco);
+        try {
+            return contaService.listarContasPorBanco(banco);
         } catch (SQLException e) {
             System.err.println("Erro ao listar contas do banco " + banco + ": " + e.getMessage());
             return new ArrayList<>();
@@ -153,4 +198,12 @@ public class BankManager {
             return new ArrayList<>();
         }
     }
+
+    public PaginaContas listarContasPagina(String banco, String cursor, int tamanho) throws SQLException {
+        return contaService.listarContasPagina(banco, cursor, tamanho);
+    }
+
+    public void percorrerContas(String banco, Consumer<Conta> consumidor) throws SQLException {
+        contaService.percorrerContas(banco, consumidor);
+    }
 }
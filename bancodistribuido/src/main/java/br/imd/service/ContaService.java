@@ -1,111 +1,167 @@
 package br.imd.service;
 
-import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
 
+import br.imd.entity.ChaveConta;
 import br.imd.entity.Conta;
-import br.imd.repository.BancoRepository;
-import br.imd.repository.ContaRepository;
-
+import br.imd.entity.Dinheiro;
+import br.imd.entity.PaginaContas;
+import br.imd.entity.ResultadoOperacao;
+import br.imd.entity.Transferencia;
+import br.imd.storage.LedgerStorage;
+import br.imd.storage.LedgerStorages;
+
+/** Regras de conta sobre o {@link LedgerStorage}; sem estado próprio, pode ser compartilhado entre threads. */
 public class ContaService {
-    private ContaRepository contaRepository;
-    private BancoRepository bancoRepository;
+    public static final int TAMANHO_MAXIMO_PAGINA = Integer.getInteger("banco.listagem.paginaMaxima", 100);
+
+    private final LedgerStorage storage;
 
     public ContaService() {
-        this.contaRepository = new ContaRepository();
-        this.bancoRepository = new BancoRepository();
+        this(LedgerStorages.getInstance());
+    }
+
+    public ContaService(LedgerStorage storage) {
+        this.storage = storage;
     }
 
-    public boolean criarConta(Connection conn, Conta conta) throws SQLException {
-        Conta contaExistente = contaRepository.buscarConta(conn, conta.getBanco().getNome(), conta.getAgencia(),
-                conta.getConta());
-        contaExistente.toString();
-        if (contaExistente != null) {
+    public void criarConta(String banco, String agencia, String contaNum, long saldoInicial) throws SQLException {
+        if (!storage.criarConta(new ChaveConta(banco, agencia, contaNum), saldoInicial)) {
             throw new IllegalArgumentException("A conta já existe no banco informado.");
         }
+        System.out.println(
+                "Conta criada com sucesso: " + agencia + "/" + contaNum + " com saldo inicial de: " + Dinheiro.formatar(saldoInicial));
+    }
 
-        contaRepository.criarConta(conn, conta);
+    public List<Conta> listarContas() throws SQLException {
+        return storage.listarContas(null);
+    }
 
-        return true;
+    public void debitar(String banco, String agencia, String numero, long valor) throws SQLException {
+        sacar(new ChaveConta(banco, agencia, numero), valor);
     }
 
-    public boolean criarConta(Connection conn, String banco, String agencia, String contaNum) throws SQLException {
-        try {
-            Conta contaExistente = contaRepository.buscarConta(conn, banco, agencia, contaNum);
-            if (contaExistente != null) {
-                throw new IllegalArgumentException("A conta já existe no banco informado.");
-            }
+    public void sacar(ChaveConta chave, long valor) throws SQLException {
+        validarValor(valor);
+        ResultadoOperacao resultado = storage.debitar(chave, valor);
+        if (resultado == ResultadoOperacao.SALDO_INSUFICIENTE) {
+            throw new SaldoInsuficienteException();
+        }
+        if (resultado != ResultadoOperacao.OK) {
+            throw new IllegalArgumentException(resultado.getMensagem());
+        }
+    }
 
-            Conta novaConta = new Conta();
-            novaConta.setBanco(bancoRepository.buscarBanco(banco));
-            novaConta.setAgencia(agencia);
-            novaConta.setConta(contaNum);
-            novaConta.setSaldo(0.0);
+    public void creditar(String banco, String agencia, String numero, long valor) throws SQLException {
+        depositar(new ChaveConta(banco, agencia, numero), valor);
+    }
 
-            contaRepository.criarConta(conn, novaConta);
-            conn.commit();
-            System.out.println("Conta criada com sucesso: " + agencia + "/" + contaNum);
-            return true;
-        } catch (Exception e) {
-            conn.rollback();
-            e.getMessage();
-            return false;
+    public void depositar(ChaveConta chave, long valor) throws SQLException {
+        validarValor(valor);
+        if (!storage.creditar(chave, valor)) {
+            throw new IllegalArgumentException("Conta de destino não encontrada no banco informado.");
         }
     }
 
-    public boolean criarConta(Connection conn, String banco, String agencia, String contaNum, double saldoInicial)
-            throws SQLException {
-        try {
-            Conta contaExistente = contaRepository.buscarConta(conn, banco, agencia, contaNum);
-            if (contaExistente != null) {
-                throw new IllegalArgumentException("A conta já existe no banco informado.");
-            }
-
-            Conta novaConta = new Conta();
-            novaConta.setBanco(bancoRepository.buscarBanco(banco));
-            novaConta.setAgencia(agencia);
-            novaConta.setConta(contaNum);
-            novaConta.setSaldo(saldoInicial);
-
-            contaRepository.criarConta(conn, novaConta);
-            conn.commit();
-            System.out.println(
-                    "Conta criada com sucesso: " + agencia + "/" + contaNum + " com saldo inicial de: " + saldoInicial);
-            return true;
-        } catch (Exception e) {
-            conn.rollback();
-            e.getMessage();
-            conn.close();
-            return false;
+    public boolean existeConta(String banco, String agencia, String numero) throws SQLException {
+        return storage.existeConta(new ChaveConta(banco, agencia, numero));
+    }
+
+    // Movimentações isoladas das transferências entre partições; o resultado
+    // volta como valor para o coordenador decidir
+    ResultadoOperacao debitar(ChaveConta chave, long valor) throws SQLException {
+        return storage.debitar(chave, valor);
+    }
+
+    boolean creditar(ChaveConta chave, long valor) throws SQLException {
+        return storage.creditar(chave, valor);
+    }
+
+    boolean existeConta(ChaveConta chave) throws SQLException {
+        return storage.existeConta(chave);
+    }
+
+    ResultadoOperacao iniciarDuasFases(String id, Transferencia transferencia) throws SQLException {
+        return storage.iniciarDuasFases(id, transferencia);
+    }
+
+    ResultadoOperacao encerrarDuasFases(String id, boolean estornar) throws SQLException {
+        return storage.encerrarDuasFases(id, estornar);
+    }
+
+    Map<String, Transferencia> listarDuasFasesPendentes() throws SQLException {
+        return storage.listarDuasFasesPendentes();
+    }
+
+    ResultadoOperacao confirmarCreditoDuasFases(String id, ChaveConta destino, long valor) throws SQLException {
+        return storage.confirmarCreditoDuasFases(id, destino, valor);
+    }
+
+    boolean creditoDuasFasesConfirmado(String id) throws SQLException {
+        return storage.creditoDuasFasesConfirmado(id);
+    }
+
+    void esquecerCreditoDuasFases(String id) throws SQLException {
+        storage.esquecerCreditoDuasFases(id);
+    }
+
+    void validarValor(long valor) {
+        if (valor <= 0) {
+            throw new IllegalArgumentException("Valor deve ser positivo.");
         }
     }
 
-    public List<Conta> listarContas() throws SQLException {
-        return contaRepository.listarContas();
+    public ResultadoOperacao transferir(Transferencia transferencia) throws SQLException {
+        validarValor(transferencia.valor());
+        return storage.transferir(transferencia);
     }
 
-    public void atualizarSaldo(Connection conn, Conta conta) throws SQLException {
-System.out.println("Entrou em atualizar saldo");
-        contaRepository.atualizarSaldo(conn, conta);
+    /**
+     * Aplica um grupo de transferências atomicamente. Itens nulos são
+     * ignorados.
+     *
+     * @return o resultado de cada item
+     */
+    public ResultadoOperacao[] transferirGrupo(List<Transferencia> grupo) throws SQLException {
+        return storage.transferirLote(grupo);
     }
 
-    public void excluirConta(Connection conn, String banco, String agencia, String numero) throws SQLException {
-        contaRepository.excluirConta(conn, banco, agencia, numero);
+    public void excluirConta(String banco, String agencia, String numero) throws SQLException {
+        if (!storage.excluirConta(new ChaveConta(banco, agencia, numero))) {
+            throw new IllegalArgumentException("Conta não encontrada no banco informado.");
+        }
     }
 
-    public Conta buscarContaEBloquear(Connection conn, String banco, String agencia, String numero)
-            throws SQLException {
-        return contaRepository.buscarContaEBloquear(conn, banco, agencia, numero);
+    public List<Conta> listarContasPorBanco(String banco) throws SQLException {
+        verificarBanco(banco);
+        return storage.listarContas(banco);
     }
 
-    public List<Conta> listarContasPorBanco(Connection conn, String banco) throws SQLException {
-        if (bancoRepository.buscarBanco(banco) == null) {
-            throw new IllegalArgumentException("Banco não encontrado: " + banco);
+    public PaginaContas listarContasPagina(String banco, String cursor, int tamanho) throws SQLException {
+        if (banco != null) {
+            verificarBanco(banco);
+        }
+        if (tamanho <= 0) {
+            throw new IllegalArgumentException("Tamanho de página inválido.");
+        }
+        ChaveConta apos = cursor != null ? PaginaContas.decodificarCursor(cursor) : null;
+        return storage.listarContasPagina(banco, apos, Math.min(tamanho, TAMANHO_MAXIMO_PAGINA));
+    }
+
+    public void percorrerContas(String banco, Consumer<Conta> consumidor) throws SQLException {
+        if (banco != null) {
+            verificarBanco(banco);
         }
+        storage.percorrerContas(banco, consumidor);
+    }
 
-        List<Conta> contas = contaRepository.listarContasPorBanco(conn, banco);
-        return contas;
+    private void verificarBanco(String banco) throws SQLException {
+        if (storage.buscarBanco(banco) == null) {
+            throw new IllegalArgumentException("Banco não encontrado: " + banco);
+        }
     }
 
 }
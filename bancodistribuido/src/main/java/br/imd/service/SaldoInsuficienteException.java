@@ -0,0 +1,9 @@
+package br.imd.service;
+
+public class SaldoInsuficienteException extends IllegalArgumentException {
+    private static final long serialVersionUID = 1L;
+
+    public SaldoInsuficienteException() {
+        super("Saldo insuficiente na conta.");
+    }
+}
@@ -0,0 +1,376 @@
+package br.imd.service;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import br.imd.entity.ResultadoOperacao;
+import br.imd.processors.MuxFraming;
+import br.imd.processors.PartitionMap;
+
+/**
+ * Canal dos nós até o {@link TransferenciaService}.
+ *
+ * Mantém poucas conexões TCP abertas ({@code banco.transferencia.conexoes})
+ * com cada instância do serviço, no enquadramento de {@link MuxFraming}. Cada
+ * envio devolve um future que a thread de leitura da conexão completa quando
+ * chega a resposta com o mesmo id, então quem encaminha não fica parado
+ * esperando.
+ *
+ * A transferência vai para a instância dona da conta de origem segundo o
+ * {@link PartitionMap}, que é pedido ao gateway ({@code banco.heartbeat.host},
+ * porta 4) a cada {@code banco.transferencia.mapa.intervaloMs}. Sem partições
+ * registradas vai para {@code banco.transferencia.host}:{@code banco.transferencia.porta}.
+ * Um lote com contas de várias partições é dividido e as respostas juntadas.
+ *
+ * Com {@code banco.transferencia.maxEmVoo} envios em andamento os novos são
+ * recusados na hora, e cada um tem o prazo de {@code banco.transferencia.timeoutMs}.
+ * Uma conexão que cai falha as suas pendentes e é reaberta no próximo envio;
+ * abrir (conectar e trocar o HELLO) tem o prazo de
+ * {@code banco.transferencia.conexaoTimeoutMs} em cada etapa.
+ */
+public final class TransferenciaClient {
+    public static final String HOST = System.getProperty("banco.transferencia.host", "localhost");
+    public static final int PORTA = Integer.getInteger("banco.transferencia.porta", 4001);
+    private static final int CONEXOES = Math.max(1, Integer.getInteger("banco.transferencia.conexoes", 2));
+    private static final int MAX_EM_VOO = Integer.getInteger("banco.transferencia.maxEmVoo", 512);
+    private static final long TIMEOUT_MS = Long.getLong("banco.transferencia.timeoutMs", 10000L);
+    private static final long INTERVALO_MAPA_MS = Long.getLong("banco.transferencia.mapa.intervaloMs", 1000L);
+    static final String HOST_GATEWAY = System.getProperty("banco.heartbeat.host", "localhost");
+    private static final int TIMEOUT_CONEXAO_MS = Integer.getInteger("banco.transferencia.conexaoTimeoutMs", 2000);
+    private static final String LOTE = "TRANSFERIR_LOTE";
+    // Código de lote para itens cuja conta de origem não tem dono no mapa
+    private static final String SEM_PARTICAO = "SEM_PARTICAO";
+
+    private static final TransferenciaClient INSTANCIA = new TransferenciaClient();
+
+    private final Map<String, Destino> destinos = new ConcurrentHashMap<>();
+    private final Semaphore emVoo = new Semaphore(MAX_EM_VOO);
+    private final AtomicLong proximoId = new AtomicLong();
+
+    private TransferenciaClient() {
+        ScheduledExecutorService atualizador = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "transferencia-mapa");
+            thread.setDaemon(true);
+            return thread;
+        });
+        atualizador.scheduleWithFixedDelay(TransferenciaClient::atualizarMapa, 0, INTERVALO_MAPA_MS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /** Cliente compartilhado pelos servidores do nó. */
+    public static TransferenciaClient getInstance() {
+        return INSTANCIA;
+    }
+
+    /**
+     * Envia o comando (TRANSFERIR ou TRANSFERIR_LOTE) à instância dona da
+     * conta de origem. O future sempre completa com uma resposta; falhas
+     * viram mensagens de erro.
+     */
+    public CompletableFuture<String> enviar(String comando) {
+        if (comando.regionMatches(true, 0, LOTE, 0, LOTE.length())) {
+            return enviarLote(comando);
+        }
+        String[] params = comando.split("-");
+        if (params.length != 8) {
+            // O serviço responde com o erro de formato
+            return enviar(destino(HOST, PORTA), comando);
+        }
+        Destino destino = rota(PartitionMap.atual(), params[1], params[2], params[3]);
+        if (destino == null) {
+            return CompletableFuture.completedFuture(
+                    "Erro: nenhuma instância do serviço de transferência atende a conta de origem.");
+        }
+        return enviar(destino, comando);
+    }
+
+    /** Envia direto a uma instância; usado entre as partições. */
+    CompletableFuture<String> enviar(PartitionMap.Particao particao, String comando) {
+        return enviar(destino(particao.host(), particao.porta()), comando);
+    }
+
+    private CompletableFuture<String> enviarLote(String comando) {
+        // Itens separados por quebra de linha viram ';', que cabe numa linha
+        // do canal multiplexado
+        comando = comando.replace('\r', ';').replace('\n', ';');
+        PartitionMap mapa = PartitionMap.atual();
+        if (mapa.isVazio()) {
+            return enviar(destino(HOST, PORTA), comando);
+        }
+        String corpo = comando.length() > LOTE.length() ? comando.substring(LOTE.length() + 1) : "";
+        String[] itens = corpo.split("[;\\r\\n]+");
+        String[] resultados = new String[itens.length];
+        Map<Destino, List<Integer>> grupos = new LinkedHashMap<>();
+        for (int i = 0; i < itens.length; i++) {
+            String[] campos = itens[i].trim().split("-");
+            if (campos.length != 7) {
+                resultados[i] = "FORMATO_INVALIDO";
+                continue;
+            }
+            Destino destino = rota(mapa, campos[0], campos[1], campos[2]);
+            if (destino == null) {
+                resultados[i] = SEM_PARTICAO;
+                continue;
+            }
+            grupos.computeIfAbsent(destino, d -> new ArrayList<>()).add(i);
+        }
+        if (grupos.size() == 1 && grupos.values().iterator().next().size() == itens.length) {
+            return enviar(grupos.keySet().iterator().next(), comando);
+        }
+
+        List<CompletableFuture<Void>> partes = new ArrayList<>(grupos.size());
+        for (Map.Entry<Destino, List<Integer>> grupo : grupos.entrySet()) {
+            List<Integer> indices = grupo.getValue();
+            StringBuilder subLote = new StringBuilder(LOTE).append('-');
+            for (int indice : indices) {
+                subLote.append(itens[indice].trim()).append(';');
+            }
+            partes.add(enviar(grupo.getKey(), subLote.toString()).thenAccept(resposta -> {
+                String[] parcial = TransferenciaService.lerResultadosLote(resposta, indices.size());
+                for (int j = 0; j < indices.size(); j++) {
+                    resultados[indices.get(j)] = parcial != null ? parcial[j] : ResultadoOperacao.PARTICAO_INDISPONIVEL.name();
+                }
+            }));
+        }
+        return CompletableFuture.allOf(partes.toArray(CompletableFuture<?>[]::new))
+                .thenApply(v -> TransferenciaService.formatarResultadosLote(resultados));
+    }
+
+    private Destino rota(PartitionMap mapa, String banco, String agencia, String conta) {
+        if (mapa.isVazio()) {
+            return destino(HOST, PORTA);
+        }
+        PartitionMap.Particao dono = mapa.dono(PartitionMap.hash(banco, agencia, conta));
+        return dono != null ? destino(dono.host(), dono.porta()) : null;
+    }
+
+    private Destino destino(String host, int porta) {
+        return destinos.computeIfAbsent(host + ":" + porta, k -> new Destino(host, porta));
+    }
+
+    private CompletableFuture<String> enviar(Destino destino, String comando) {
+        if (!emVoo.tryAcquire()) {
+            return CompletableFuture.completedFuture("Erro: serviço de transferência sobrecarregado.");
+        }
+        long id = proximoId.incrementAndGet();
+        String enquadrado;
+        try {
+            enquadrado = MuxFraming.enquadrar(id, comando);
+        } catch (IllegalArgumentException e) {
+            emVoo.release();
+            return CompletableFuture.completedFuture("Erro: " + e.getMessage());
+        }
+        CompletableFuture<String> resposta = new CompletableFuture<>();
+        Conexao conexao = null;
+        try {
+            conexao = destino.conexao((int) (id % CONEXOES));
+            conexao.pendentes.put(id, resposta);
+            conexao.escrever(enquadrado);
+        } catch (IOException e) {
+            if (conexao != null) {
+                conexao.pendentes.remove(id);
+            }
+            emVoo.release();
+            return CompletableFuture.completedFuture(
+                    "Erro ao enviar para o serviço de transferência: " + e.getMessage());
+        }
+
+        Conexao usada = conexao;
+        return resposta.orTimeout(TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                .handle((linha, erro) -> {
+                    usada.pendentes.remove(id);
+                    emVoo.release();
+                    if (erro == null) {
+                        return linha;
+                    }
+                    if (erro instanceof TimeoutException) {
+                        // Já pode ter sido aplicada; não dá para saber daqui
+                        return "Erro: o serviço de transferência não respondeu a tempo.";
+                    }
+                    return "Erro ao redirecionar transferência: " + erro.getMessage();
+                });
+    }
+
+    private static void atualizarMapa() {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(HOST_GATEWAY, PartitionMap.PORTA_HEARTBEAT), TIMEOUT_CONEXAO_MS);
+            socket.setSoTimeout(TIMEOUT_CONEXAO_MS);
+            new PrintWriter(socket.getOutputStream(), true).println(PartitionMap.PEDIDO);
+            String linha = new BufferedReader(new InputStreamReader(socket.getInputStream())).readLine();
+            PartitionMap.publicar(PartitionMap.ler(linha));
+        } catch (IOException | RuntimeException e) {
+            // Fica com o último mapa conhecido
+            System.err.println("Erro ao atualizar as partições de transferência: " + e.getMessage());
+        }
+    }
+
+    /** Uma instância do serviço e suas conexões. */
+    private static final class Destino {
+        final String host;
+        final int porta;
+        // Cada posição guarda a abertura em andamento ou a conexão já aberta
+        final AtomicReferenceArray<CompletableFuture<Conexao>> conexoes = new AtomicReferenceArray<>(CONEXOES);
+
+        Destino(String host, int porta) {
+            this.host = host;
+            this.porta = porta;
+        }
+
+        /**
+         * Só quem instala a abertura na posição conecta, sem segurar nenhum
+         * lock; os outros envios da mesma posição esperam por ela, e as
+         * demais posições seguem.
+         */
+        Conexao conexao(int indice) throws IOException {
+            while (true) {
+                CompletableFuture<Conexao> atual = conexoes.get(indice);
+                if (atual != null) {
+                    if (!atual.isDone()) {
+                        return aguardar(atual);
+                    }
+                    Conexao conexao = atual.join();
+                    if (conexao.aberta) {
+                        return conexao;
+                    }
+                    conexoes.compareAndSet(indice, atual, null);
+                    continue;
+                }
+
+                CompletableFuture<Conexao> abertura = new CompletableFuture<>();
+                if (!conexoes.compareAndSet(indice, null, abertura)) {
+                    continue;
+                }
+                try {
+                    Conexao conexao = new Conexao(abrir(), "transferencia-cliente-" + porta + "-" + indice);
+                    abertura.complete(conexao);
+                    return conexao;
+                } catch (IOException | RuntimeException e) {
+                    // Libera a posição antes de avisar quem espera, para a
+                    // próxima tentativa abrir de novo
+                    conexoes.compareAndSet(indice, abertura, null);
+                    abertura.completeExceptionally(e);
+                    throw e;
+                }
+            }
+        }
+
+        private static Conexao aguardar(CompletableFuture<Conexao> abertura) throws IOException {
+            try {
+                // Conectar e ler o HELLO têm o prazo cada um
+                return abertura.get(2L * TIMEOUT_CONEXAO_MS, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException e) {
+                Throwable causa = e.getCause();
+                throw causa instanceof IOException ? (IOException) causa : new IOException(causa.getMessage(), causa);
+            } catch (TimeoutException e) {
+                throw new IOException("a conexão com o serviço de transferência não abriu a tempo.");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrompido esperando a conexão com o serviço de transferência.");
+            }
+        }
+
+        private Socket abrir() throws IOException {
+            Socket socket = new Socket();
+            try {
+                socket.setTcpNoDelay(true);
+                socket.connect(new InetSocketAddress(host, porta), TIMEOUT_CONEXAO_MS);
+                socket.getOutputStream().write((MuxFraming.HELLO + "\n").getBytes());
+                socket.getOutputStream().flush();
+                return socket;
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+    }
+
+    private static final class Conexao {
+        final Socket socket;
+        final OutputStream out;
+        final BufferedReader in;
+        final ReentrantLock lockEscrita = new ReentrantLock();
+        final Map<Long, CompletableFuture<String>> pendentes = new ConcurrentHashMap<>();
+        volatile boolean aberta = true;
+
+        Conexao(Socket socket, String nome) throws IOException {
+            this.socket = socket;
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            socket.setSoTimeout(TIMEOUT_CONEXAO_MS);
+            String resposta = in.readLine();
+            if (!MuxFraming.HELLO_OK.equals(resposta)) {
+                socket.close();
+                throw new IOException("o serviço de transferência não aceitou o canal multiplexado.");
+            }
+            socket.setSoTimeout(0);
+            Thread leitor = new Thread(this::ler, nome);
+            leitor.setDaemon(true);
+            leitor.start();
+        }
+
+        void escrever(String linha) throws IOException {
+            byte[] bytes = (linha + "\n").getBytes();
+            lockEscrita.lock();
+            try {
+                out.write(bytes);
+                out.flush();
+            } catch (IOException e) {
+                fechar(e);
+                throw e;
+            } finally {
+                lockEscrita.unlock();
+            }
+        }
+
+        private void ler() {
+            try {
+                String linha;
+                while ((linha = in.readLine()) != null) {
+                    long id = MuxFraming.extrairId(linha);
+                    CompletableFuture<String> resposta = id >= 0 ? pendentes.get(id) : null;
+                    if (resposta == null) {
+                        System.err.println("Resposta de transferência sem requisição pendente descartada.");
+                        continue;
+                    }
+                    resposta.complete(MuxFraming.extrairConteudo(linha));
+                }
+                fechar(new IOException("conexão encerrada pelo serviço de transferência."));
+            } catch (IOException e) {
+                fechar(e);
+            }
+        }
+
+        private void fechar(IOException causa) {
+            aberta = false;
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // já fechado
+            }
+            for (CompletableFuture<String> resposta : pendentes.values()) {
+                resposta.completeExceptionally(causa);
+            }
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package br.imd.service;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
@@ -9,27 +10,86 @@ import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-
-import br.imd.entity.Conta;
-import br.imd.repository.DataBaseConnection;
-
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import br.imd.concurrent.ExecutorFactory;
+import br.imd.entity.ChaveConta;
+import br.imd.entity.Dinheiro;
+import br.imd.entity.ResultadoOperacao;
+import br.imd.entity.Transferencia;
+import br.imd.processors.HeartbeatMessage;
+import br.imd.processors.MuxFraming;
+import br.imd.processors.PartitionMap;
+import br.imd.storage.JdbcLedgerStorage;
+
+/**
+ * Serviço de transferências.
+ *
+ * Pode rodar em várias instâncias, cada uma dona da faixa de hash de contas
+ * {@code banco.transferencia.faixa} ({@code inicio-fim}, padrão o espaço
+ * todo), anunciada ao gateway no heartbeat. Os nós mandam cada transferência
+ * à dona da conta de origem; quando o destino é de outra instância a
+ * transferência segue o {@link TwoPhaseCommit}.
+ */
 public class TransferenciaService {
+    private static final int MYSQL_ER_LOCK_DEADLOCK = 1213;
+    private static final int MAX_TENTATIVAS = Integer.getInteger("banco.transferencia.maxTentativas", 5);
+    private static final long ESPERA_BASE_MS = 5;
+    private static final long ESPERA_MAXIMA_MS = 500;
+    private static final String LOTE = "TRANSFERIR_LOTE";
+    private static final int TAMANHO_GRUPO_LOTE = Integer.getInteger("banco.transferencia.lote.grupo", 200);
+    // Por conexão multiplexada; acima disso a leitura para
+    private static final int MAX_EM_VOO_CONEXAO = Integer.getInteger("banco.transferencia.mux.maxEmVoo", 256);
+    private static final int THREADS = Integer.getInteger("banco.transferencia.threads", 10);
+
+    // Deadlocks que precisaram de retry mesmo com a ordem única de travamento
+    private static final AtomicLong deadlocksRetentados = new AtomicLong();
 
-    private DataBaseConnection dataBaseConnection;
     private BancoService bancoService;
     private ContaService contaService;
     private ExecutorService executorService;
+    // Mensagens de duas fases de outras instâncias; num pool à parte para não
+    // esperarem atrás de coordenadores que, por sua vez, esperam por elas
+    private ExecutorService participantes;
+    private final int porta;
+    private final int[] faixa;
+    private final TwoPhaseCommit duasFases;
+    // Só a thread do heartbeat usa: as transações abertas antes do restart são
+    // retomadas quando o mapa de partições é conhecido
+    private boolean duasFasesRetomadas;
 
     public TransferenciaService() {
-        this.dataBaseConnection = new DataBaseConnection();
+        this(TransferenciaClient.PORTA);
+    }
+
+    public TransferenciaService(int porta) {
+        this.porta = porta;
         this.bancoService = new BancoService();
         this.contaService = new ContaService();
-        this.executorService = Executors.newFixedThreadPool(10);
+        this.executorService = ExecutorFactory.porRequisicao("transferencia", THREADS);
+        this.participantes = ExecutorFactory.porRequisicao("transferencia-2pc",
+                Runtime.getRuntime().availableProcessors());
+        this.faixa = PartitionMap.lerFaixa(System.getProperty("banco.transferencia.faixa", "0-" + PartitionMap.ESPACO));
+        this.duasFases = new TwoPhaseCommit(contaService, TransferenciaClient.getInstance());
         startServers();
+
+        ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor();
+        heartbeat.scheduleAtFixedRate(this::enviarHeartbeat, 0, HeartbeatMessage.INTERVALO_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public static void main(String[] args) {
+        new TransferenciaService(args.length > 0 ? Integer.parseInt(args[0]) : TransferenciaClient.PORTA);
     }
 
     public void startServers() {
@@ -38,12 +98,14 @@ public class TransferenciaService {
     }
 
     private void startTcpAndHttpServer() {
-        try (ServerSocket serverSocket = new ServerSocket(4001)) {
-            System.out.println("TCP/HTTP Server rodando na porta 4001...");
+        try (ServerSocket serverSocket = new ServerSocket(porta)) {
+            System.out.println("TCP/HTTP Server rodando na porta " + porta + "...");
 
             while (true) {
                 Socket socket = serverSocket.accept();
-                executorService.submit(() -> handleTcpOrHttpClient(socket));
+                // A conexão pode virar o canal multiplexado de um nó e ficar
+                // aberta; por isso a leitura não ocupa o pool de transferências
+                new Thread(() -> handleTcpOrHttpClient(socket), "transferencia-conexao").start();
             }
         } catch (Exception e) {
             System.err.println("Erro no servidor TCP/HTTP: " + e.getMessage());
@@ -57,7 +119,9 @@ public class TransferenciaService {
             String requestLine = reader.readLine();
             System.out.println("Requisição recebida: " + requestLine);
 
-            if (requestLine != null && (requestLine.startsWith("GET") || requestLine.startsWith("POST"))) {
+            if (MuxFraming.HELLO.equals(requestLine)) {
+                atenderMultiplexado(socket, reader);
+            } else if (requestLine != null && (requestLine.startsWith("GET") || requestLine.startsWith("POST"))) {
                 handleHttpRequest(reader, writer, requestLine);
             } else {
                 handleTcpRequest(socket, requestLine);
@@ -68,6 +132,101 @@ public class TransferenciaService {
         }
     }
 
+    /**
+     * Canal de um nó ({@link TransferenciaClient}): linhas {@code @<id>|<comando>}
+     * processadas em paralelo no pool, com as respostas enquadradas saindo na
+     * ordem em que ficam prontas.
+     */
+    private void atenderMultiplexado(Socket socket, BufferedReader reader) throws IOException {
+        OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+        ReentrantLock lockEscrita = new ReentrantLock();
+        Semaphore emVoo = new Semaphore(MAX_EM_VOO_CONEXAO);
+        escrever(out, lockEscrita, MuxFraming.HELLO_OK);
+        System.out.println("Canal multiplexado aberto por " + socket.getRemoteSocketAddress());
+
+        try {
+            String linha;
+            while ((linha = reader.readLine()) != null) {
+                long id = MuxFraming.extrairId(linha);
+                if (id < 0) {
+                    System.err.println("Linha sem id no canal de transferências: " + linha);
+                    continue;
+                }
+                String comando = MuxFraming.extrairConteudo(linha);
+                emVoo.acquireUninterruptibly();
+                ExecutorService executor = TwoPhaseCommit.isMensagem(comando) ? participantes : executorService;
+                executor.execute(() -> {
+                    String resposta;
+                    try {
+                        resposta = processarRequisicao(comando);
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                        resposta = "Erro inesperado: " + e.getMessage();
+                    }
+                    try {
+                        escrever(out, lockEscrita, MuxFraming.enquadrarResposta(id, resposta));
+                    } catch (IOException e) {
+                        System.err.println("Erro ao responder no canal de transferências: " + e.getMessage());
+                    } finally {
+                        emVoo.release();
+                    }
+                });
+            }
+        } finally {
+            // Espera as respostas pendentes antes de fechar
+            emVoo.acquireUninterruptibly(MAX_EM_VOO_CONEXAO);
+        }
+    }
+
+    private static void escrever(OutputStream out, ReentrantLock lock, String linha) throws IOException {
+        byte[] bytes = (linha + "\n").getBytes();
+        lock.lock();
+        try {
+            out.write(bytes);
+            out.flush();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Anuncia a faixa ao gateway, que responde com o mapa de partições atual
+    private void enviarHeartbeat() {
+        try (Socket socket = new Socket(TransferenciaClient.HOST_GATEWAY, PartitionMap.PORTA_HEARTBEAT)) {
+            socket.setSoTimeout((int) HeartbeatMessage.INTERVALO_MS * 4);
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            out.println(HeartbeatMessage.doNo(porta).formatar() + HeartbeatMessage.SEPARADOR
+                    + faixa[0] + "-" + faixa[1]);
+            String mapa = new BufferedReader(new InputStreamReader(socket.getInputStream())).readLine();
+            PartitionMap.publicar(PartitionMap.ler(mapa));
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Erro ao enviar heartbeat do serviço de transferência: " + e.getMessage());
+            return;
+        }
+        if (!duasFasesRetomadas) {
+            try {
+                duasFasesRetomadas = duasFases.retomarPendentes(this::daqui,
+                        chave -> PartitionMap.atual().dono(
+                                PartitionMap.hash(chave.banco(), chave.agencia(), chave.conta())));
+            } catch (SQLException e) {
+                System.err.println("Erro ao retomar transações entre partições: " + e.getMessage());
+            }
+        }
+    }
+
+    /** @return a instância dona da conta, ou null se ela for desta */
+    private PartitionMap.Particao donoRemoto(ChaveConta chave) {
+        if (daqui(chave)) {
+            return null;
+        }
+        // Sem dono conhecido a conta é tratada aqui, como numa instância só
+        return PartitionMap.atual().dono(PartitionMap.hash(chave.banco(), chave.agencia(), chave.conta()));
+    }
+
+    private boolean daqui(ChaveConta chave) {
+        int hash = PartitionMap.hash(chave.banco(), chave.agencia(), chave.conta());
+        return hash >= faixa[0] && hash < faixa[1];
+    }
+
     private void handleHttpRequest(BufferedReader reader, PrintWriter writer, String requestLine) {
         System.out.println("Requisição HTTP detectada: " + requestLine);
 
@@ -89,7 +248,7 @@ public class TransferenciaService {
                 System.out.println("Corpo da requisição: " + requestData);
 
                 // Processa a transferência e envia a resposta
-                String response = processTransferWithRetry(requestData);
+                String response = processarRequisicao(requestData);
 
                 writer.println("HTTP/1.1 200 OK");
                 writer.println("Content-Type: text/plain");
@@ -115,7 +274,7 @@ public class TransferenciaService {
         try (OutputStream outputStream = socket.getOutputStream()) {
             System.out.println("Requisição TCP detectada: " + request);
 
-            String response = processTransferWithRetry(request);
+            String response = processarRequisicao(request);
             System.out.println("Resposta enviada: " + response);
             outputStream.write((response + "\n").getBytes());
             outputStream.flush();
@@ -125,11 +284,11 @@ public class TransferenciaService {
     }
 
     private void startUdpServer() {
-        try (DatagramSocket datagramSocket = new DatagramSocket(4001)) {
-            System.out.println("UDP Server rodando na porta 4001...");
+        try (DatagramSocket datagramSocket = new DatagramSocket(porta)) {
+            System.out.println("UDP Server rodando na porta " + porta + "...");
 
             while (true) {
-                byte[] buffer = new byte[1024];
+                byte[] buffer = new byte[1024 * 2];
                 DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
                 datagramSocket.receive(packet);
                 executorService.submit(() -> handleUdpClient(packet, datagramSocket));
@@ -144,7 +303,7 @@ public class TransferenciaService {
             String request = new String(packet.getData(), 0, packet.getLength());
             System.out.println("Requisição UDP recebida: " + request);
 
-            String response = processTransferWithRetry(request);
+            String response = processarRequisicao(request);
 
             byte[] responseBytes = response.getBytes();
             DatagramPacket responsePacket = new DatagramPacket(
@@ -156,30 +315,59 @@ public class TransferenciaService {
         }
     }
 
+    public String processarRequisicao(String request) {
+        if (TwoPhaseCommit.isMensagem(request)) {
+            return duasFases.participar(request);
+        }
+        if (request != null && request.regionMatches(true, 0, LOTE, 0, LOTE.length())) {
+            return processarLote(request);
+        }
+        return processTransferWithRetry(request);
+    }
+
     public String processTransferWithRetry(String request) {
-        System.out.println("Entrou aqui");
-        int retryCount = 0;
-        int maxRetries = 20;
-        long retryDelay = 100;
+        try {
+            return executarComRetry(() -> processTransferRequest(request));
+        } catch (SQLException e) {
+            return "Erro na transferência: " + e.getMessage();
+        }
+    }
 
-        while (retryCount < maxRetries) {
+    private <T> T executarComRetry(OperacaoSql<T> operacao) throws SQLException {
+        int tentativa = 0;
+
+        while (true) {
             try {
-                return processTransferRequest(request);
+                return operacao.executar();
             } catch (SQLException e) {
-                if (e.getMessage().startsWith("Deadlock found")) {
-                    retryCount++;
-                    try {
-                        Thread.sleep(retryDelay);
-                    } catch (InterruptedException ie) {
-                        Thread.currentThread().interrupt();
-                        return "Erro: Interrupção inesperada durante retry.";
-                    }
-                } else {
-                    return "Erro na transferência: " + e.getMessage();
+                if (!isDeadlock(e)) {
+                    throw e;
+                }
+                deadlocksRetentados.incrementAndGet();
+                if (++tentativa >= MAX_TENTATIVAS) {
+                    throw new SQLException("Deadlock persistente após " + MAX_TENTATIVAS + " tentativas.", e);
+                }
+                try {
+                    Thread.sleep(calcularEspera(tentativa));
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new SQLException("Interrupção inesperada durante retry.", ie);
                 }
             }
         }
-        return "Erro na transferência: Deadlock persistente após " + maxRetries + " tentativas.";
+    }
+
+    // Com a ordem única de travamento o deadlock só aparece por fatores externos
+    // (ex.: outro cliente no banco); por isso o retry é só um último recurso,
+    // com backoff exponencial e jitter completo.
+    private static long calcularEspera(int tentativa) {
+        long teto = Math.min(ESPERA_MAXIMA_MS, ESPERA_BASE_MS << Math.min(tentativa, 20));
+        return ThreadLocalRandom.current().nextLong(teto + 1);
+    }
+
+    private static boolean isDeadlock(SQLException e) {
+        return e.getErrorCode() == MYSQL_ER_LOCK_DEADLOCK || "40001".equals(e.getSQLState())
+                || (e.getMessage() != null && e.getMessage().startsWith("Deadlock found"));
     }
 
     public String processTransferRequest(String request) throws SQLException {
@@ -188,56 +376,174 @@ public class TransferenciaService {
             return "Erro: Número de parâmetros inválido.";
         }
 
-        String bancoOrigemNome = params[1];
-        String agenciaOrigem = params[2];
-        String contaNumOrigem = params[3];
-        String bancoDestinoNome = params[4];
-        String agenciaDestino = params[5];
-        String contaNumDestino = params[6];
-        double valor;
+        ChaveConta origem = new ChaveConta(params[1], params[2], params[3]);
+        ChaveConta destino = new ChaveConta(params[4], params[5], params[6]);
+        long valor;
 
         try {
-            valor = Double.parseDouble(params[7]);
+            valor = Dinheiro.parseCentavos(params[7]);
         } catch (NumberFormatException e) {
             return "Erro: Valor inválido.";
         }
 
-        try (Connection conn = dataBaseConnection.getConnection()) {
-            conn.setAutoCommit(false);
+        try {
+            bancoService.verificarBanco(origem.banco());
+            bancoService.verificarBanco(destino.banco());
+
+            Transferencia transferencia = new Transferencia(origem, destino, valor);
+            PartitionMap.Particao donoDestino = donoRemoto(destino);
+            ResultadoOperacao resultado = donoDestino != null
+                    ? duasFases.transferir(transferencia, donoDestino)
+                    : contaService.transferir(transferencia);
+            if (resultado != ResultadoOperacao.OK) {
+                return resultado.getMensagem();
+            }
+            return "Transferência realizada com sucesso! OK";
+
+        } catch (SQLException e) {
+            throw e;
+        } catch (Exception e) {
+            return e.getMessage();
+        }
+    }
 
-            // Preparar saque
-            Conta contaOrigem = bancoService.prepararParaSaque(bancoOrigemNome, conn, agenciaOrigem, contaNumOrigem,
-                    valor);
-            if (contaOrigem == null) {
-                conn.rollback();
-                return "Erro: Conta de origem não encontrada.";
+    /**
+     * TRANSFERIR_LOTE-&lt;item&gt;;&lt;item&gt;;... onde cada item é
+     * bancoOrigem-agenciaOrigem-contaOrigem-bancoDestino-agenciaDestino-contaDestino-valor
+     * (itens também podem vir separados por quebra de linha).
+     *
+     * Os itens são aplicados na ordem do pedido, em grupos de até
+     * {@link #TAMANHO_GRUPO_LOTE}, cada grupo numa transação; um item com
+     * destino em outra partição fecha o grupo e vai sozinho pelas duas fases.
+     * Em UDP o cliente divide o lote em vários datagramas
+     * TRANSFERIR_LOTE; os índices da resposta são relativos a cada datagrama.
+     */
+    public String processarLote(String request) {
+        String corpo = request.length() > LOTE.length() ? request.substring(LOTE.length() + 1) : "";
+        String[] itensTexto = corpo.split("[;\\r\\n]+");
+
+        List<Transferencia> itens = new ArrayList<>(itensTexto.length);
+        String[] resultados = new String[itensTexto.length];
+        for (int i = 0; i < itensTexto.length; i++) {
+            String[] campos = itensTexto[i].trim().split("-");
+            if (campos.length != 7) {
+                itens.add(null);
+                resultados[i] = "FORMATO_INVALIDO";
+                continue;
+            }
+            try {
+                itens.add(new Transferencia(
+                        new ChaveConta(campos[0], campos[1], campos[2]),
+                        new ChaveConta(campos[3], campos[4], campos[5]),
+                        Dinheiro.parseCentavos(campos[6])));
+            } catch (NumberFormatException e) {
+                itens.add(null);
+                resultados[i] = "VALOR_INVALIDO";
             }
+        }
 
-            // Preparar depósito
-            Conta contaDestino = bancoService.prepararParaDeposito(bancoDestinoNome, conn, agenciaDestino,
-                    contaNumDestino);
-            if (contaDestino == null) {
-                conn.rollback();
-                return "Erro: Conta de destino não encontrada.";
+        // Os itens são aplicados na ordem do pedido: os locais acumulam no
+        // grupo pendente, e um item com destino em outra partição primeiro
+        // aplica esse grupo e depois vai sozinho pelas duas fases
+        int inicio = 0;
+        for (int i = 0; i < itens.size(); i++) {
+            Transferencia item = itens.get(i);
+            PartitionMap.Particao donoDestino = item != null ? donoRemoto(item.destino()) : null;
+            if (donoDestino == null) {
+                if (i + 1 - inicio == TAMANHO_GRUPO_LOTE) {
+                    aplicarFaixa(itens, inicio, i + 1, resultados);
+                    inicio = i + 1;
+                }
+                continue;
+            }
+            aplicarFaixa(itens, inicio, i, resultados);
+            inicio = i + 1;
+            try {
+                resultados[i] = executarComRetry(() -> duasFases.transferir(item, donoDestino)).name();
+            } catch (SQLException e) {
+                System.err.println("Erro na transferência entre partições do lote: " + e.getMessage());
+                resultados[i] = "ERRO_BANCO_DE_DADOS";
             }
+        }
+        aplicarFaixa(itens, inicio, itens.size(), resultados);
 
-            double saldoOrigemAtualizado = contaOrigem.getSaldo() - valor;
-            double saldoDestinoAtualizado = contaDestino.getSaldo() + valor;
+        return formatarResultadosLote(resultados);
+    }
 
-            contaOrigem.setSaldo(saldoOrigemAtualizado);
-            contaDestino.setSaldo(saldoDestinoAtualizado);
+    /** Aplica os itens locais de [inicio, fim) numa transação; os nulos já têm resultado. */
+    private void aplicarFaixa(List<Transferencia> itens, int inicio, int fim, String[] resultados) {
+        if (inicio >= fim) {
+            return;
+        }
+        List<Transferencia> grupo = itens.subList(inicio, fim);
+        String[] resultadosGrupo;
+        try {
+            resultadosGrupo = executarComRetry(() -> aplicarGrupo(grupo));
+        } catch (SQLException e) {
+            System.err.println("Erro ao aplicar grupo do lote: " + e.getMessage());
+            resultadosGrupo = new String[grupo.size()];
+            Arrays.fill(resultadosGrupo, "ERRO_BANCO_DE_DADOS");
+        }
+        for (int i = inicio; i < fim; i++) {
+            if (grupo.get(i - inicio) != null) {
+                resultados[i] = resultadosGrupo[i - inicio];
+            }
+        }
+    }
 
-            contaService.atualizarSaldo(conn, contaOrigem);
-            contaService.atualizarSaldo(conn, contaDestino);
+    /** Resposta do lote: {@code Lote: 1=OK;2=SALDO_INSUFICIENTE; Sucesso: 1/2 OK}. */
+    static String formatarResultadosLote(String[] resultados) {
+        int sucessos = 0;
+        StringBuilder resposta = new StringBuilder("Lote: ");
+        for (int i = 0; i < resultados.length; i++) {
+            if ("OK".equals(resultados[i])) {
+                sucessos++;
+            }
+            resposta.append(i + 1).append('=').append(resultados[i]).append(';');
+        }
+        return resposta.append(" Sucesso: ").append(sucessos).append('/').append(resultados.length).append(" OK")
+                .toString();
+    }
 
-            conn.commit();
-            return "Transferência realizada com sucesso! OK";
+    /** @return os códigos de uma resposta de {@link #formatarResultadosLote}, ou null se for um erro */
+    static String[] lerResultadosLote(String resposta, int quantidade) {
+        int fim = resposta.lastIndexOf(" Sucesso: ");
+        if (!resposta.startsWith("Lote: ") || fim < 0) {
+            return null;
+        }
+        String[] resultados = new String[quantidade];
+        for (String item : resposta.substring("Lote: ".length(), fim).split(";")) {
+            int igual = item.indexOf('=');
+            if (igual < 0) {
+                continue;
+            }
+            int indice = Integer.parseInt(item.substring(0, igual).trim()) - 1;
+            if (indice >= 0 && indice < quantidade) {
+                resultados[indice] = item.substring(igual + 1);
+            }
+        }
+        return resultados;
+    }
 
-        } catch (SQLException e) {
-            throw e;
-        } catch (Exception e) {
-            return e.getMessage();
+    private String[] aplicarGrupo(List<Transferencia> grupo) throws SQLException {
+        ResultadoOperacao[] resultados = contaService.transferirGrupo(grupo);
+        String[] codigos = new String[resultados.length];
+        for (int i = 0; i < resultados.length; i++) {
+            if (resultados[i] != null) {
+                codigos[i] = resultados[i].name();
+            }
         }
+        return codigos;
+    }
+
+    public static String estatisticas() {
+        return String.format("Transferências: deadlocks evitados=%d, deadlocks retentados=%d",
+                JdbcLedgerStorage.getDeadlocksEvitados(), deadlocksRetentados.get());
+    }
+
+    @FunctionalInterface
+    private interface OperacaoSql<T> {
+        T executar() throws SQLException;
     }
 
 }
@@ -0,0 +1,383 @@
+package br.imd.service;
+
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import br.imd.entity.ChaveConta;
+import br.imd.entity.Dinheiro;
+import br.imd.entity.ResultadoOperacao;
+import br.imd.entity.Transferencia;
+import br.imd.processors.PartitionMap;
+
+/**
+ * Transferência entre contas de partições diferentes, em duas fases.
+ *
+ * A instância dona da origem coordena: debita a origem (a sua parte
+ * preparada) e pede ao dono do destino que prepare o crédito, o que confere a
+ * conta e guarda o crédito pendente. Se os dois prepararam, a decisão é
+ * confirmar e o participante aplica o crédito; senão o débito é estornado e o
+ * participante descarta o pendente.
+ *
+ * O débito da origem grava a transação no storage na mesma operação, e o
+ * crédito no participante grava a confirmação do id; o estorno encerra a
+ * transação também na mesma operação, então ela nunca é estornada duas vezes.
+ * O crédito preparado fica só em memória: se o participante o perde (por
+ * vencer ou reiniciar), ele nunca foi aplicado e a resposta é uma recusa.
+ *
+ * Só se responde OK depois de o participante confirmar. Uma confirmação sem
+ * resposta é repetida algumas vezes na hora; se continuar sem resposta, o
+ * cliente recebe {@link ResultadoOperacao#TRANSFERENCIA_PENDENTE} e a
+ * repetição segue em segundo plano até uma resposta definitiva: confirmado
+ * encerra a transação, recusado ou abortado a estorna. Passada a metade de
+ * {@code banco.transferencia.2pc.retencaoMs} o coordenador passa a pedir o
+ * aborto; sem resposta, continua pedindo, sem estornar. Depois de um restart,
+ * {@link #retomarPendentes} faz o mesmo com as transações que a instância
+ * anterior deixou abertas. O participante guarda a confirmação até o
+ * coordenador encerrar a transação e mandar {@code ESQUECER_CREDITO}.
+ */
+final class TwoPhaseCommit {
+    static final String PREPARAR = "PREPARAR_CREDITO";
+    static final String CONFIRMAR = "CONFIRMAR_CREDITO";
+    static final String ABORTAR = "ABORTAR_CREDITO";
+    static final String ESQUECER = "ESQUECER_CREDITO";
+    private static final String PREPARADO = "PREPARADO OK";
+    private static final String CONFIRMADO = "CONFIRMADO OK";
+    private static final String ABORTADO = "ABORTADO OK";
+    private static final String RECUSADO = "RECUSADO-";
+    private static final long RETENCAO_NANOS = TimeUnit.MILLISECONDS
+            .toNanos(Long.getLong("banco.transferencia.2pc.retencaoMs", 300000L));
+    private static final long INTERVALO_REPETICAO_MS = 1000;
+    private static final int TENTATIVAS_CONFIRMACAO = 3;
+    private static final long ESPERA_TENTATIVA_MS = 100;
+
+    private final ContaService contaService;
+    private final TransferenciaClient cliente;
+    // Ids sem '-', que é o separador do protocolo
+    private final String prefixoId = Long.toString(ThreadLocalRandom.current().nextLong() >>> 1, 36);
+    private final AtomicLong proximoId = new AtomicLong();
+    private final Map<String, CreditoPreparado> preparados = new ConcurrentHashMap<>();
+    // Transações de instâncias anteriores já entregues à repetição
+    private final Set<String> retomadas = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService agendador = Executors.newSingleThreadScheduledExecutor();
+
+    TwoPhaseCommit(ContaService contaService, TransferenciaClient cliente) {
+        this.contaService = contaService;
+        this.cliente = cliente;
+        agendador.scheduleAtFixedRate(this::descartarVencidos, 1, 1, TimeUnit.SECONDS);
+    }
+
+    static boolean isMensagem(String request) {
+        return request != null
+                && (request.startsWith(PREPARAR) || request.startsWith(CONFIRMAR) || request.startsWith(ABORTAR)
+                        || request.startsWith(ESQUECER));
+    }
+
+    /** Lado do coordenador; a origem é desta instância e o destino de {@code donoDestino}. */
+    ResultadoOperacao transferir(Transferencia transferencia, PartitionMap.Particao donoDestino)
+            throws SQLException {
+        if (transferencia.valor() <= 0) {
+            return ResultadoOperacao.VALOR_INVALIDO;
+        }
+        String id = prefixoId + "." + proximoId.incrementAndGet();
+        ResultadoOperacao debito = contaService.iniciarDuasFases(id, transferencia);
+        if (debito != ResultadoOperacao.OK) {
+            return debito;
+        }
+
+        ChaveConta destino = transferencia.destino();
+        System.out.println("Transação " + id + " com destino na partição " + donoDestino.formatar());
+        String voto = cliente.enviar(donoDestino, PREPARAR + "-" + id + "-" + destino.banco() + "-"
+                + destino.agencia() + "-" + destino.conta() + "-" + Dinheiro.formatar(transferencia.valor())).join();
+        if (!PREPARADO.equals(voto)) {
+            if (!estornar(id)) {
+                // Fica para a repetição, que pede o aborto antes de estornar
+                agendarDecisao(donoDestino, id, System.nanoTime() - RETENCAO_NANOS / 2, false);
+                return ResultadoOperacao.TRANSFERENCIA_PENDENTE;
+            }
+            // Se o preparo chegou e só a resposta se perdeu, o participante descarta
+            cliente.enviar(donoDestino, ABORTAR + "-" + id);
+            return recusa(voto);
+        }
+
+        // A decisão é confirmar: daqui em diante só se estorna se o
+        // participante recusar, e o cliente só recebe OK com a confirmação
+        String resposta = null;
+        for (int tentativa = 0; tentativa < TENTATIVAS_CONFIRMACAO; tentativa++) {
+            if (tentativa > 0 && !esperar(ESPERA_TENTATIVA_MS)) {
+                break;
+            }
+            resposta = cliente.enviar(donoDestino, CONFIRMAR + "-" + id).join();
+            if (CONFIRMADO.equals(resposta)) {
+                if (!concluir(donoDestino, id)) {
+                    // A transação segue aberta; a repetição pergunta de novo e
+                    // a resposta continua confirmado
+                    agendarDecisao(donoDestino, id, System.nanoTime(), false);
+                }
+                return ResultadoOperacao.OK;
+            }
+            if (resposta.startsWith(RECUSADO)) {
+                if (!estornar(id)) {
+                    break;
+                }
+                return recusa(resposta);
+            }
+        }
+        System.err.println("Confirmação " + id + " sem resposta (" + resposta + "); transferência pendente.");
+        agendarDecisao(donoDestino, id, System.nanoTime(), false);
+        return ResultadoOperacao.TRANSFERENCIA_PENDENTE;
+    }
+
+    /**
+     * Retoma as transações que uma instância anterior deixou abertas com a
+     * origem nesta partição. O cliente delas não recebeu OK, então a
+     * repetição já começa pedindo o aborto. Uma transação cujo destino não tem
+     * dono conhecido fica para a próxima chamada: só o dono do destino pode
+     * responder por um crédito preparado.
+     *
+     * @param daqui    se a conta é desta partição
+     * @param donoRemoto o dono de uma conta de outra partição, ou null se
+     *                   ainda não é conhecido
+     * @return false se alguma transação ficou para depois
+     */
+    boolean retomarPendentes(Predicate<ChaveConta> daqui, Function<ChaveConta, PartitionMap.Particao> donoRemoto)
+            throws SQLException {
+        boolean completo = true;
+        for (Map.Entry<String, Transferencia> e : contaService.listarDuasFasesPendentes().entrySet()) {
+            String id = e.getKey();
+            Transferencia transferencia = e.getValue();
+            if (id.startsWith(prefixoId + ".") || !daqui.test(transferencia.origem()) || retomadas.contains(id)) {
+                continue;
+            }
+            PartitionMap.Particao dono = null;
+            if (!daqui.test(transferencia.destino())) {
+                dono = donoRemoto.apply(transferencia.destino());
+                if (dono == null) {
+                    completo = false;
+                    continue;
+                }
+            }
+            retomadas.add(id);
+            System.out.println("Transação " + id + " aberta antes do restart; consultando o participante.");
+            agendarDecisao(dono, id, System.nanoTime() - RETENCAO_NANOS / 2, false);
+        }
+        return completo;
+    }
+
+    private static boolean esperar(long ms) {
+        try {
+            Thread.sleep(ms);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Repete a decisão de uma transação pendente até uma resposta definitiva
+     * do participante. O cliente não recebeu OK, então uma recusa ou um aborto
+     * estornam a origem; depois de metade da retenção pede o aborto. Sem
+     * resposta a origem nunca é estornada: o participante pode ter aplicado o
+     * crédito e só a resposta ter se perdido.
+     */
+    private void agendarDecisao(PartitionMap.Particao dono, String id, long inicio, boolean avisado) {
+        agendador.schedule(() -> {
+            long decorrido = System.nanoTime() - inicio;
+            String pedido = (decorrido >= RETENCAO_NANOS / 2 ? ABORTAR : CONFIRMAR) + "-" + id;
+            enviar(dono, pedido).handle((resposta, erro) -> {
+                boolean resolvida = false;
+                if (erro != null) {
+                    resposta = "Erro: " + erro.getMessage();
+                }
+                if (CONFIRMADO.equals(resposta)) {
+                    resolvida = concluir(dono, id);
+                    if (resolvida) {
+                        System.out.println("Transação pendente " + id + " confirmada na repetição.");
+                    }
+                } else if (resposta.startsWith(RECUSADO) || ABORTADO.equals(resposta)) {
+                    resolvida = estornar(id);
+                    if (resolvida) {
+                        System.out.println("Transação pendente " + id + " não confirmada (" + resposta
+                                + "); origem estornada.");
+                    }
+                }
+                if (resolvida) {
+                    return null;
+                }
+                boolean avisar = !avisado && decorrido >= RETENCAO_NANOS;
+                if (avisar) {
+                    System.err.println("Transação pendente " + id + " ainda sem resposta definitiva do participante "
+                            + (dono != null ? dono.formatar() : "local") + "; a origem segue debitada.");
+                }
+                agendarDecisao(dono, id, inicio, avisado || avisar);
+                return null;
+            });
+        }, INTERVALO_REPETICAO_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // Sem dono remoto o destino é desta partição e a pergunta vai ao
+    // participante local
+    private CompletableFuture<String> enviar(PartitionMap.Particao dono, String pedido) {
+        if (dono == null) {
+            return CompletableFuture.supplyAsync(() -> participar(pedido), agendador);
+        }
+        return cliente.enviar(dono, pedido);
+    }
+
+    /** Encerra a transação confirmada e libera o registro do participante. */
+    private boolean concluir(PartitionMap.Particao dono, String id) {
+        try {
+            contaService.encerrarDuasFases(id, false);
+        } catch (SQLException e) {
+            System.err.println("Erro ao encerrar a transação " + id + ": " + e.getMessage());
+            return false;
+        }
+        // Só depois do encerramento: antes, uma pergunta repetida precisa
+        // continuar vendo a confirmação. Se a mensagem se perder, o registro
+        // do participante só fica sobrando
+        enviar(dono, ESQUECER + "-" + id);
+        return true;
+    }
+
+    /** @return false se o estorno falhou e a transação continua aberta */
+    private boolean estornar(String id) {
+        try {
+            if (contaService.encerrarDuasFases(id, true) == ResultadoOperacao.CONTA_ORIGEM_INEXISTENTE) {
+                System.err.println("Estorno da transação " + id + " sem conta de origem.");
+            }
+            return true;
+        } catch (SQLException e) {
+            System.err.println("Erro ao estornar a transação " + id + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private static ResultadoOperacao recusa(String resposta) {
+        if (resposta.startsWith(RECUSADO)) {
+            try {
+                return ResultadoOperacao.valueOf(resposta.substring(RECUSADO.length()).trim());
+            } catch (IllegalArgumentException e) {
+                // código desconhecido
+            }
+        }
+        return ResultadoOperacao.PARTICAO_INDISPONIVEL;
+    }
+
+    /** Lado do participante: PREPARAR_CREDITO, CONFIRMAR_CREDITO e ABORTAR_CREDITO. */
+    String participar(String request) {
+        String[] params = request.split("-");
+        try {
+            String id = params[1];
+            switch (params[0]) {
+                case PREPARAR:
+                    ChaveConta destino = new ChaveConta(params[2], params[3], params[4]);
+                    long valor = Dinheiro.parseCentavos(params[5]);
+                    if (!contaService.existeConta(destino)) {
+                        return RECUSADO + ResultadoOperacao.CONTA_DESTINO_INEXISTENTE.name();
+                    }
+                    preparados.put(id, new CreditoPreparado(destino, valor, System.nanoTime()));
+                    return PREPARADO;
+                case CONFIRMAR:
+                    return confirmar(id);
+                case ABORTAR:
+                    return abortar(id);
+                case ESQUECER:
+                    contaService.esquecerCreditoDuasFases(id);
+                    return "ESQUECIDO OK";
+                default:
+                    return "Erro: mensagem de duas fases inválida.";
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            return "Erro: mensagem de duas fases inválida.";
+        } catch (SQLException e) {
+            return "Erro na transferência: " + e.getMessage();
+        }
+    }
+
+    private String confirmar(String id) throws SQLException {
+        CreditoPreparado credito = preparados.get(id);
+        if (credito == null) {
+            // Já confirmado (o registro é gravado com o crédito), ou abortado,
+            // vencido ou perdido num restart: nesses o crédito nunca foi aplicado
+            return contaService.creditoDuasFasesConfirmado(id) ? CONFIRMADO
+                    : RECUSADO + ResultadoOperacao.PARTICAO_INDISPONIVEL.name();
+        }
+        if (!credito.aplicando.compareAndSet(false, true)) {
+            // Outra confirmação do mesmo id está aplicando; o coordenador repete
+            return "Erro: confirmação em andamento.";
+        }
+        boolean decidido = false;
+        try {
+            ResultadoOperacao resultado = contaService.confirmarCreditoDuasFases(id, credito.destino, credito.valor);
+            decidido = true;
+            return resultado == ResultadoOperacao.OK ? CONFIRMADO : RECUSADO + resultado.name();
+        } finally {
+            if (decidido) {
+                preparados.remove(id);
+            } else {
+                // Falha passageira (SQLException): o crédito continua preparado
+                // para a próxima repetição do coordenador
+                credito.aplicando.set(false);
+            }
+        }
+    }
+
+    private String abortar(String id) throws SQLException {
+        CreditoPreparado credito = preparados.get(id);
+        if (credito != null && !credito.aplicando.compareAndSet(false, true)) {
+            return "Erro: confirmação em andamento.";
+        }
+        boolean confirmado;
+        try {
+            confirmado = contaService.creditoDuasFasesConfirmado(id);
+        } catch (SQLException e) {
+            if (credito != null) {
+                credito.aplicando.set(false);
+            }
+            throw e;
+        }
+        if (confirmado) {
+            return CONFIRMADO;
+        }
+        preparados.remove(id);
+        return ABORTADO;
+    }
+
+    // Descartar um crédito preparado é seguro: ele não foi aplicado, e uma
+    // confirmação que chegue depois é recusada
+    private void descartarVencidos() {
+        long agora = System.nanoTime();
+        Iterator<CreditoPreparado> pendentes = preparados.values().iterator();
+        while (pendentes.hasNext()) {
+            CreditoPreparado credito = pendentes.next();
+            if (agora - credito.inicio > RETENCAO_NANOS && !credito.aplicando.get()) {
+                pendentes.remove();
+            }
+        }
+    }
+
+    private static final class CreditoPreparado {
+        final ChaveConta destino;
+        final long valor;
+        final long inicio;
+        final AtomicBoolean aplicando = new AtomicBoolean();
+
+        CreditoPreparado(ChaveConta destino, long valor, long inicio) {
+            this.destino = destino;
+            this.valor = valor;
+            this.inicio = inicio;
+        }
+    }
+}
@@ -0,0 +1,384 @@
+package br.imd.storage;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import br.imd.entity.Banco;
+import br.imd.entity.ChaveConta;
+import br.imd.entity.Conta;
+import br.imd.entity.PaginaContas;
+import br.imd.entity.ResultadoOperacao;
+import br.imd.entity.Transferencia;
+import br.imd.repository.BancoRepository;
+import br.imd.repository.ContaRepository;
+import br.imd.repository.DataBaseConnection;
+import br.imd.repository.DuasFasesRepository;
+
+/**
+ * {@link LedgerStorage} sobre o MySQL, usando os repositórios e o pool de
+ * {@link DataBaseConnection}.
+ *
+ * As contas alteradas saem do cache do {@link ContaRepository} só depois do
+ * commit (ou do UPDATE em autocommit), nunca com a transação aberta.
+ */
+public class JdbcLedgerStorage implements LedgerStorage {
+    // Transferências cuja linha de destino foi travada antes da de origem,
+    // seguindo a ordem do índice
+    private static final AtomicLong deadlocksEvitados = new AtomicLong();
+
+    private final DataBaseConnection dataBaseConnection;
+    private final BancoRepository bancoRepository;
+    private final ContaRepository contaRepository;
+    private final DuasFasesRepository duasFasesRepository;
+
+    public JdbcLedgerStorage() {
+        this.dataBaseConnection = new DataBaseConnection();
+        this.bancoRepository = new BancoRepository();
+        this.contaRepository = new ContaRepository();
+        this.duasFasesRepository = new DuasFasesRepository();
+    }
+
+    public static long getDeadlocksEvitados() {
+        return deadlocksEvitados.get();
+    }
+
+    @Override
+    public boolean criarBanco(String nome) throws SQLException {
+        if (bancoRepository.existeBanco(nome)) {
+            return false;
+        }
+        bancoRepository.criarBanco(new Banco(nome));
+        return true;
+    }
+
+    @Override
+    public Banco buscarBanco(String nome) throws SQLException {
+        return bancoRepository.buscarBanco(nome);
+    }
+
+    @Override
+    public boolean existeBanco(String nome) throws SQLException {
+        return bancoRepository.existeBanco(nome);
+    }
+
+    @Override
+    public List<Banco> listarBancos() throws SQLException {
+        try (Connection conn = dataBaseConnection.getConnection()) {
+            return bancoRepository.listarBancos(conn);
+        }
+    }
+
+    @Override
+    public boolean excluirBanco(String nome) throws SQLException {
+        if (!bancoRepository.existeBanco(nome)) {
+            return false;
+        }
+        bancoRepository.excluirBanco(nome);
+        return true;
+    }
+
+    @Override
+    public boolean criarConta(ChaveConta chave, long saldoInicial) throws SQLException {
+        try (Connection conn = dataBaseConnection.getConnection()) {
+            if (contaRepository.existeConta(conn, chave.banco(), chave.agencia(), chave.conta())) {
+                return false;
+            }
+            contaRepository.criarConta(conn,
+                    new Conta(chave.conta(), chave.agencia(), saldoInicial, new Banco(chave.banco())));
+            ContaRepository.invalidar(chave);
+            return true;
+        }
+    }
+
+    @Override
+    public Conta buscarConta(ChaveConta chave) throws SQLException {
+        Conta conta = contaRepository.buscarConta(null, chave.banco(), chave.agencia(), chave.conta());
+        if (conta != null) {
+            conta.setBanco(new Banco(chave.banco()));
+        }
+        return conta;
+    }
+
+    @Override
+    public boolean existeConta(ChaveConta chave) throws SQLException {
+        try (Connection conn = dataBaseConnection.getConnection()) {
+            return contaRepository.existeConta(conn, chave.banco(), chave.agencia(), chave.conta());
+        }
+    }
+
+    @Override
+    public boolean excluirConta(ChaveConta chave) throws SQLException {
+        try (Connection conn = dataBaseConnection.getConnection()) {
+            if (!contaRepository.existeConta(conn, chave.banco(), chave.agencia(), chave.conta())) {
+                return false;
+            }
+            contaRepository.excluirConta(conn, chave.banco(), chave.agencia(), chave.conta());
+            ContaRepository.invalidar(chave);
+            return true;
+        }
+    }
+
+    @Override
+    public List<Conta> listarContas(String banco) throws SQLException {
+        if (banco == null) {
+            return contaRepository.listarContas();
+        }
+        return contaRepository.listarContasPorBanco(null, banco);
+    }
+
+    @Override
+    public PaginaContas listarContasPagina(String banco, ChaveConta apos, int tamanho) throws SQLException {
+        return contaRepository.listarContasPagina(banco, apos, tamanho);
+    }
+
+    @Override
+    public void percorrerContas(String banco, Consumer<Conta> consumidor) throws SQLException {
+        contaRepository.percorrerContas(banco, consumidor);
+    }
+
+    // Saque e depósito são um único UPDATE condicional em autocommit; a consulta
+    // extra para descobrir o motivo só roda quando ele falha.
+    @Override
+    public ResultadoOperacao debitar(ChaveConta chave, long valor) throws SQLException {
+        try (Connection conn = dataBaseConnection.getConnection()) {
+            return debitar(conn, chave, valor);
+        } finally {
+            ContaRepository.invalidar(chave);
+        }
+    }
+
+    @Override
+    public boolean creditar(ChaveConta chave, long valor) throws SQLException {
+        try (Connection conn = dataBaseConnection.getConnection()) {
+            return contaRepository.creditarSaldo(conn, chave.banco(), chave.agencia(), chave.conta(), valor);
+        } finally {
+            ContaRepository.invalidar(chave);
+        }
+    }
+
+    private ResultadoOperacao debitar(Connection conn, ChaveConta chave, long valor) throws SQLException {
+        if (contaRepository.debitarSaldo(conn, chave.banco(), chave.agencia(), chave.conta(), valor)) {
+            return ResultadoOperacao.OK;
+        }
+        if (!contaRepository.existeConta(conn, chave.banco(), chave.agencia(), chave.conta())) {
+            return ResultadoOperacao.CONTA_ORIGEM_INEXISTENTE;
+        }
+        return ResultadoOperacao.SALDO_INSUFICIENTE;
+    }
+
+    @Override
+    public ResultadoOperacao transferir(Transferencia t) throws SQLException {
+        ChaveConta origem = t.origem();
+        ChaveConta destino = t.destino();
+
+        try (Connection conn = dataBaseConnection.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                // As duas linhas são travadas de uma vez, na ordem do índice,
+                // como nos lotes e no journal; os UPDATEs depois não esperam
+                // por mais ninguém, em qualquer sentido da transferência.
+                List<ChaveConta> travadas = contaRepository.bloquearContas(conn, List.of(origem, destino));
+                if (travadas.size() == 2 && travadas.get(0).equals(destino) && travadas.get(1).equals(origem)) {
+                    deadlocksEvitados.incrementAndGet();
+                }
+                ResultadoOperacao resultado = debitar(conn, origem, t.valor());
+                if (resultado == ResultadoOperacao.OK && !contaRepository.creditarSaldo(conn, destino.banco(),
+                        destino.agencia(), destino.conta(), t.valor())) {
+                    resultado = ResultadoOperacao.CONTA_DESTINO_INEXISTENTE;
+                }
+
+                if (resultado == ResultadoOperacao.OK) {
+                    conn.commit();
+                    ContaRepository.invalidar(origem);
+                    ContaRepository.invalidar(destino);
+                } else {
+                    conn.rollback();
+                }
+                return resultado;
+            } catch (SQLException | RuntimeException e) {
+                conn.rollback();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Trava todas as contas do grupo de uma vez, na ordem do índice, aplica os
+     * itens em memória na ordem recebida e grava os saldos finais num único
+     * batch, tudo na mesma transação.
+     */
+    @Override
+    public ResultadoOperacao[] transferirLote(List<Transferencia> grupo) throws SQLException {
+        try (Connection conn = dataBaseConnection.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                ResultadoOperacao[] resultados = transferirLote(conn, grupo);
+                conn.commit();
+                for (Transferencia t : grupo) {
+                    if (t != null) {
+                        ContaRepository.invalidar(t.origem());
+                        ContaRepository.invalidar(t.destino());
+                    }
+                }
+                return resultados;
+            } catch (SQLException | RuntimeException e) {
+                conn.rollback();
+                throw e;
+            }
+        }
+    }
+
+    private ResultadoOperacao[] transferirLote(Connection conn, List<Transferencia> grupo) throws SQLException {
+        TreeSet<ChaveConta> chaves = new TreeSet<>();
+        for (Transferencia t : grupo) {
+            if (t != null) {
+                chaves.add(t.origem());
+                chaves.add(t.destino());
+            }
+        }
+        // Os saldos ficam pela chave da linha, não pela pedida: duas grafias
+        // da mesma conta movem o mesmo saldo
+        ContaRepository.ContasBloqueadas contas = contaRepository.buscarSaldosEBloquear(conn, chaves);
+        Map<ChaveConta, Long> saldos = contas.saldos();
+
+        ResultadoOperacao[] resultados = new ResultadoOperacao[grupo.size()];
+        TreeSet<ChaveConta> alteradas = new TreeSet<>();
+        for (int i = 0; i < grupo.size(); i++) {
+            Transferencia t = grupo.get(i);
+            if (t == null) {
+                continue;
+            }
+            ChaveConta origem = contas.linha(t.origem());
+            ChaveConta destino = contas.linha(t.destino());
+            if (t.valor() <= 0) {
+                resultados[i] = ResultadoOperacao.VALOR_INVALIDO;
+            } else if (origem == null) {
+                resultados[i] = ResultadoOperacao.CONTA_ORIGEM_INEXISTENTE;
+            } else if (destino == null) {
+                resultados[i] = ResultadoOperacao.CONTA_DESTINO_INEXISTENTE;
+            } else if (saldos.get(origem) < t.valor()) {
+                resultados[i] = ResultadoOperacao.SALDO_INSUFICIENTE;
+            } else {
+                saldos.put(origem, saldos.get(origem) - t.valor());
+                saldos.put(destino, saldos.get(destino) + t.valor());
+                alteradas.add(origem);
+                alteradas.add(destino);
+                resultados[i] = ResultadoOperacao.OK;
+            }
+        }
+
+        Map<ChaveConta, Long> novosSaldos = new TreeMap<>();
+        for (ChaveConta chave : alteradas) {
+            novosSaldos.put(chave, saldos.get(chave));
+        }
+        if (!novosSaldos.isEmpty()) {
+            contaRepository.atualizarSaldos(conn, novosSaldos);
+        }
+        return resultados;
+    }
+
+    @Override
+    public ResultadoOperacao iniciarDuasFases(String id, Transferencia t) throws SQLException {
+        duasFasesRepository.criarTabelas();
+        try (Connection conn = dataBaseConnection.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                ResultadoOperacao resultado = debitar(conn, t.origem(), t.valor());
+                if (resultado == ResultadoOperacao.OK) {
+                    duasFasesRepository.registrarTransacao(conn, id, t);
+                    conn.commit();
+                } else {
+                    conn.rollback();
+                }
+                return resultado;
+            } catch (SQLException | RuntimeException e) {
+                conn.rollback();
+                throw e;
+            }
+        } finally {
+            ContaRepository.invalidar(t.origem());
+        }
+    }
+
+    // A linha da transação fica travada até o commit: dois encerramentos do
+    // mesmo id não estornam duas vezes
+    @Override
+    public ResultadoOperacao encerrarDuasFases(String id, boolean estornar) throws SQLException {
+        duasFasesRepository.criarTabelas();
+        try (Connection conn = dataBaseConnection.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                Transferencia t = duasFasesRepository.buscarTransacaoEBloquear(conn, id);
+                if (t == null) {
+                    conn.rollback();
+                    return null;
+                }
+                ResultadoOperacao resultado = ResultadoOperacao.OK;
+                if (estornar && !contaRepository.creditarSaldo(conn, t.origem().banco(), t.origem().agencia(),
+                        t.origem().conta(), t.valor())) {
+                    resultado = ResultadoOperacao.CONTA_ORIGEM_INEXISTENTE;
+                }
+                duasFasesRepository.removerTransacao(conn, id);
+                conn.commit();
+                ContaRepository.invalidar(t.origem());
+                return resultado;
+            } catch (SQLException | RuntimeException e) {
+                conn.rollback();
+                throw e;
+            }
+        }
+    }
+
+    @Override
+    public Map<String, Transferencia> listarDuasFasesPendentes() throws SQLException {
+        duasFasesRepository.criarTabelas();
+        return duasFasesRepository.listarTransacoes();
+    }
+
+    @Override
+    public ResultadoOperacao confirmarCreditoDuasFases(String id, ChaveConta destino, long valor)
+            throws SQLException {
+        duasFasesRepository.criarTabelas();
+        try (Connection conn = dataBaseConnection.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                // A chave primária trava o id: uma confirmação repetida espera
+                // a primeira e não credita de novo
+                if (!duasFasesRepository.registrarConfirmacao(conn, id)) {
+                    conn.rollback();
+                    return ResultadoOperacao.OK;
+                }
+                if (!contaRepository.creditarSaldo(conn, destino.banco(), destino.agencia(), destino.conta(),
+                        valor)) {
+                    conn.rollback();
+                    return ResultadoOperacao.CONTA_DESTINO_INEXISTENTE;
+                }
+                conn.commit();
+                return ResultadoOperacao.OK;
+            } catch (SQLException | RuntimeException e) {
+                conn.rollback();
+                throw e;
+            }
+        } finally {
+            ContaRepository.invalidar(destino);
+        }
+    }
+
+    @Override
+    public boolean creditoDuasFasesConfirmado(String id) throws SQLException {
+        duasFasesRepository.criarTabelas();
+        return duasFasesRepository.existeConfirmacao(id);
+    }
+
+    @Override
+    public void esquecerCreditoDuasFases(String id) throws SQLException {
+        duasFasesRepository.criarTabelas();
+        duasFasesRepository.removerConfirmacao(id);
+    }
+}
@@ -0,0 +1,124 @@
+package br.imd.storage;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import br.imd.entity.Banco;
+import br.imd.entity.ChaveConta;
+import br.imd.entity.Conta;
+import br.imd.entity.PaginaContas;
+import br.imd.entity.ResultadoOperacao;
+import br.imd.entity.Transferencia;
+
+/**
+ * Armazenamento de bancos, contas e saldos usado por {@link br.imd.service}.
+ *
+ * As implementações são compartilhadas entre threads e devem ser seguras para
+ * uso concorrente. Valores são sempre em centavos. As validações de negócio
+ * (banco existente, valor positivo) ficam nos serviços; aqui só o que precisa
+ * ser atômico com a escrita.
+ */
+public interface LedgerStorage {
+
+    /** @return false se o banco já existe */
+    boolean criarBanco(String nome) throws SQLException;
+
+    /**
+     * @return o banco ou null. Pode vir de um cache do processo; para decidir
+     *         uma escrita use {@link #existeBanco(String)}.
+     */
+    Banco buscarBanco(String nome) throws SQLException;
+
+    /** Consulta a fonte de verdade, sem cache; usada antes de alterar dados. */
+    boolean existeBanco(String nome) throws SQLException;
+
+    List<Banco> listarBancos() throws SQLException;
+
+    /**
+     * Remove o banco. No MySQL as contas seguem a chave estrangeira da
+     * tabela; em memória são removidas junto.
+     *
+     * @return false se o banco não existia
+     */
+    boolean excluirBanco(String nome) throws SQLException;
+
+    /** @return false se a conta já existe */
+    boolean criarConta(ChaveConta chave, long saldoInicial) throws SQLException;
+
+    /**
+     * @return a conta ou null. Pode vir de um cache do processo; para decidir
+     *         uma escrita use {@link #existeConta(ChaveConta)}.
+     */
+    Conta buscarConta(ChaveConta chave) throws SQLException;
+
+    /** Consulta a fonte de verdade, sem cache; usada antes de alterar dados. */
+    boolean existeConta(ChaveConta chave) throws SQLException;
+
+    /** @return false se a conta não existia */
+    boolean excluirConta(ChaveConta chave) throws SQLException;
+
+    /** Todas as contas, ou só as de {@code banco} se não for nulo. */
+    List<Conta> listarContas(String banco) throws SQLException;
+
+    /** Contas depois de {@code apos} na ordem (banco, agência, conta). */
+    PaginaContas listarContasPagina(String banco, ChaveConta apos, int tamanho) throws SQLException;
+
+    /** Entrega as contas em ordem sem materializar a lista. */
+    void percorrerContas(String banco, Consumer<Conta> consumidor) throws SQLException;
+
+    /** @return OK, CONTA_ORIGEM_INEXISTENTE ou SALDO_INSUFICIENTE */
+    ResultadoOperacao debitar(ChaveConta chave, long valor) throws SQLException;
+
+    /** @return false se a conta não existe */
+    boolean creditar(ChaveConta chave, long valor) throws SQLException;
+
+    /** Debita a origem e credita o destino atomicamente. */
+    ResultadoOperacao transferir(Transferencia transferencia) throws SQLException;
+
+    /**
+     * Aplica um grupo de transferências atomicamente, na ordem recebida. Itens
+     * nulos são ignorados e ficam com resultado nulo.
+     */
+    ResultadoOperacao[] transferirLote(List<Transferencia> grupo) throws SQLException;
+
+    // Transferências entre partições (br.imd.service.TwoPhaseCommit). Os
+    // registros são gravados na mesma operação que altera o saldo, então um
+    // restart nunca encontra um sem o outro.
+
+    /**
+     * Coordenador: debita a origem e registra a transação {@code id} como
+     * pendente.
+     *
+     * @return OK, CONTA_ORIGEM_INEXISTENTE ou SALDO_INSUFICIENTE
+     */
+    ResultadoOperacao iniciarDuasFases(String id, Transferencia transferencia) throws SQLException;
+
+    /**
+     * Coordenador: encerra a transação pendente {@code id}; com
+     * {@code estornar}, credita de volta a origem na mesma operação.
+     *
+     * @return OK, CONTA_ORIGEM_INEXISTENTE se não havia mais conta para o
+     *         estorno (a transação é encerrada mesmo assim) ou null se ela já
+     *         estava encerrada
+     */
+    ResultadoOperacao encerrarDuasFases(String id, boolean estornar) throws SQLException;
+
+    /** Coordenador: transações iniciadas e não encerradas, de qualquer instância. */
+    Map<String, Transferencia> listarDuasFasesPendentes() throws SQLException;
+
+    /**
+     * Participante: credita o destino e registra a confirmação {@code id}.
+     * Uma confirmação já registrada não credita de novo.
+     *
+     * @return OK (agora ou antes) ou CONTA_DESTINO_INEXISTENTE
+     */
+    ResultadoOperacao confirmarCreditoDuasFases(String id, ChaveConta destino, long valor) throws SQLException;
+
+    /** Participante: se o crédito {@code id} já foi aplicado. */
+    boolean creditoDuasFasesConfirmado(String id) throws SQLException;
+
+    /** Participante: descarta a confirmação depois que o coordenador encerrou a transação. */
+    void esquecerCreditoDuasFases(String id) throws SQLException;
+}
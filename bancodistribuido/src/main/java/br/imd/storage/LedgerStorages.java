@@ -0,0 +1,54 @@
+package br.imd.storage;
+
+import java.io.IOException;
+
+/**
+ * Escolhe o {@link LedgerStorage} do processo pela propriedade
+ * {@code banco.storage}: {@code jdbc} (padrão, MySQL) ou {@code memoria}.
+ * O {@code memoria} só serve a um processo, como o de
+ * {@link br.imd.SingleProcessMain}; veja {@link MemoryLedgerStorage}.
+ */
+public final class LedgerStorages {
+    private static volatile LedgerStorage instancia;
+
+    private LedgerStorages() {
+    }
+
+    public static LedgerStorage getInstance() {
+        LedgerStorage storage = instancia;
+        if (storage == null) {
+            synchronized (LedgerStorages.class) {
+                storage = instancia;
+                if (storage == null) {
+                    storage = criar();
+                    instancia = storage;
+                }
+            }
+        }
+        return storage;
+    }
+
+    public static boolean isMemoria() {
+        return "memoria".equalsIgnoreCase(System.getProperty("banco.storage", "jdbc"));
+    }
+
+    private static LedgerStorage criar() {
+        if (!isMemoria()) {
+            return new JdbcLedgerStorage();
+        }
+        try {
+            return MemoryLedgerStorage.abrir();
+        } catch (IOException e) {
+            throw new IllegalStateException("Não foi possível abrir o ledger em memória: " + e.getMessage(), e);
+        }
+    }
+
+    public static String estatisticas() {
+        LedgerStorage storage = instancia;
+        if (storage instanceof MemoryLedgerStorage memoria) {
+            return memoria.estatisticas();
+        }
+        return "Storage: " + (storage == null ? "não inicializado" : "jdbc, deadlocks evitados="
+                + JdbcLedgerStorage.getDeadlocksEvitados());
+    }
+}
@@ -0,0 +1,396 @@
+package br.imd.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import br.imd.entity.ChaveConta;
+import br.imd.entity.Transferencia;
+import br.imd.journal.JournalFrames;
+
+/**
+ * Journal de operações do {@link MemoryLedgerStorage}, dividido em segmentos
+ * {@code ledger-N.log}.
+ *
+ * {@link #registrar} é chamado com o lock das contas afetadas, então a ordem
+ * no arquivo respeita a ordem de aplicação de cada conta. Uma thread grava os
+ * registros em grupo e faz um único fsync por grupo. No snapshot o journal é
+ * rotacionado e os segmentos anteriores podem ser apagados.
+ */
+final class MemoryLedgerJournal {
+    static final byte CRIAR_BANCO = 1;
+    static final byte EXCLUIR_BANCO = 2;
+    static final byte CRIAR_CONTA = 3;
+    static final byte EXCLUIR_CONTA = 4;
+    static final byte AJUSTE = 5;
+    static final byte LOTE = 6;
+    // Transferências entre partições: débito da origem com o registro da
+    // transação, encerramento (com ou sem estorno), crédito confirmado no
+    // participante e o descarte da confirmação
+    static final byte DUAS_FASES_INICIAR = 7;
+    static final byte DUAS_FASES_ENCERRAR = 8;
+    static final byte CREDITO_CONFIRMADO = 9;
+    static final byte CREDITO_ESQUECIDO = 10;
+    private static final byte ROTACAO = 0;
+
+    private static final int MAX_GRUPO = 4096;
+
+    private final Path diretorio;
+    private final boolean fsync;
+    private final AtomicLong ultimoSeq = new AtomicLong();
+    private final AtomicLong ultimoSegmento = new AtomicLong();
+    private final BlockingQueue<Operacao> fila = new LinkedBlockingQueue<>();
+
+    private FileChannel canal;
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+
+    MemoryLedgerJournal(Path diretorio, boolean fsync) {
+        this.diretorio = diretorio;
+        this.fsync = fsync;
+    }
+
+    /**
+     * Lê todos os segmentos em ordem entregando as operações com sequência
+     * maior que {@code apos}. Deve ser chamado antes de {@link #iniciar}.
+     */
+    void reproduzir(long apos, Consumer<Operacao> consumidor) throws IOException {
+        long maiorSeq = apos;
+        for (Path segmento : listarSegmentos()) {
+            ultimoSegmento.set(Math.max(ultimoSegmento.get(), numeroSegmento(segmento)));
+            try (FileChannel leitura = FileChannel.open(segmento, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)) {
+                long[] maior = { maiorSeq };
+                JournalFrames.lerTodos(leitura, conteudo -> {
+                    Operacao op = decodificar(conteudo);
+                    maior[0] = Math.max(maior[0], op.seq);
+                    if (op.seq > apos) {
+                        consumidor.accept(op);
+                    }
+                });
+                maiorSeq = maior[0];
+            }
+        }
+        ultimoSeq.set(maiorSeq);
+    }
+
+    void iniciar() throws IOException {
+        canal = abrirSegmento(ultimoSegmento.incrementAndGet());
+        Thread escritor = new Thread(this::loopEscrita, "ledger-journal");
+        escritor.setDaemon(true);
+        escritor.start();
+    }
+
+    /**
+     * Atribui a sequência e enfileira a operação. A confirmação é completada
+     * quando o registro estiver em disco.
+     */
+    CompletableFuture<Void> registrar(Operacao op) {
+        op.seq = ultimoSeq.incrementAndGet();
+        fila.add(op);
+        return op.confirmacao;
+    }
+
+    long getUltimoSeq() {
+        return ultimoSeq.get();
+    }
+
+    /**
+     * Passa a gravar num novo segmento depois de tudo o que já foi enfileirado.
+     * Chamado com todos os locks do ledger, no corte do snapshot.
+     *
+     * @return o número do novo segmento; os anteriores só contêm operações até
+     *         o corte
+     */
+    long rotacionar(CompletableFuture<Void> aoRotacionar) {
+        long novo = ultimoSegmento.incrementAndGet();
+        Operacao op = new Operacao(ROTACAO);
+        op.valor = novo;
+        op.confirmacao.whenComplete((r, e) -> {
+            if (e != null) {
+                aoRotacionar.completeExceptionally(e);
+            } else {
+                aoRotacionar.complete(null);
+            }
+        });
+        fila.add(op);
+        return novo;
+    }
+
+    void apagarSegmentosAnteriores(long segmento) throws IOException {
+        for (Path p : listarSegmentos()) {
+            if (numeroSegmento(p) < segmento) {
+                Files.deleteIfExists(p);
+            }
+        }
+    }
+
+    private void loopEscrita() {
+        List<Operacao> grupo = new ArrayList<>(MAX_GRUPO);
+        List<Operacao> gravando = new ArrayList<>(MAX_GRUPO);
+        while (true) {
+            try {
+                grupo.add(fila.take());
+                fila.drainTo(grupo, MAX_GRUPO - 1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            for (Operacao op : grupo) {
+                if (op.tipo == ROTACAO) {
+                    descarregar(gravando);
+                    trocarSegmento(op);
+                } else {
+                    codificar(op);
+                    gravando.add(op);
+                }
+            }
+            descarregar(gravando);
+            grupo.clear();
+        }
+    }
+
+    private void descarregar(List<Operacao> gravando) {
+        if (gravando.isEmpty()) {
+            return;
+        }
+        try {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                canal.write(buffer);
+            }
+            if (fsync) {
+                canal.force(false);
+            }
+            for (Operacao op : gravando) {
+                op.confirmacao.complete(null);
+            }
+        } catch (IOException e) {
+            System.err.println("Erro ao gravar o journal do ledger: " + e.getMessage());
+            for (Operacao op : gravando) {
+                op.confirmacao.completeExceptionally(e);
+            }
+        } finally {
+            buffer.clear();
+            gravando.clear();
+        }
+    }
+
+    private void trocarSegmento(Operacao rotacao) {
+        try {
+            canal.force(true);
+            canal.close();
+            canal = abrirSegmento(rotacao.valor);
+            rotacao.confirmacao.complete(null);
+        } catch (IOException e) {
+            rotacao.confirmacao.completeExceptionally(e);
+        }
+    }
+
+    private FileChannel abrirSegmento(long numero) throws IOException {
+        Files.createDirectories(diretorio);
+        return FileChannel.open(diretorio.resolve(String.format("ledger-%016d.log", numero)),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private List<Path> listarSegmentos() throws IOException {
+        List<Path> segmentos = new ArrayList<>();
+        if (!Files.isDirectory(diretorio)) {
+            return segmentos;
+        }
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(diretorio, "ledger-*.log")) {
+            for (Path p : ds) {
+                segmentos.add(p);
+            }
+        }
+        segmentos.sort((a, b) -> Long.compare(numeroSegmento(a), numeroSegmento(b)));
+        return segmentos;
+    }
+
+    private static long numeroSegmento(Path p) {
+        String nome = p.getFileName().toString();
+        return Long.parseLong(nome.substring("ledger-".length(), nome.length() - ".log".length()));
+    }
+
+    // [seq:long][tipo:byte] seguido dos campos do tipo
+    private void codificar(Operacao op) {
+        int tamanho = Integer.BYTES * 3 + Long.BYTES * 2 + 1;
+        if (op.banco != null) {
+            tamanho += JournalFrames.tamanhoString(op.banco);
+        }
+        if (op.id != null) {
+            tamanho += JournalFrames.tamanhoString(op.id);
+        }
+        if (op.chave != null) {
+            tamanho += tamanhoChave(op.chave);
+        }
+        if (op.itens != null) {
+            for (Transferencia t : op.itens) {
+                tamanho += tamanhoChave(t.origem()) + tamanhoChave(t.destino()) + Long.BYTES;
+            }
+        }
+        buffer = JournalFrames.garantirEspaco(buffer, tamanho);
+
+        int inicio = JournalFrames.iniciar(buffer);
+        buffer.putLong(op.seq);
+        buffer.put(op.tipo);
+        switch (op.tipo) {
+            case CRIAR_BANCO:
+            case EXCLUIR_BANCO:
+                JournalFrames.putString(buffer, op.banco);
+                break;
+            case CRIAR_CONTA:
+            case AJUSTE:
+                putChave(op.chave);
+                buffer.putLong(op.valor);
+                break;
+            case EXCLUIR_CONTA:
+                putChave(op.chave);
+                break;
+            case LOTE:
+                buffer.putInt(op.itens.size());
+                for (Transferencia t : op.itens) {
+                    putChave(t.origem());
+                    putChave(t.destino());
+                    buffer.putLong(t.valor());
+                }
+                break;
+            case DUAS_FASES_INICIAR: {
+                Transferencia t = op.itens.get(0);
+                JournalFrames.putString(buffer, op.id);
+                putChave(t.origem());
+                putChave(t.destino());
+                buffer.putLong(t.valor());
+                break;
+            }
+            case DUAS_FASES_ENCERRAR:
+                JournalFrames.putString(buffer, op.id);
+                buffer.putLong(op.valor);
+                break;
+            case CREDITO_CONFIRMADO:
+                JournalFrames.putString(buffer, op.id);
+                putChave(op.chave);
+                buffer.putLong(op.valor);
+                break;
+            case CREDITO_ESQUECIDO:
+                JournalFrames.putString(buffer, op.id);
+                break;
+            default:
+                throw new IllegalStateException("Operação desconhecida: " + op.tipo);
+        }
+        JournalFrames.concluir(buffer, inicio);
+    }
+
+    private static Operacao decodificar(ByteBuffer conteudo) throws IOException {
+        long seq = conteudo.getLong();
+        Operacao op = new Operacao(conteudo.get());
+        op.seq = seq;
+        switch (op.tipo) {
+            case CRIAR_BANCO:
+            case EXCLUIR_BANCO:
+                op.banco = JournalFrames.getString(conteudo);
+                break;
+            case CRIAR_CONTA:
+            case AJUSTE:
+                op.chave = getChave(conteudo);
+                op.valor = conteudo.getLong();
+                break;
+            case EXCLUIR_CONTA:
+                op.chave = getChave(conteudo);
+                break;
+            case LOTE:
+                int n = conteudo.getInt();
+                op.itens = new ArrayList<>(n);
+                for (int i = 0; i < n; i++) {
+                    op.itens.add(new Transferencia(getChave(conteudo), getChave(conteudo), conteudo.getLong()));
+                }
+                break;
+            case DUAS_FASES_INICIAR:
+                op.id = JournalFrames.getString(conteudo);
+                op.itens = List.of(new Transferencia(getChave(conteudo), getChave(conteudo), conteudo.getLong()));
+                break;
+            case DUAS_FASES_ENCERRAR:
+                op.id = JournalFrames.getString(conteudo);
+                op.valor = conteudo.getLong();
+                break;
+            case CREDITO_CONFIRMADO:
+                op.id = JournalFrames.getString(conteudo);
+                op.chave = getChave(conteudo);
+                op.valor = conteudo.getLong();
+                break;
+            case CREDITO_ESQUECIDO:
+                op.id = JournalFrames.getString(conteudo);
+                break;
+            default:
+                throw new IOException("Operação desconhecida no journal: " + op.tipo);
+        }
+        return op;
+    }
+
+    private static int tamanhoChave(ChaveConta chave) {
+        return JournalFrames.tamanhoString(chave.banco()) + JournalFrames.tamanhoString(chave.agencia())
+                + JournalFrames.tamanhoString(chave.conta());
+    }
+
+    private void putChave(ChaveConta chave) {
+        JournalFrames.putString(buffer, chave.banco());
+        JournalFrames.putString(buffer, chave.agencia());
+        JournalFrames.putString(buffer, chave.conta());
+    }
+
+    private static ChaveConta getChave(ByteBuffer conteudo) {
+        return new ChaveConta(JournalFrames.getString(conteudo), JournalFrames.getString(conteudo),
+                JournalFrames.getString(conteudo));
+    }
+
+    static final class Operacao {
+        final byte tipo;
+        final CompletableFuture<Void> confirmacao = new CompletableFuture<>();
+        long seq;
+        String id;
+        String banco;
+        ChaveConta chave;
+        long valor;
+        List<Transferencia> itens;
+
+        Operacao(byte tipo) {
+            this.tipo = tipo;
+        }
+
+        static Operacao banco(byte tipo, String banco) {
+            Operacao op = new Operacao(tipo);
+            op.banco = banco;
+            return op;
+        }
+
+        static Operacao conta(byte tipo, ChaveConta chave, long valor) {
+            Operacao op = new Operacao(tipo);
+            op.chave = chave;
+            op.valor = valor;
+            return op;
+        }
+
+        static Operacao lote(List<Transferencia> itens) {
+            Operacao op = new Operacao(LOTE);
+            op.itens = itens;
+            return op;
+        }
+
+        static Operacao duasFases(byte tipo, String id) {
+            Operacao op = new Operacao(tipo);
+            op.id = id;
+            return op;
+        }
+    }
+}
@@ -0,0 +1,1063 @@
+package br.imd.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+import br.imd.entity.Banco;
+import br.imd.entity.ChaveConta;
+import br.imd.entity.Conta;
+import br.imd.entity.PaginaContas;
+import br.imd.entity.ResultadoOperacao;
+import br.imd.entity.Transferencia;
+import br.imd.storage.MemoryLedgerJournal.Operacao;
+
+/**
+ * {@link LedgerStorage} com os saldos em memória, divididos em shards.
+ *
+ * Cada shard tem seu lock e uma tabela de endereçamento aberto com os saldos
+ * em {@code long[]}; o shard de uma conta vem do hash das três partes da
+ * chave, calculado sem alocar. Operações em contas de shards diferentes não
+ * disputam lock, e transferências travam os shards em ordem crescente de
+ * índice, então não há deadlock.
+ *
+ * Toda alteração é registrada no {@link MemoryLedgerJournal} ainda com o lock,
+ * e a chamada só retorna depois do fsync do grupo. Periodicamente é gravado um
+ * snapshot completo e os segmentos anteriores do journal são apagados; na
+ * inicialização o estado é o snapshot mais as operações posteriores a ele.
+ *
+ * Os saldos só existem neste processo: o ledger em memória serve a uma
+ * implantação de processo único, como a de {@link br.imd.SingleProcessMain}
+ * ({@code mvn -Pprocesso-unico exec:java}). Nós em processos separados
+ * precisam do storage {@code jdbc}. Para não misturar journals e snapshots, {@link #abrir()}
+ * trava o diretório e falha se outro processo já o usa.
+ */
+public class MemoryLedgerStorage implements LedgerStorage {
+    private static final int MAGIC_SNAPSHOT = 0x4C454447;
+    // Mesmo formato, seguido das transações e confirmações de duas fases
+    private static final int MAGIC_SNAPSHOT_DUAS_FASES = 0x4C454432;
+    private static final long TIMEOUT_DURABILIDADE_MS = Long.getLong("banco.memoria.timeoutMs", 10000L);
+
+    private final Shard[] shards;
+    private final int mascaraShards;
+    // Ordem (banco, agência, conta) para listagem, paginação e stream
+    private final ConcurrentSkipListSet<ChaveConta> indice = new ConcurrentSkipListSet<>();
+    private final ConcurrentHashMap<String, Banco> bancos = new ConcurrentHashMap<>();
+    // Transações de duas fases pendentes (coordenador) e créditos já
+    // confirmados (participante). Mudam com o lock do shard da conta
+    // movimentada, como o saldo, e entram no corte do snapshot
+    private final ConcurrentHashMap<String, Transferencia> transacoesDuasFases = new ConcurrentHashMap<>();
+    private final Set<String> creditosDuasFases = ConcurrentHashMap.newKeySet();
+    // Leitura: criar/excluir conta. Escrita: criar/excluir banco e snapshot.
+    private final ReentrantReadWriteLock lockEstrutura = new ReentrantReadWriteLock();
+
+    private final Path diretorio;
+    private final MemoryLedgerJournal journal;
+    private final AtomicLong snapshots = new AtomicLong();
+    private volatile IOException falhaDurabilidade;
+    // Mantido aberto enquanto o processo usa o diretório
+    private FileLock lockDiretorio;
+
+    public MemoryLedgerStorage(int quantidadeShards, Path diretorio, boolean fsync) {
+        int n = Integer.highestOneBit(Math.max(1, quantidadeShards - 1)) << 1;
+        this.shards = new Shard[n];
+        for (int i = 0; i < n; i++) {
+            shards[i] = new Shard();
+        }
+        this.mascaraShards = n - 1;
+        this.diretorio = diretorio;
+        this.journal = new MemoryLedgerJournal(diretorio, fsync);
+    }
+
+    /**
+     * Cria o ledger a partir das propriedades {@code banco.memoria.*},
+     * recupera o estado do disco e agenda os snapshots.
+     */
+    public static MemoryLedgerStorage abrir() throws IOException {
+        Path diretorio = Paths.get(System.getProperty("banco.memoria.dir", "ledger"));
+        FileLock lock = travar(diretorio);
+        MemoryLedgerStorage storage = new MemoryLedgerStorage(
+                Integer.getInteger("banco.memoria.shards", 64),
+                diretorio,
+                Boolean.parseBoolean(System.getProperty("banco.memoria.fsync", "true")));
+        storage.lockDiretorio = lock;
+        storage.recuperar();
+
+        long intervalo = Long.getLong("banco.memoria.snapshotIntervaloSeg", 60L);
+        ScheduledExecutorService agendador = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "ledger-snapshot");
+            t.setDaemon(true);
+            return t;
+        });
+        agendador.scheduleWithFixedDelay(() -> {
+            try {
+                storage.gravarSnapshot();
+            } catch (IOException e) {
+                System.err.println("Erro ao gravar snapshot do ledger: " + e.getMessage());
+            }
+        }, intervalo, intervalo, TimeUnit.SECONDS);
+        return storage;
+    }
+
+    /** @throws IOException se outro processo (ou outro ledger deste) já usa o diretório */
+    private static FileLock travar(Path diretorio) throws IOException {
+        Files.createDirectories(diretorio);
+        FileChannel canal = FileChannel.open(diretorio.resolve("ledger.lock"), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = canal.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        }
+        if (lock == null) {
+            canal.close();
+            throw new IOException("O diretório " + diretorio.toAbsolutePath()
+                    + " já está em uso por outro processo; o ledger em memória é de processo único"
+                    + " (use banco.storage=jdbc ou outro banco.memoria.dir).");
+        }
+        return lock;
+    }
+
+    // ---------------------------------------------------------------- bancos
+
+    @Override
+    public boolean criarBanco(String nome) throws SQLException {
+        CompletableFuture<Void> confirmacao;
+        lockEstrutura.writeLock().lock();
+        try {
+            verificarDurabilidade();
+            if (bancos.containsKey(nome)) {
+                return false;
+            }
+            bancos.put(nome, new Banco(nome));
+            confirmacao = journal.registrar(Operacao.banco(MemoryLedgerJournal.CRIAR_BANCO, nome));
+        } finally {
+            lockEstrutura.writeLock().unlock();
+        }
+        aguardar(confirmacao);
+        return true;
+    }
+
+    @Override
+    public Banco buscarBanco(String nome) {
+        return bancos.get(nome);
+    }
+
+    @Override
+    public boolean existeBanco(String nome) {
+        return bancos.containsKey(nome);
+    }
+
+    @Override
+    public List<Banco> listarBancos() {
+        List<Banco> lista = new ArrayList<>(bancos.values());
+        lista.sort((a, b) -> a.getNome().compareTo(b.getNome()));
+        return lista;
+    }
+
+    @Override
+    public boolean excluirBanco(String nome) throws SQLException {
+        CompletableFuture<Void> confirmacao;
+        lockEstrutura.writeLock().lock();
+        try {
+            verificarDurabilidade();
+            if (bancos.remove(nome) == null) {
+                return false;
+            }
+            removerContasDoBanco(nome);
+            confirmacao = journal.registrar(Operacao.banco(MemoryLedgerJournal.EXCLUIR_BANCO, nome));
+        } finally {
+            lockEstrutura.writeLock().unlock();
+        }
+        aguardar(confirmacao);
+        return true;
+    }
+
+    // Com o lock de estrutura em escrita nenhuma conta é criada ou excluída em
+    // paralelo; o lock do shard ainda é necessário por causa das transferências.
+    private void removerContasDoBanco(String nome) {
+        Iterator<ChaveConta> it = indice.tailSet(inicioDoBanco(nome), true).iterator();
+        while (it.hasNext()) {
+            ChaveConta chave = it.next();
+            if (!chave.banco().equals(nome)) {
+                break;
+            }
+            long h = hash(chave.banco(), chave.agencia(), chave.conta());
+            Shard shard = shard(h);
+            shard.lock.lock();
+            try {
+                int i = shard.buscar(h, chave.banco(), chave.agencia(), chave.conta());
+                if (i >= 0) {
+                    shard.remover(i);
+                }
+            } finally {
+                shard.lock.unlock();
+            }
+            it.remove();
+        }
+    }
+
+    // ---------------------------------------------------------------- contas
+
+    @Override
+    public boolean criarConta(ChaveConta chave, long saldoInicial) throws SQLException {
+        CompletableFuture<Void> confirmacao;
+        long h = hash(chave.banco(), chave.agencia(), chave.conta());
+        Shard shard = shard(h);
+        lockEstrutura.readLock().lock();
+        try {
+            verificarDurabilidade();
+            if (!bancos.containsKey(chave.banco())) {
+                throw new IllegalArgumentException("Banco não encontrado.");
+            }
+            shard.lock.lock();
+            try {
+                if (shard.buscar(h, chave.banco(), chave.agencia(), chave.conta()) >= 0) {
+                    return false;
+                }
+                shard.inserir(h, chave, saldoInicial);
+                indice.add(chave);
+                confirmacao = journal.registrar(
+                        Operacao.conta(MemoryLedgerJournal.CRIAR_CONTA, chave, saldoInicial));
+            } finally {
+                shard.lock.unlock();
+            }
+        } finally {
+            lockEstrutura.readLock().unlock();
+        }
+        aguardar(confirmacao);
+        return true;
+    }
+
+    @Override
+    public boolean existeConta(ChaveConta chave) {
+        return buscarConta(chave) != null;
+    }
+
+    @Override
+    public Conta buscarConta(ChaveConta chave) {
+        long h = hash(chave.banco(), chave.agencia(), chave.conta());
+        Shard shard = shard(h);
+        long saldo;
+        shard.lock.lock();
+        try {
+            int i = shard.buscar(h, chave.banco(), chave.agencia(), chave.conta());
+            if (i < 0) {
+                return null;
+            }
+            saldo = shard.saldos[i];
+        } finally {
+            shard.lock.unlock();
+        }
+        return new Conta(chave.conta(), chave.agencia(), saldo, banco(chave.banco()));
+    }
+
+    @Override
+    public boolean excluirConta(ChaveConta chave) throws SQLException {
+        CompletableFuture<Void> confirmacao;
+        long h = hash(chave.banco(), chave.agencia(), chave.conta());
+        Shard shard = shard(h);
+        lockEstrutura.readLock().lock();
+        try {
+            verificarDurabilidade();
+            shard.lock.lock();
+            try {
+                int i = shard.buscar(h, chave.banco(), chave.agencia(), chave.conta());
+                if (i < 0) {
+                    return false;
+                }
+                shard.remover(i);
+                indice.remove(chave);
+                confirmacao = journal.registrar(Operacao.conta(MemoryLedgerJournal.EXCLUIR_CONTA, chave, 0));
+            } finally {
+                shard.lock.unlock();
+            }
+        } finally {
+            lockEstrutura.readLock().unlock();
+        }
+        aguardar(confirmacao);
+        return true;
+    }
+
+    @Override
+    public List<Conta> listarContas(String banco) {
+        List<Conta> contas = new ArrayList<>();
+        percorrerContas(banco, contas::add);
+        return contas;
+    }
+
+    @Override
+    public PaginaContas listarContasPagina(String banco, ChaveConta apos, int tamanho) {
+        NavigableSet<ChaveConta> faixa;
+        if (banco != null && (apos == null || apos.banco().compareTo(banco) < 0)) {
+            faixa = indice.tailSet(inicioDoBanco(banco), true);
+        } else if (apos != null) {
+            faixa = indice.tailSet(apos, false);
+        } else {
+            faixa = indice;
+        }
+
+        List<Conta> contas = new ArrayList<>(tamanho);
+        ChaveConta ultima = null;
+        for (ChaveConta chave : faixa) {
+            if (banco != null && !chave.banco().equals(banco)) {
+                break;
+            }
+            if (contas.size() == tamanho) {
+                return new PaginaContas(contas, PaginaContas.codificarCursor(ultima));
+            }
+            Conta conta = buscarConta(chave);
+            if (conta != null) {
+                contas.add(conta);
+                ultima = chave;
+            }
+        }
+        return new PaginaContas(contas, null);
+    }
+
+    @Override
+    public void percorrerContas(String banco, Consumer<Conta> consumidor) {
+        NavigableSet<ChaveConta> faixa = banco == null ? indice : indice.tailSet(inicioDoBanco(banco), true);
+        for (ChaveConta chave : faixa) {
+            if (banco != null && !chave.banco().equals(banco)) {
+                break;
+            }
+            Conta conta = buscarConta(chave);
+            if (conta != null) {
+                consumidor.accept(conta);
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------- saldos
+
+    @Override
+    public ResultadoOperacao debitar(ChaveConta chave, long valor) throws SQLException {
+        CompletableFuture<Void> confirmacao;
+        long h = hash(chave.banco(), chave.agencia(), chave.conta());
+        Shard shard = shard(h);
+        shard.lock.lock();
+        try {
+            verificarDurabilidade();
+            int i = shard.buscar(h, chave.banco(), chave.agencia(), chave.conta());
+            if (i < 0) {
+                return ResultadoOperacao.CONTA_ORIGEM_INEXISTENTE;
+            }
+            if (shard.saldos[i] < valor) {
+                return ResultadoOperacao.SALDO_INSUFICIENTE;
+            }
+            shard.saldos[i] -= valor;
+            confirmacao = journal.registrar(Operacao.conta(MemoryLedgerJournal.AJUSTE, chave, -valor));
+        } finally {
+            shard.lock.unlock();
+        }
+        aguardar(confirmacao);
+        return ResultadoOperacao.OK;
+    }
+
+    @Override
+    public boolean creditar(ChaveConta chave, long valor) throws SQLException {
+        CompletableFuture<Void> confirmacao;
+        long h = hash(chave.banco(), chave.agencia(), chave.conta());
+        Shard shard = shard(h);
+        shard.lock.lock();
+        try {
+            verificarDurabilidade();
+            int i = shard.buscar(h, chave.banco(), chave.agencia(), chave.conta());
+            if (i < 0) {
+                return false;
+            }
+            shard.saldos[i] = Math.addExact(shard.saldos[i], valor);
+            confirmacao = journal.registrar(Operacao.conta(MemoryLedgerJournal.AJUSTE, chave, valor));
+        } finally {
+            shard.lock.unlock();
+        }
+        aguardar(confirmacao);
+        return true;
+    }
+
+    @Override
+    public ResultadoOperacao transferir(Transferencia t) throws SQLException {
+        ChaveConta origem = t.origem();
+        ChaveConta destino = t.destino();
+        long hOrigem = hash(origem.banco(), origem.agencia(), origem.conta());
+        long hDestino = hash(destino.banco(), destino.agencia(), destino.conta());
+        int sOrigem = indiceShard(hOrigem);
+        int sDestino = indiceShard(hDestino);
+        Shard shardOrigem = shards[sOrigem];
+        Shard shardDestino = shards[sDestino];
+
+        // Sempre do menor índice para o maior
+        Shard primeiro = sOrigem <= sDestino ? shardOrigem : shardDestino;
+        Shard segundo = sOrigem <= sDestino ? shardDestino : shardOrigem;
+
+        CompletableFuture<Void> confirmacao;
+        primeiro.lock.lock();
+        try {
+            if (segundo != primeiro) {
+                segundo.lock.lock();
+            }
+            try {
+                verificarDurabilidade();
+                int i = shardOrigem.buscar(hOrigem, origem.banco(), origem.agencia(), origem.conta());
+                if (i < 0) {
+                    return ResultadoOperacao.CONTA_ORIGEM_INEXISTENTE;
+                }
+                int j = shardDestino.buscar(hDestino, destino.banco(), destino.agencia(), destino.conta());
+                if (j < 0) {
+                    return ResultadoOperacao.CONTA_DESTINO_INEXISTENTE;
+                }
+                if (shardOrigem.saldos[i] < t.valor()) {
+                    return ResultadoOperacao.SALDO_INSUFICIENTE;
+                }
+                shardOrigem.saldos[i] -= t.valor();
+                shardDestino.saldos[j] += t.valor();
+                confirmacao = journal.registrar(Operacao.lote(List.of(t)));
+            } finally {
+                if (segundo != primeiro) {
+                    segundo.lock.unlock();
+                }
+            }
+        } finally {
+            primeiro.lock.unlock();
+        }
+        aguardar(confirmacao);
+        return ResultadoOperacao.OK;
+    }
+
+    /**
+     * Trava de uma vez todos os shards envolvidos, em ordem crescente, aplica
+     * os itens na ordem recebida e registra só os que tiveram sucesso numa
+     * única operação do journal.
+     */
+    @Override
+    public ResultadoOperacao[] transferirLote(List<Transferencia> grupo) throws SQLException {
+        boolean[] envolvidos = new boolean[shards.length];
+        long[] hashes = new long[grupo.size() * 2];
+        for (int k = 0; k < grupo.size(); k++) {
+            Transferencia t = grupo.get(k);
+            if (t == null) {
+                continue;
+            }
+            hashes[2 * k] = hash(t.origem().banco(), t.origem().agencia(), t.origem().conta());
+            hashes[2 * k + 1] = hash(t.destino().banco(), t.destino().agencia(), t.destino().conta());
+            envolvidos[indiceShard(hashes[2 * k])] = true;
+            envolvidos[indiceShard(hashes[2 * k + 1])] = true;
+        }
+
+        ResultadoOperacao[] resultados = new ResultadoOperacao[grupo.size()];
+        List<Transferencia> aplicadas = new ArrayList<>(grupo.size());
+        CompletableFuture<Void> confirmacao = null;
+        int travados = 0;
+        try {
+            for (; travados < shards.length; travados++) {
+                if (envolvidos[travados]) {
+                    shards[travados].lock.lock();
+                }
+            }
+            verificarDurabilidade();
+            for (int k = 0; k < grupo.size(); k++) {
+                Transferencia t = grupo.get(k);
+                if (t == null) {
+                    continue;
+                }
+                resultados[k] = aplicarTransferencia(t, hashes[2 * k], hashes[2 * k + 1]);
+                if (resultados[k] == ResultadoOperacao.OK) {
+                    aplicadas.add(t);
+                }
+            }
+            if (!aplicadas.isEmpty()) {
+                confirmacao = journal.registrar(Operacao.lote(aplicadas));
+            }
+        } finally {
+            for (int s = travados - 1; s >= 0; s--) {
+                if (envolvidos[s]) {
+                    shards[s].lock.unlock();
+                }
+            }
+        }
+        aguardar(confirmacao);
+        return resultados;
+    }
+
+    // Chamado com os locks dos shards envolvidos (ou na recuperação)
+    private ResultadoOperacao aplicarTransferencia(Transferencia t, long hOrigem, long hDestino) {
+        if (t.valor() <= 0) {
+            return ResultadoOperacao.VALOR_INVALIDO;
+        }
+        ChaveConta origem = t.origem();
+        ChaveConta destino = t.destino();
+        Shard shardOrigem = shard(hOrigem);
+        Shard shardDestino = shard(hDestino);
+        int i = shardOrigem.buscar(hOrigem, origem.banco(), origem.agencia(), origem.conta());
+        if (i < 0) {
+            return ResultadoOperacao.CONTA_ORIGEM_INEXISTENTE;
+        }
+        int j = shardDestino.buscar(hDestino, destino.banco(), destino.agencia(), destino.conta());
+        if (j < 0) {
+            return ResultadoOperacao.CONTA_DESTINO_INEXISTENTE;
+        }
+        if (shardOrigem.saldos[i] < t.valor()) {
+            return ResultadoOperacao.SALDO_INSUFICIENTE;
+        }
+        shardOrigem.saldos[i] -= t.valor();
+        shardDestino.saldos[j] += t.valor();
+        return ResultadoOperacao.OK;
+    }
+
+    // ------------------------------------------------------------ duas fases
+
+    @Override
+    public ResultadoOperacao iniciarDuasFases(String id, Transferencia t) throws SQLException {
+        CompletableFuture<Void> confirmacao;
+        ChaveConta origem = t.origem();
+        long h = hash(origem.banco(), origem.agencia(), origem.conta());
+        Shard shard = shard(h);
+        shard.lock.lock();
+        try {
+            verificarDurabilidade();
+            int i = shard.buscar(h, origem.banco(), origem.agencia(), origem.conta());
+            if (i < 0) {
+                return ResultadoOperacao.CONTA_ORIGEM_INEXISTENTE;
+            }
+            if (shard.saldos[i] < t.valor()) {
+                return ResultadoOperacao.SALDO_INSUFICIENTE;
+            }
+            shard.saldos[i] -= t.valor();
+            transacoesDuasFases.put(id, t);
+            Operacao op = Operacao.duasFases(MemoryLedgerJournal.DUAS_FASES_INICIAR, id);
+            op.itens = List.of(t);
+            confirmacao = journal.registrar(op);
+        } finally {
+            shard.lock.unlock();
+        }
+        aguardar(confirmacao);
+        return ResultadoOperacao.OK;
+    }
+
+    @Override
+    public ResultadoOperacao encerrarDuasFases(String id, boolean estornar) throws SQLException {
+        Transferencia t = transacoesDuasFases.get(id);
+        if (t == null) {
+            return null;
+        }
+        CompletableFuture<Void> confirmacao;
+        ResultadoOperacao resultado = ResultadoOperacao.OK;
+        ChaveConta origem = t.origem();
+        long h = hash(origem.banco(), origem.agencia(), origem.conta());
+        Shard shard = shard(h);
+        shard.lock.lock();
+        try {
+            verificarDurabilidade();
+            // Só quem remove o registro estorna
+            if (transacoesDuasFases.remove(id) == null) {
+                return null;
+            }
+            if (estornar) {
+                int i = shard.buscar(h, origem.banco(), origem.agencia(), origem.conta());
+                if (i >= 0) {
+                    shard.saldos[i] = Math.addExact(shard.saldos[i], t.valor());
+                } else {
+                    resultado = ResultadoOperacao.CONTA_ORIGEM_INEXISTENTE;
+                }
+            }
+            Operacao op = Operacao.duasFases(MemoryLedgerJournal.DUAS_FASES_ENCERRAR, id);
+            op.valor = estornar ? 1 : 0;
+            confirmacao = journal.registrar(op);
+        } finally {
+            shard.lock.unlock();
+        }
+        aguardar(confirmacao);
+        return resultado;
+    }
+
+    @Override
+    public Map<String, Transferencia> listarDuasFasesPendentes() {
+        return new LinkedHashMap<>(transacoesDuasFases);
+    }
+
+    @Override
+    public ResultadoOperacao confirmarCreditoDuasFases(String id, ChaveConta destino, long valor)
+            throws SQLException {
+        CompletableFuture<Void> confirmacao;
+        long h = hash(destino.banco(), destino.agencia(), destino.conta());
+        Shard shard = shard(h);
+        shard.lock.lock();
+        try {
+            verificarDurabilidade();
+            if (creditosDuasFases.contains(id)) {
+                return ResultadoOperacao.OK;
+            }
+            int i = shard.buscar(h, destino.banco(), destino.agencia(), destino.conta());
+            if (i < 0) {
+                return ResultadoOperacao.CONTA_DESTINO_INEXISTENTE;
+            }
+            shard.saldos[i] = Math.addExact(shard.saldos[i], valor);
+            creditosDuasFases.add(id);
+            Operacao op = Operacao.duasFases(MemoryLedgerJournal.CREDITO_CONFIRMADO, id);
+            op.chave = destino;
+            op.valor = valor;
+            confirmacao = journal.registrar(op);
+        } finally {
+            shard.lock.unlock();
+        }
+        aguardar(confirmacao);
+        return ResultadoOperacao.OK;
+    }
+
+    @Override
+    public boolean creditoDuasFasesConfirmado(String id) {
+        return creditosDuasFases.contains(id);
+    }
+
+    // Sem conta envolvida: o lock de estrutura em leitura basta para ficar
+    // fora do corte do snapshot
+    @Override
+    public void esquecerCreditoDuasFases(String id) throws SQLException {
+        CompletableFuture<Void> confirmacao;
+        lockEstrutura.readLock().lock();
+        try {
+            verificarDurabilidade();
+            if (!creditosDuasFases.remove(id)) {
+                return;
+            }
+            confirmacao = journal.registrar(Operacao.duasFases(MemoryLedgerJournal.CREDITO_ESQUECIDO, id));
+        } finally {
+            lockEstrutura.readLock().unlock();
+        }
+        aguardar(confirmacao);
+    }
+
+    // ---------------------------------------------------------- durabilidade
+
+    private void verificarDurabilidade() throws SQLException {
+        if (falhaDurabilidade != null) {
+            throw new SQLException("Ledger em memória indisponível: falha ao gravar o journal.",
+                    falhaDurabilidade);
+        }
+    }
+
+    private void aguardar(CompletableFuture<Void> confirmacao) throws SQLException {
+        if (confirmacao == null) {
+            return;
+        }
+        try {
+            confirmacao.get(TIMEOUT_DURABILIDADE_MS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            // O estado em memória já mudou e não pode ser confirmado; a partir
+            // daqui o ledger recusa novas escritas até reiniciar do disco.
+            IOException causa = e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+            falhaDurabilidade = causa;
+            throw new SQLException("Falha ao gravar o journal do ledger.", causa);
+        } catch (TimeoutException e) {
+            throw new SQLException("Tempo esgotado aguardando o journal do ledger.", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrompido aguardando o journal do ledger.", e);
+        }
+    }
+
+    /**
+     * Grava um snapshot completo. O corte é feito com todos os locks, junto com
+     * a rotação do journal; a escrita do arquivo acontece já sem locks, a
+     * partir da cópia.
+     */
+    public void gravarSnapshot() throws IOException {
+        List<String> nomesBancos;
+        List<ChaveConta> chaves;
+        long[] saldos;
+        Map<String, Transferencia> transacoes;
+        List<String> creditos;
+        long seqCorte;
+        long segmentoNovo;
+        CompletableFuture<Void> rotacao = new CompletableFuture<>();
+
+        lockEstrutura.writeLock().lock();
+        try {
+            for (Shard shard : shards) {
+                shard.lock.lock();
+            }
+            try {
+                nomesBancos = new ArrayList<>(bancos.keySet());
+                chaves = new ArrayList<>(indice);
+                saldos = new long[chaves.size()];
+                for (int k = 0; k < chaves.size(); k++) {
+                    ChaveConta c = chaves.get(k);
+                    long h = hash(c.banco(), c.agencia(), c.conta());
+                    Shard shard = shard(h);
+                    saldos[k] = shard.saldos[shard.buscar(h, c.banco(), c.agencia(), c.conta())];
+                }
+                transacoes = new LinkedHashMap<>(transacoesDuasFases);
+                creditos = new ArrayList<>(creditosDuasFases);
+                seqCorte = journal.getUltimoSeq();
+                segmentoNovo = journal.rotacionar(rotacao);
+            } finally {
+                for (int s = shards.length - 1; s >= 0; s--) {
+                    shards[s].lock.unlock();
+                }
+            }
+        } finally {
+            lockEstrutura.writeLock().unlock();
+        }
+
+        Path tmp = diretorio.resolve("snapshot.tmp");
+        try (FileOutputStream arquivo = new FileOutputStream(tmp.toFile());
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(arquivo, 1 << 16))) {
+            out.writeInt(MAGIC_SNAPSHOT_DUAS_FASES);
+            out.writeLong(seqCorte);
+            out.writeInt(nomesBancos.size());
+            for (String nome : nomesBancos) {
+                out.writeUTF(nome);
+            }
+            out.writeInt(chaves.size());
+            for (int k = 0; k < chaves.size(); k++) {
+                ChaveConta c = chaves.get(k);
+                out.writeUTF(c.banco());
+                out.writeUTF(c.agencia());
+                out.writeUTF(c.conta());
+                out.writeLong(saldos[k]);
+            }
+            out.writeInt(transacoes.size());
+            for (Map.Entry<String, Transferencia> e : transacoes.entrySet()) {
+                Transferencia t = e.getValue();
+                out.writeUTF(e.getKey());
+                escreverChave(out, t.origem());
+                escreverChave(out, t.destino());
+                out.writeLong(t.valor());
+            }
+            out.writeInt(creditos.size());
+            for (String id : creditos) {
+                out.writeUTF(id);
+            }
+            out.flush();
+            arquivo.getFD().sync();
+        }
+        Files.move(tmp, diretorio.resolve("snapshot.dat"), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+
+        try {
+            rotacao.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (ExecutionException e) {
+            throw new IOException("Falha ao rotacionar o journal do ledger.", e.getCause());
+        }
+        journal.apagarSegmentosAnteriores(segmentoNovo);
+        snapshots.incrementAndGet();
+    }
+
+    private void recuperar() throws IOException {
+        Files.createDirectories(diretorio);
+        long seqSnapshot = 0;
+        Path snapshot = diretorio.resolve("snapshot.dat");
+        if (Files.exists(snapshot)) {
+            seqSnapshot = lerSnapshot(snapshot);
+        }
+
+        long[] aplicadas = { 0 };
+        journal.reproduzir(seqSnapshot, op -> {
+            reaplicar(op);
+            aplicadas[0]++;
+        });
+        journal.iniciar();
+        System.out.println("Ledger em memória: " + indice.size() + " contas, " + bancos.size()
+                + " bancos (" + aplicadas[0] + " operações do journal reaplicadas).");
+    }
+
+    private long lerSnapshot(Path snapshot) throws IOException {
+        try (InputStream arquivo = Files.newInputStream(snapshot);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(arquivo, 1 << 16))) {
+            int magic = in.readInt();
+            if (magic != MAGIC_SNAPSHOT && magic != MAGIC_SNAPSHOT_DUAS_FASES) {
+                throw new IOException("Snapshot do ledger inválido: " + snapshot);
+            }
+            long seq = in.readLong();
+            int nBancos = in.readInt();
+            for (int k = 0; k < nBancos; k++) {
+                String nome = in.readUTF();
+                bancos.put(nome, new Banco(nome));
+            }
+            int nContas = in.readInt();
+            for (int k = 0; k < nContas; k++) {
+                ChaveConta chave = new ChaveConta(in.readUTF(), in.readUTF(), in.readUTF());
+                inserirSemJournal(chave, in.readLong());
+            }
+            if (magic == MAGIC_SNAPSHOT_DUAS_FASES) {
+                int nTransacoes = in.readInt();
+                for (int k = 0; k < nTransacoes; k++) {
+                    String id = in.readUTF();
+                    transacoesDuasFases.put(id, new Transferencia(lerChave(in), lerChave(in), in.readLong()));
+                }
+                int nCreditos = in.readInt();
+                for (int k = 0; k < nCreditos; k++) {
+                    creditosDuasFases.add(in.readUTF());
+                }
+            }
+            return seq;
+        }
+    }
+
+    private static void escreverChave(DataOutputStream out, ChaveConta chave) throws IOException {
+        out.writeUTF(chave.banco());
+        out.writeUTF(chave.agencia());
+        out.writeUTF(chave.conta());
+    }
+
+    private static ChaveConta lerChave(DataInputStream in) throws IOException {
+        return new ChaveConta(in.readUTF(), in.readUTF(), in.readUTF());
+    }
+
+    // Recuperação é single-thread, antes de qualquer requisição
+    private void reaplicar(Operacao op) {
+        switch (op.tipo) {
+            case MemoryLedgerJournal.CRIAR_BANCO:
+                bancos.put(op.banco, new Banco(op.banco));
+                break;
+            case MemoryLedgerJournal.EXCLUIR_BANCO:
+                bancos.remove(op.banco);
+                removerContasDoBanco(op.banco);
+                break;
+            case MemoryLedgerJournal.CRIAR_CONTA:
+                inserirSemJournal(op.chave, op.valor);
+                break;
+            case MemoryLedgerJournal.EXCLUIR_CONTA: {
+                long h = hash(op.chave.banco(), op.chave.agencia(), op.chave.conta());
+                Shard shard = shard(h);
+                int i = shard.buscar(h, op.chave.banco(), op.chave.agencia(), op.chave.conta());
+                if (i >= 0) {
+                    shard.remover(i);
+                }
+                indice.remove(op.chave);
+                break;
+            }
+            case MemoryLedgerJournal.AJUSTE:
+                ajustarSemJournal(op.chave, op.valor);
+                break;
+            case MemoryLedgerJournal.LOTE:
+                for (Transferencia t : op.itens) {
+                    aplicarTransferencia(t, hash(t.origem().banco(), t.origem().agencia(), t.origem().conta()),
+                            hash(t.destino().banco(), t.destino().agencia(), t.destino().conta()));
+                }
+                break;
+            case MemoryLedgerJournal.DUAS_FASES_INICIAR: {
+                Transferencia t = op.itens.get(0);
+                ajustarSemJournal(t.origem(), -t.valor());
+                transacoesDuasFases.put(op.id, t);
+                break;
+            }
+            case MemoryLedgerJournal.DUAS_FASES_ENCERRAR: {
+                Transferencia t = transacoesDuasFases.remove(op.id);
+                if (t != null && op.valor != 0) {
+                    ajustarSemJournal(t.origem(), t.valor());
+                }
+                break;
+            }
+            case MemoryLedgerJournal.CREDITO_CONFIRMADO:
+                ajustarSemJournal(op.chave, op.valor);
+                creditosDuasFases.add(op.id);
+                break;
+            case MemoryLedgerJournal.CREDITO_ESQUECIDO:
+                creditosDuasFases.remove(op.id);
+                break;
+            default:
+                throw new IllegalStateException("Operação desconhecida: " + op.tipo);
+        }
+    }
+
+    private void ajustarSemJournal(ChaveConta chave, long valor) {
+        long h = hash(chave.banco(), chave.agencia(), chave.conta());
+        Shard shard = shard(h);
+        int i = shard.buscar(h, chave.banco(), chave.agencia(), chave.conta());
+        if (i >= 0) {
+            shard.saldos[i] += valor;
+        }
+    }
+
+    private void inserirSemJournal(ChaveConta chave, long saldo) {
+        long h = hash(chave.banco(), chave.agencia(), chave.conta());
+        Shard shard = shard(h);
+        int i = shard.buscar(h, chave.banco(), chave.agencia(), chave.conta());
+        if (i >= 0) {
+            shard.saldos[i] = saldo;
+        } else {
+            shard.inserir(h, chave, saldo);
+        }
+        indice.add(chave);
+    }
+
+    public String estatisticas() {
+        int maior = 0;
+        for (Shard shard : shards) {
+            maior = Math.max(maior, shard.tamanho);
+        }
+        return String.format("Ledger em memória: contas=%d, bancos=%d, shards=%d, maiorShard=%d, seq=%d, snapshots=%d",
+                indice.size(), bancos.size(), shards.length, maior, journal.getUltimoSeq(), snapshots.get());
+    }
+
+    // --------------------------------------------------------------- apoio
+
+    private Banco banco(String nome) {
+        Banco banco = bancos.get(nome);
+        return banco != null ? banco : new Banco(nome);
+    }
+
+    private static ChaveConta inicioDoBanco(String banco) {
+        return new ChaveConta(banco, "", "");
+    }
+
+    private int indiceShard(long h) {
+        return (int) (h >>> 32) & mascaraShards;
+    }
+
+    private Shard shard(long h) {
+        return shards[indiceShard(h)];
+    }
+
+    /**
+     * FNV-1a sobre os caracteres das três partes, com separador, seguido do
+     * finalizador do MurmurHash3. Nunca devolve 0, que marca posição vazia.
+     */
+    static long hash(String banco, String agencia, String conta) {
+        long h = 0xcbf29ce484222325L;
+        h = misturar(h, banco);
+        h = (h ^ 0xFFFF) * 0x100000001b3L;
+        h = misturar(h, agencia);
+        h = (h ^ 0xFFFF) * 0x100000001b3L;
+        h = misturar(h, conta);
+
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h != 0 ? h : 1;
+    }
+
+    private static long misturar(long h, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            h = (h ^ s.charAt(i)) * 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /**
+     * Tabela de endereçamento aberto (sondagem linear) de chave para saldo.
+     * Só é acessada com {@link #lock}.
+     */
+    static final class Shard {
+        final ReentrantLock lock = new ReentrantLock();
+        long[] hashes = new long[16];
+        ChaveConta[] chaves = new ChaveConta[16];
+        long[] saldos = new long[16];
+        int tamanho;
+
+        int buscar(long h, String banco, String agencia, String conta) {
+            int mascara = hashes.length - 1;
+            for (int i = (int) h & mascara;; i = (i + 1) & mascara) {
+                long atual = hashes[i];
+                if (atual == 0) {
+                    return -1;
+                }
+                if (atual == h) {
+                    ChaveConta c = chaves[i];
+                    if (c.conta().equals(conta) && c.agencia().equals(agencia) && c.banco().equals(banco)) {
+                        return i;
+                    }
+                }
+            }
+        }
+
+        void inserir(long h, ChaveConta chave, long saldo) {
+            if ((tamanho + 1) * 4 > hashes.length * 3) {
+                crescer();
+            }
+            int mascara = hashes.length - 1;
+            int i = (int) h & mascara;
+            while (hashes[i] != 0) {
+                i = (i + 1) & mascara;
+            }
+            hashes[i] = h;
+            chaves[i] = chave;
+            saldos[i] = saldo;
+            tamanho++;
+        }
+
+        // Remoção com deslocamento para trás: mantém as cadeias de sondagem
+        // sem marcadores de remoção.
+        void remover(int i) {
+            int mascara = hashes.length - 1;
+            int livre = i;
+            int j = i;
+            while (true) {
+                j = (j + 1) & mascara;
+                if (hashes[j] == 0) {
+                    break;
+                }
+                int ideal = (int) hashes[j] & mascara;
+                // Move j para a posição livre se a posição ideal de j não
+                // estiver no intervalo circular (livre, j]
+                boolean dentro = livre <= j ? (ideal > livre && ideal <= j) : (ideal > livre || ideal <= j);
+                if (!dentro) {
+                    hashes[livre] = hashes[j];
+                    chaves[livre] = chaves[j];
+                    saldos[livre] = saldos[j];
+                    livre = j;
+                }
+            }
+            hashes[livre] = 0;
+            chaves[livre] = null;
+            saldos[livre] = 0;
+            tamanho--;
+        }
+
+        private void crescer() {
+            long[] antigosHashes = hashes;
+            ChaveConta[] antigasChaves = chaves;
+            long[] antigosSaldos = saldos;
+            int capacidade = antigosHashes.length * 2;
+            hashes = new long[capacidade];
+            chaves = new ChaveConta[capacidade];
+            saldos = new long[capacidade];
+            tamanho = 0;
+            for (int i = 0; i < antigosHashes.length; i++) {
+                if (antigosHashes[i] != 0) {
+                    inserir(antigosHashes[i], antigasChaves[i], antigosSaldos[i]);
+                }
+            }
+        }
+    }
+}